@@ -1,5 +1,13 @@
 package tablut;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
 import static java.lang.Math.*;
 
 /** A Player that automatically generates moves.
@@ -15,6 +23,11 @@ class AI extends Player {
     private static final int WILL_WIN_VALUE = Integer.MAX_VALUE - 40;
     /** A magnitude greater than a normal value. */
     private static final int INFTY = Integer.MAX_VALUE;
+    /** The deepest search (in plies) for which principal variations are
+     *  kept. */
+    private static final int MAX_PLY = 64;
+    /** Number of nodes searched between checks of the clock. */
+    private static final int CLOCK_INTERVAL = 1024;
 
     /** A new AI with no piece or controller (intended to produce
      *  a template). */
@@ -39,24 +52,289 @@ class AI extends Player {
         return move.toString();
     }
 
+    @Override
+    CompletableFuture<Move> myMoveAsync(long deadline) {
+        CompletableFuture<Move> result = new CompletableFuture<>();
+        AI searcher = new AI(myPiece(), _controller);
+        searcher.prepareSearch();
+        searcher._solver = solver();
+        searcher._progress = _controller.progress();
+        searcher._budget = _controller.moveBudget();
+        Board board = new Board(board());
+        SEARCH_THREADS.execute(() -> {
+            try {
+                result.complete(searcher.findMove(board, deadline, result));
+            } catch (RuntimeException excp) {
+                result.completeExceptionally(excp);
+            }
+        });
+        return result;
+    }
+
     @Override
     boolean isManual() {
         return false;
     }
 
+    /** One line of analysis: a move, its score (positive favoring white)
+     *  and the principal variation starting with it. */
+    static class Line {
+        /** A Line for MOVE with score SCORE and principal variation PV. */
+        Line(Move move, int score, List<Move> pv) {
+            _move = move;
+            _score = score;
+            _pv = pv;
+        }
+
+        /** Return my move. */
+        Move move() {
+            return _move;
+        }
+
+        /** Return my score. */
+        int score() {
+            return _score;
+        }
+
+        /** Return my principal variation, which starts with move(). */
+        List<Move> pv() {
+            return _pv;
+        }
+
+        /** Return my move, its score, and the rest of my principal
+         *  variation, separated by blanks. */
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("%s %s", _move, scoreString(_score)));
+            for (Move move : _pv.subList(1, _pv.size())) {
+                out.append(' ').append(move);
+            }
+            return out.toString();
+        }
+
+        /** My move. */
+        private final Move _move;
+        /** My score. */
+        private final int _score;
+        /** My principal variation. */
+        private final List<Move> _pv;
+    }
+
+    /** Return the best K moves (or all moves, if fewer) for the side to
+     *  move in BOARD, best first, with their scores and principal
+     *  variations from a search of DEPTH plies.  Unlike a separate search
+     *  for each move, moves that cannot make the top K are only searched
+     *  far enough to show that.  Does not modify BOARD. */
+    List<Line> analyze(Board board, int k, int depth) {
+        prepareSearch();
+        _deadline = Long.MAX_VALUE;
+        return analyze(new Board(board), k, depth, null);
+    }
+
+    /** Return the best K moves for the side to move in BOARD as for
+     *  analyze(BOARD, K, DEPTH), searching as deeply as possible within
+     *  MILLIS milliseconds (but at least one ply). */
+    List<Line> analyzeFor(Board board, int k, long millis) {
+        prepareSearch();
+        Board b = new Board(board);
+        _deadline = Long.MAX_VALUE;
+        List<Line> result = analyze(b, k, 1, null);
+        _deadline = System.nanoTime() + millis * 1_000_000;
+        for (int depth = 2; depth < MAX_PLY; depth += 1) {
+            List<Line> lines = analyze(b, k, depth, result);
+            if (_aborted) {
+                break;
+            }
+            result = lines;
+        }
+        return result;
+    }
+
+    /** Return the number of positions examined by the last search. */
+    long nodes() {
+        return _nodes;
+    }
+
+    /** Return the best K moves for the side to move in BOARD from a
+     *  search of DEPTH plies, as for analyze, trying the moves in PREVIOUS
+     *  (if non-null) first.  Sets _aborted if the deadline passed. */
+    private List<Line> analyze(Board board, int k, int depth,
+                               List<Line> previous) {
+        int sense = board.turn() == Piece.WHITE ? 1 : -1;
+        List<Move> moves = board.legalMoves(board.turn());
+        if (previous != null) {
+            for (int i = previous.size() - 1; i >= 0; i -= 1) {
+                moves.remove(previous.get(i).move());
+                moves.add(0, previous.get(i).move());
+            }
+        }
+        _rootMoveCount = board.moveCount();
+        _nodes = 0;
+        _aborted = false;
+        ArrayList<Line> lines = new ArrayList<>();
+        for (Move move : moves) {
+            int bound = lines.size() < k ? -sense * INFTY
+                : lines.get(k - 1).score();
+            board.makeMove(move);
+            int score = sense == 1
+                ? findMove(board, depth - 1, false, -1, bound, INFTY)
+                : findMove(board, depth - 1, false, 1, -INFTY, bound);
+            board.undo();
+            if (_aborted) {
+                break;
+            }
+            if (lines.size() < k || better(sense, score, bound)) {
+                ArrayList<Move> pv = new ArrayList<>();
+                pv.add(move);
+                pv.addAll(Arrays.asList(_pv[1]).subList(1, _pvLength[1]));
+                int i;
+                for (i = lines.size(); i > 0; i -= 1) {
+                    if (!better(sense, score, lines.get(i - 1).score())) {
+                        break;
+                    }
+                }
+                lines.add(i, new Line(move, score, pv));
+                if (lines.size() > k) {
+                    lines.remove(k);
+                }
+            }
+        }
+        return lines;
+    }
+
     /** Return a move for me from the current position, assuming there
      *  is a move. */
     private Move findMove() {
-        Board b = new Board(board());
+        prepareSearch();
+        _budget = _controller.moveBudget();
+        return findMove(new Board(board()), Long.MAX_VALUE, null);
+    }
+
+    /** Set up for a search on behalf of my controller, which must be done on
+     *  its thread.  Chooses the cache, and in deterministic mode (see
+     *  Controller.deterministic), draws the random order in which root
+     *  moves are tried, and so the way ties are broken, from the
+     *  controller's seeded generator. */
+    private void prepareSearch() {
+        if (_controller != null && _controller.deterministic()) {
+            _cache = _controller.searchCache();
+            _rootOrder = new Random(_controller.randInt(1 << 30));
+        } else {
+            _cache = SearchCache.shared();
+            _rootOrder = null;
+        }
+    }
+
+    /** Return my proof-number solver, creating it if this is its first
+     *  use.  (Its table is large, so it is kept from move to move.) */
+    private ProofSearch solver() {
+        if (_solver == null) {
+            _solver = new ProofSearch(ProofSearch.DEFAULT_NODES);
+        }
+        return _solver;
+    }
+
+    /** Return a move for me from position B, assuming there is a move.
+     *  In tactical positions (see ProofSearch.isTactical), first tries to
+     *  prove a forced win, returning its first move if one is found.
+     *  Otherwise stops searching when System.nanoTime() passes DEADLINE,
+     *  returning the best move from the deepest search completed
+     *  (searching at least one ply in any case), or when CANCEL (if
+     *  non-null) is done.  With a time budget (_budget), also stops at its
+     *  deadline, and otherwise deepens until the budget says to stop; a
+     *  sole legal move is made at once.  In deterministic mode, ignores
+     *  DEADLINE.  Records the search as an EngineEvents.Search event. */
+    private Move findMove(Board b, long deadline, Future<?> cancel) {
+        EngineEvents.Search event = new EngineEvents.Search();
+        event.begin();
+        Move best = searchMove(b, deadline, cancel);
+        if (event.shouldCommit()) {
+            event.side = b.turn().toName();
+            event.depth = _depthReached;
+            event.nodes = _nodes;
+            event.score = _scoreReached;
+            event.move = String.valueOf(best);
+            event.proved = _proved;
+            event.commit();
+        }
+        return best;
+    }
+
+    /** Return a move for me from position B, as for findMove(B, DEADLINE,
+     *  CANCEL), setting _depthReached, _scoreReached and _proved. */
+    private Move searchMove(Board b, long deadline, Future<?> cancel) {
         _lastFoundMove = null;
+        _depthReached = _scoreReached = 0;
+        _proved = false;
         int sense = 1;
         if (myPiece() == Piece.BLACK) {
             sense = -1;
         } else {
             assert myPiece() == Piece.WHITE;
         }
-        findMove(b, maxDepth(b), true, sense, -INFTY, INFTY);
-        return _lastFoundMove;
+        _rootMoveCount = b.moveCount();
+        _nodes = 0;
+        _cancel = cancel;
+        if (_rootOrder != null) {
+            deadline = Long.MAX_VALUE;
+        }
+        int maxDepth = maxDepth(b);
+        if (_budget != null) {
+            List<Move> moves = b.legalMoves(b.turn());
+            if (moves.size() == 1) {
+                _cancel = null;
+                return moves.get(0);
+            }
+            deadline = min(deadline, _budget.deadline());
+            maxDepth = MAX_PLY - 1;
+        }
+        Move best = null;
+        if (ProofSearch.isTactical(b)) {
+            ProofSearch solver = solver();
+            synchronized (solver) {
+                int length = solver.solve(b, ProofSearch.DEFAULT_PLIES,
+                                          deadline, cancel);
+                if (length >= 0) {
+                    best = solver.bestMove();
+                    _depthReached = length;
+                    _scoreReached = sense * max(WINNING_VALUE - length,
+                                                WILL_WIN_VALUE + 1);
+                    _proved = true;
+                    publish(best, length, _scoreReached, solver.nodes());
+                    _cancel = null;
+                    return best;
+                }
+            }
+        }
+        int depth = deadline == Long.MAX_VALUE ? maxDepth : 1;
+        for (; depth <= maxDepth; depth += 1) {
+            _deadline = best == null ? Long.MAX_VALUE : deadline;
+            _aborted = false;
+            EngineEvents.Iteration event = new EngineEvents.Iteration();
+            event.begin();
+            int score = findMove(b, depth, true, sense, -INFTY, INFTY);
+            if (_aborted) {
+                break;
+            }
+            best = _lastFoundMove;
+            _depthReached = depth;
+            _scoreReached = score;
+            if (event.shouldCommit()) {
+                event.depth = depth;
+                event.nodes = _nodes;
+                event.score = score;
+                event.move = String.valueOf(best);
+                event.commit();
+            }
+            if (_budget != null
+                && (_budget.iterationDone(best)
+                    || abs(score) >= WILL_WIN_VALUE)) {
+                break;
+            }
+        }
+        _cancel = null;
+        return best;
     }
 
     /** The move found by the last call to one of the ...FindMove methods
@@ -68,132 +346,192 @@ class AI extends Player {
      *  should have maximal value or have value > BETA if SENSE==1,
      *  and minimal value or value < ALPHA if SENSE==-1. Searches up to
      *  DEPTH levels.  Searching at level 0 simply returns a static estimate
-     *  of the board value and does not set _lastMoveFound. */
+     *  of the board value and does not set _lastMoveFound.  Records the
+     *  principal variation from BOARD in _pv.  BOARD is restored before
+     *  returning. */
     private int findMove(Board board, int depth, boolean saveMove,
                          int sense, int alpha, int beta) {
-        int bestSoFar = 0; Move bestMove = null;
-        if (sense == 1) {
-            bestSoFar = -INFTY;
-            if (board.winner() != null) {
-                if (board.winner() == Piece.WHITE) {
-                    return WINNING_VALUE;
-                } else if (board.winner() == Piece.BLACK) {
-                    return -WINNING_VALUE;
-                }
-            }
-            if (depth == 0) {
-                return simpleFindMax(board, alpha, beta);
-            } else {
-                for (Move move: board.legalMoves(myPiece())) {
-                    Board copy = new Board();
-                    copy.copy(board); copy.makeMove(move);
-                    int response =
-                            findMove(copy, depth - 1, false, -1, alpha, beta);
-                    if (response >= bestSoFar) {
-                        bestSoFar = response; bestMove = move;
-                        alpha = max(alpha, response);
-                        if (beta <= alpha) {
-                            break;
-                        }
-                    }
-                }
+        int ply = board.moveCount() - _rootMoveCount;
+        _nodes += 1;
+        _pvLength[ply] = ply;
+        if (_nodes % CLOCK_INTERVAL == 0
+            && (System.nanoTime() > _deadline
+                || _cancel != null && _cancel.isDone())) {
+            _aborted = true;
+        }
+        if (_aborted) {
+            return 0;
+        }
+        if (board.winner() != null) {
+            int value = max(WINNING_VALUE - ply, WILL_WIN_VALUE + 1);
+            return board.winner() == Piece.WHITE ? value : -value;
+        }
+        /* At the leaves, where most nodes are, look for escapes only when
+         * the king already has an open ray. */
+        if (!saveMove && (depth > 0 || KingEscape.openRays(board) > 0)) {
+            int escape = KingEscape.forcedEscape(board);
+            if (escape > 0
+                && board.moveLimit() - board.moveCount() > escape) {
+                return max(WINNING_VALUE - ply - escape, WILL_WIN_VALUE + 1);
             }
-        } else if (sense == -1) {
-            bestSoFar = INFTY;
-            if (board.winner() != null) {
-                if (board.winner() == Piece.WHITE) {
-                    return WINNING_VALUE;
-                } else if (board.winner() == Piece.BLACK) {
-                    return -WINNING_VALUE;
+        }
+        if (depth == 0 || ply == MAX_PLY - 1) {
+            return staticScore(board);
+        }
+        boolean cacheable = board.moveLimit() - board.moveCount() > depth;
+        int sym = 0;
+        long key = 0;
+        Move cachedMove = null;
+        if (cacheable) {
+            sym = board.canonicalSymmetry();
+            key = board.hash(sym);
+            long data = _cache.probe(key);
+            if (data != 0) {
+                Move move = board.move(SearchCache.move(data));
+                if (move != null) {
+                    cachedMove = Symmetry.apply(Symmetry.inverse(sym), move);
                 }
-            }
-            if (depth == 0) {
-                return simpleFindMin(board, alpha, beta);
-            } else {
-                for (Move move: board.legalMoves(myPiece())) {
-                    Board copy = new Board(); copy.copy(board);
-                    copy.makeMove(move);
-                    int response = findMove(copy, depth - 1,
-                            false, 1, alpha, beta);
-                    if (response <= bestSoFar) {
-                        bestSoFar = response; bestMove = move;
-                        beta = min(beta, response);
-                        if (beta <= alpha) {
-                            break;
-                        }
-                    }
+                int score = fromCache(SearchCache.score(data), ply);
+                int bound = SearchCache.bound(data);
+                /* Only cut off where the score falls outside the window:
+                 * within it, the node may be on the principal variation,
+                 * which must be searched to fill in _pv. */
+                if (!saveMove && SearchCache.depth(data) >= depth
+                    && (bound != SearchCache.UPPER && score >= beta
+                        || bound != SearchCache.LOWER && score <= alpha)) {
+                    return score;
                 }
             }
         }
-        if (saveMove) {
-            _lastFoundMove = bestMove;
+        int alpha0 = alpha, beta0 = beta;
+        int bestSoFar = -sense * INFTY;
+        Move bestMove = null;
+        List<Move> moves = board.legalMoves(board.turn());
+        if (saveMove && _rootOrder != null) {
+            Collections.shuffle(moves, _rootOrder);
         }
-        return bestSoFar;
-    }
-    /** Max function that takes in BOARD, ALPHA and BETA @return bestSoFar. */
-    private int simpleFindMax(Board board, int alpha, int beta) {
-        if (board.winner() == Piece.WHITE) {
-            return WINNING_VALUE;
-        } else if (board().winner() == Piece.BLACK) {
-            return -WINNING_VALUE;
+        if (cachedMove != null && moves.remove(cachedMove)) {
+            moves.add(0, cachedMove);
         }
-        int bestSoFar = -INFTY;
-        for (Move move : board.legalMoves(myPiece())) {
+        for (Move move : moves) {
             board.makeMove(move);
-            int val = staticScore(board);
-            if (val >= bestSoFar) {
-                bestSoFar = val;
-                alpha = max(alpha, val);
+            int response =
+                findMove(board, depth - 1, false, -sense, alpha, beta);
+            board.undo();
+            if (_aborted) {
+                return 0;
+            }
+            if (better(sense, response, bestSoFar) || bestMove == null) {
+                bestSoFar = response;
+                bestMove = move;
+                _pv[ply][ply] = move;
+                System.arraycopy(_pv[ply + 1], ply + 1, _pv[ply], ply + 1,
+                                 _pvLength[ply + 1] - ply - 1);
+                _pvLength[ply] = max(ply + 1, _pvLength[ply + 1]);
+                if (sense == 1) {
+                    alpha = max(alpha, response);
+                } else {
+                    beta = min(beta, response);
+                }
+                if (saveMove) {
+                    publish(move, depth, response, _nodes);
+                }
                 if (beta <= alpha) {
                     break;
                 }
             }
         }
+        if (saveMove) {
+            _lastFoundMove = bestMove;
+        }
+        if (cacheable && bestMove != null) {
+            int bound = bestSoFar <= alpha0 ? SearchCache.UPPER
+                : bestSoFar >= beta0 ? SearchCache.LOWER : SearchCache.EXACT;
+            _cache.store(key, depth, toCache(bestSoFar, ply), bound,
+                         Symmetry.apply(sym, bestMove).code());
+        }
         return bestSoFar;
     }
 
-    /** Min function that takes in BOARD, ALPHA and BETA @return bestSoFar. */
-    private int simpleFindMin(Board board, int alpha, int beta) {
-        if (board.winner() == Piece.WHITE) {
-            return WINNING_VALUE;
-        } else if (board().winner() == Piece.BLACK) {
-            return -WINNING_VALUE;
+    /** Return SCORE, found PLY plies below the root, in the form kept in
+     *  the cache, in which wins are counted from the position itself
+     *  rather than the root. */
+    private static int toCache(int score, int ply) {
+        if (score > WILL_WIN_VALUE) {
+            return (int) min((long) score + ply, WINNING_VALUE);
+        } else if (score < -WILL_WIN_VALUE) {
+            return (int) max((long) score - ply, -WINNING_VALUE);
         }
-        int bestSoFar = INFTY;
-        for (Move move : board.legalMoves(myPiece())) {
-            board.makeMove(move);
-
-            int val = staticScore(board);
+        return score;
+    }
 
-            if (val <= bestSoFar) {
-                bestSoFar = val;
-                beta = min(beta, val);
-                if (beta <= alpha) {
-                    break;
-                }
-            }
+    /** Return the cached score SCORE as seen PLY plies below the root
+     *  (the inverse of toCache). */
+    private static int fromCache(int score, int ply) {
+        if (score > WILL_WIN_VALUE) {
+            return max(score - ply, WILL_WIN_VALUE + 1);
+        } else if (score < -WILL_WIN_VALUE) {
+            return min(score + ply, -WILL_WIN_VALUE - 1);
         }
-        return bestSoFar;
+        return score;
     }
 
+    /** Return true iff score X is strictly better than score Y for the
+     *  side that maximizes SENSE * score. */
+    private static boolean better(int sense, int x, int y) {
+        return sense == 1 ? x > y : x < y;
+    }
 
-
+    /** Publish MOVE as the best move so far, at DEPTH with score SCORE
+     *  after NODES positions, to _progress, if any, unless the current
+     *  search has been cancelled (when its results are no longer
+     *  wanted). */
+    private void publish(Move move, int depth, int score, long nodes) {
+        Future<?> cancel = _cancel;
+        if (_progress != null && (cancel == null || !cancel.isDone())) {
+            _progress.publish(move, depth, score, nodes);
+        }
+    }
 
     /** Return a heuristically determined maximum search depth based on
      * characteristics of BOARD. */
     private static int maxDepth(Board board) {
-        return 2;
+        return 3;
+    }
+
+    /** Evaluate positions in all AIs with NETWORK, or with the handcrafted
+     *  heuristic if NETWORK is null (the default).  The network's scores
+     *  have a finer scale than the heuristic's. */
+    static void useNetwork(Network network) {
+        _network = network;
+    }
+
+    /** Return an identifier of the evaluation in use by all AIs: 0 for the
+     *  handcrafted heuristic, and otherwise the id() of the network.
+     *  Scores from different evaluations do not mix. */
+    static long evaluatorId() {
+        Network network = _network;
+        return network == null ? 0 : network.id();
     }
 
-    /** Return a heuristic value for BOARD. */
+    /** Return a heuristic value for BOARD: that of the network, if one is
+     *  in use (see useNetwork), BOARD has the network's 9x9 size, and the
+     *  king is on the board. */
     private int staticScore(Board board) {
+        Network network = _network;
+        Square king = board.kingPosition();
+        if (network != null && board.size() == Board.SIZE && king != null
+            && !board.isEscape(king)) {
+            return network.evaluate(board);
+        }
         int heuristic;
         int kingVal = 7;
+        int openRayVal = 3;
         int wc = board.pieceLocations(Piece.WHITE).size() + kingVal;
         int bc = board.pieceLocations(Piece.BLACK).size();
-        if (board.kingPosition() != null) {
-            heuristic = wc - bc;
-            if (board.kingPosition().isEdge()) {
+        if (king != null) {
+            heuristic = wc - bc + openRayVal * KingEscape.openRays(board);
+            if (board.isEscape(king)) {
                 heuristic = WILL_WIN_VALUE;
             }
         } else {
@@ -202,4 +540,51 @@ class AI extends Player {
         return heuristic;
     }
 
+    /** Return a printable form of SCORE, showing wins as "+win" or
+     *  "-win". */
+    static String scoreString(int score) {
+        if (abs(score) >= WILL_WIN_VALUE) {
+            return score > 0 ? "+win" : "-win";
+        }
+        return String.format("%+d", score);
+    }
+
+    /** The network used by staticScore, or null. */
+    private static volatile Network _network;
+
+    /** Move count of the root position of the current search. */
+    private int _rootMoveCount;
+    /** Number of positions examined in the current search. */
+    private long _nodes;
+    /** Depth of the last completed iteration of the current search (or
+     *  length of its proof), and its score. */
+    private int _depthReached, _scoreReached;
+    /** True iff the current search found a proof. */
+    private boolean _proved;
+    /** Value of System.nanoTime() after which to abandon the search. */
+    private long _deadline;
+    /** True iff the current search was abandoned at the deadline. */
+    private boolean _aborted;
+    /** If non-null, a Future whose completion (typically by cancellation)
+     *  abandons the current search. */
+    private Future<?> _cancel;
+    /** If non-null, the time allowed for the move being searched. */
+    private TimeManager.Budget _budget;
+    /** If non-null, where improvements to the best move at the root are
+     *  published as they are found. */
+    private SearchProgress _progress;
+    /** Solver for tactical positions, or null if not yet needed.  The AIs
+     *  that search in the background for me share mine, each locking it
+     *  while it searches. */
+    private ProofSearch _solver;
+    /** Results of previous searches, usually shared with all other AIs. */
+    private SearchCache _cache = SearchCache.shared();
+    /** In deterministic mode, the source of the random order of root moves;
+     *  otherwise null. */
+    private Random _rootOrder;
+    /** _pv[p][p .. _pvLength[p] - 1] is the principal variation found from
+     *  the position p plies below the root (a triangular array). */
+    private final Move[][] _pv = new Move[MAX_PLY + 1][MAX_PLY + 1];
+    /** See _pv. */
+    private final int[] _pvLength = new int[MAX_PLY + 1];
 }
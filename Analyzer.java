@@ -0,0 +1,165 @@
+package tablut;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** Batch analysis of a file of positions, one per line, each in FEN-like
+ *  form (as from Board.toFen) or base-64 compact form (as from
+ *  Board.toBase64).  Positions are of a given variant, or of the standard
+ *  variant of their size if that differs (see Variant.forSize).  Blank
+ *  lines and comments (from '#') are ignored.
+ *  For each position, writes one line to the output, in input order:
+ *  the position as given, then the best move, its score, and the rest of
+ *  its principal variation, as for the "analyze" command; or "none" if the
+ *  game is over; or "error:" and a message if the position is malformed.
+ *  Positions are analyzed in batches by worker threads, each with its own
+ *  AI and Board.  At most two batches per worker are read but not yet
+ *  written at any time, so memory use does not depend on the size of the
+ *  file.
+ *  @author neal sharma
+ */
+class Analyzer {
+
+    /** Number of positions handed to a worker at a time. */
+    private static final int BATCH_SIZE = 16;
+
+    /** A batch of positions and the future for its output lines. */
+    private static class Batch {
+        /** A batch of the positions in LINES. */
+        Batch(List<String> lines) {
+            _lines = lines;
+        }
+
+        /** The positions, as given. */
+        private final List<String> _lines;
+        /** The output for the positions. */
+        private final CompletableFuture<List<String>> _result =
+            new CompletableFuture<>();
+    }
+
+    /** Analyze each position of VARIANT in INPUT, writing the results to
+     *  OUTPUT, using THREADS worker threads.  Searches DEPTH plies if
+     *  MILLIS is 0, and otherwise as deeply as possible in MILLIS
+     *  milliseconds per position.  Returns the number of positions analyzed. */
+    static long analyze(Path input, Path output, Variant variant,
+                        int threads, int depth, long millis)
+        throws IOException {
+        BlockingQueue<Batch> work = new LinkedBlockingQueue<>();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i += 1) {
+            workers[i] = new Thread(() -> {
+                AI ai = new AI();
+                Board board = new Board(variant);
+                try {
+                    while (true) {
+                        Batch batch = work.take();
+                        if (batch._lines.isEmpty()) {
+                            return;
+                        }
+                        List<String> result = new ArrayList<>();
+                        try {
+                            for (String line : batch._lines) {
+                                result.add(analyze(line, variant, ai, board,
+                                                   depth, millis));
+                            }
+                            batch._result.complete(result);
+                        } catch (RuntimeException excp) {
+                            batch._result.completeExceptionally(excp);
+                        }
+                    }
+                } catch (InterruptedException excp) {
+                    /* Terminate. */
+                }
+            }, "analyze-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        long count = 0;
+        ArrayDeque<Batch> pending = new ArrayDeque<>();
+        try (BufferedReader in = Files.newBufferedReader(input);
+             PrintWriter out =
+                 new PrintWriter(Files.newBufferedWriter(output))) {
+            while (true) {
+                List<String> lines = new ArrayList<>(BATCH_SIZE);
+                for (String line = in.readLine(); line != null;
+                     line = in.readLine()) {
+                    line = line.replaceFirst("#.*", "").trim();
+                    if (!line.isEmpty()) {
+                        lines.add(line);
+                        if (lines.size() == BATCH_SIZE) {
+                            break;
+                        }
+                    }
+                }
+                if (lines.isEmpty()) {
+                    break;
+                }
+                count += lines.size();
+                Batch batch = new Batch(lines);
+                pending.add(batch);
+                work.put(batch);
+                if (pending.size() >= 2 * threads) {
+                    write(pending.remove(), out);
+                }
+            }
+            while (!pending.isEmpty()) {
+                write(pending.remove(), out);
+            }
+            for (int i = 0; i < threads; i += 1) {
+                work.put(new Batch(new ArrayList<>()));
+            }
+            if (out.checkError()) {
+                throw new IOException("error writing " + output);
+            }
+        } catch (InterruptedException excp) {
+            throw new IllegalStateException("analysis interrupted");
+        } finally {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        }
+        return count;
+    }
+
+    /** Wait for the output of BATCH and write it to OUT. */
+    private static void write(Batch batch, PrintWriter out) {
+        for (String line : batch._result.join()) {
+            out.println(line);
+        }
+    }
+
+    /** Return the output line for the position of VARIANT whose text is
+     *  LINE, set up on BOARD and analyzed by AI to DEPTH plies, or for
+     *  MILLIS milliseconds if that is not 0. */
+    static String analyze(String line, Variant variant, AI ai, Board board,
+                          int depth, long millis) {
+        try {
+            if (!board.variant().equals(variant)) {
+                board.init(variant);
+            }
+            if (line.indexOf('/') >= 0) {
+                board.setFen(line);
+            } else {
+                board.setBase64(line);
+            }
+        } catch (IllegalArgumentException excp) {
+            return String.format("%s error: %s", line, excp.getMessage());
+        }
+        if (!board.hasMove(board.turn())) {
+            return String.format("%s none", line);
+        }
+        List<AI.Line> best = millis > 0 ? ai.analyzeFor(board, 1, millis)
+            : ai.analyze(board, 1, depth);
+        return String.format("%s %s", line, best.get(0));
+    }
+}
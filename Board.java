@@ -1,53 +1,39 @@
 package tablut;
 
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Base64;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Formatter;
 
 import static java.lang.Math.abs;
 import static java.lang.Math.max;
-import static tablut.Move.ROOK_MOVES;
 import static tablut.Piece.*;
 import static tablut.Square.*;
 
-import static tablut.Move.mv;
 
-
-/** The state of a Tablut Game.
+/** The state of a Tablut Game, or of a game of another Variant.  The
+ *  rules and geometry come from the tables of the Variant, which the
+ *  board keeps in fields of its own for speed.
  *  @author neal sharma
  */
 class Board {
 
-    /** The number of squares on a side of the board. */
+    /** The number of squares on a side of the Tablut board. */
     static final int SIZE = 9;
 
-    /** The throne (or castle) square and its four surrounding squares. */
-    static final Square THRONE = sq(4, 4),
-        NTHRONE = sq(4, 5),
-        STHRONE = sq(4, 3),
-        WTHRONE = sq(3, 4),
-        ETHRONE = sq(5, 4);
-
-    /** Initial positions of attackers. */
-    static final Square[] INITIAL_ATTACKERS = {
-        sq(0, 3), sq(0, 4), sq(0, 5), sq(1, 4),
-        sq(8, 3), sq(8, 4), sq(8, 5), sq(7, 4),
-        sq(3, 0), sq(4, 0), sq(5, 0), sq(4, 1),
-        sq(3, 8), sq(4, 8), sq(5, 8), sq(4, 7)
-    };
-
-    /** Initial positions of defenders of the king. */
-    static final Square[] INITIAL_DEFENDERS = {
-        NTHRONE, ETHRONE, STHRONE, WTHRONE,
-        sq(4, 6), sq(4, 2), sq(2, 4), sq(6, 4)
-    };
-
-    /** Initializes a game board with SIZE squares on a side in the
-     *  initial position. */
+    /** An upper bound on the number of legal moves for one side, on a
+     *  board of any size. */
+    static final int MAX_MOVES = 2 * (MAX_SIZE - 1) * MAX_SIZE * MAX_SIZE;
+
+    /** Initializes a Tablut board in the initial position. */
     Board() {
-        init();
+        this(Variant.TABLUT);
+    }
+
+    /** Initializes a board of VARIANT in its initial position. */
+    Board(Variant variant) {
+        init(variant);
     }
 
     /** Initializes a copy of MODEL. */
@@ -55,39 +41,131 @@ class Board {
         copy(model);
     }
 
-    /** Copies MODEL into me. */
+    /** Copies MODEL, including its variant, into me. */
     void copy(Board model) {
         if (model == this) {
             return;
         }
-        init();
+        init(model._variant);
         _turn = model._turn;
-        for (int i = 0; i < SIZE; i++) {
-            for (int j = 0; j < SIZE; j++) {
-                _board[i][j] = model.get(j, i);
-            }
+        _winner = model._winner;
+        _repeated = model._repeated;
+        _moveLim = model._moveLim;
+        System.arraycopy(model._board, 0, _board, 0, _board.length);
+        _king = model._king;
+        System.arraycopy(model._masks, 0, _masks, 0, _masks.length);
+        System.arraycopy(model._hashes, 0, _hashes, 0, Symmetry.COUNT);
+        _undoSize = model._undoSize;
+        if (_undo.length < model._undo.length) {
+            _undo = new long[model._undo.length];
+            _history = new long[model._history.length];
         }
+        System.arraycopy(model._undo, 0, _undo, 0, _undoSize);
+        System.arraycopy(model._history, 0, _history, 0, _undoSize + 1);
+        if (_mobility != null) {
+            _mobility.rebuild();
+        }
+        if (_accumulator != null) {
+            _accumulator.rebuild();
+        }
+        clearDestinations();
     }
 
-    /** Clears the board to the initial position. */
+    /** Clears the board to the initial position of my variant, and begins
+     *  a new batch of moves for EngineEvents.MoveBatch. */
     void init() {
+        init(_variant);
+    }
+
+    /** Clears the board to the initial position of VARIANT, which becomes
+     *  my variant, and begins a new batch of moves for
+     *  EngineEvents.MoveBatch.  A change of variant discards any
+     *  mobility() and accumulator(). */
+    void init(Variant variant) {
+        beginMoveBatch();
+        if (!variant.equals(_variant)) {
+            setVariant(variant);
+        }
         _winner = null;
-        _turn = BLACK;
-        _board = new Piece[SIZE][SIZE];
+        _turn = variant.firstTurn();
         _moveLim = Integer.MAX_VALUE;
+        _repeated = false;
 
-        for (int i = 0; i < SIZE; i++) {
-            for (int j = 0; j < SIZE; j++) {
-                _board[i][j] = EMPTY;
-            }
-        }
-        _board[THRONE.row()][THRONE.col()] = KING;
-        for (Square sq: INITIAL_DEFENDERS) {
-            _board[sq.row()][sq.col()] = WHITE;
+        for (int i = 0; i < _board.length; i += 1) {
+            _board[i] = variant.initial(i);
         }
-        for (Square sq: INITIAL_ATTACKERS) {
-            _board[sq.row()][sq.col()] = BLACK;
+        rehash();
+        clearUndo();
+    }
+
+    /** Make VARIANT my variant, copying its tables and sizing my arrays
+     *  for its board. */
+    private void setVariant(Variant variant) {
+        int n = variant.squares();
+        _variant = variant;
+        _size = variant.size();
+        _words = variant.words();
+        _throne = variant.throne();
+        _armedKing = variant.armedKing();
+        _rays = variant.rays();
+        _pawnRays = variant.pawnRays();
+        _neighbor = variant.neighbor();
+        _beyond = variant.beyond();
+        _kingGuards = variant.kingGuards();
+        _zobrist = variant.zobrist();
+        _whiteToMove = variant.whiteToMove();
+        _perms = Symmetry.perms(_size);
+        _squares = Square.squares(_size);
+        _moves = Move.moves(_size);
+        _escape = new boolean[n];
+        _hostile = new boolean[n];
+        for (int i = 0; i < n; i += 1) {
+            _escape[i] = variant.isEscape(i);
+            _hostile[i] = variant.isHostile(i);
         }
+        _board = new Piece[n];
+        _masks = new long[2 * _words];
+        _destinations = new long[_words * n];
+        _destinationsKnown = new long[_words];
+        _mobility = null;
+        _accumulator = null;
+    }
+
+    /** Return my variant. */
+    Variant variant() {
+        return _variant;
+    }
+
+    /** Return the number of rows (and columns) of my board. */
+    int size() {
+        return _size;
+    }
+
+    /** Return my square with index I. */
+    Square square(int i) {
+        return _squares[i];
+    }
+
+    /** Return my throne square. */
+    Square throne() {
+        return _squares[_throne];
+    }
+
+    /** Return true iff the king wins by reaching S. */
+    boolean isEscape(Square s) {
+        return _escape[s.index()];
+    }
+
+    /** Return the move on my board whose 16-bit code (see Move.code) is
+     *  CODE, or null if CODE does not denote one. */
+    Move move(int code) {
+        return Move.mv(code, _size);
+    }
+
+    /** Return the move on my board denoted by STR, or null if STR does
+     *  not denote one (see Move.mv). */
+    Move move(String str) {
+        return Move.mv(str, _size);
     }
 
     /** Set the move limit to LIM.  It is an error if 2*LIM <= moveCount().
@@ -100,6 +178,11 @@ class Board {
         _moveLim = n;
     }
 
+    /** Return the move limit (Integer.MAX_VALUE if none). */
+    int moveLimit() {
+        return _moveLim;
+    }
+
     /** Return a Piece representing whose move it is (WHITE or BLACK). */
     Piece turn() {
         return _turn;
@@ -117,44 +200,56 @@ class Board {
     }
 
     /** Record current position and set winner() next mover if the current
-     *  position is a repeat. */
+     *  position is a repeat.  Only positions since the last capture can
+     *  recur, so the search of the history stops there. */
     private void checkRepeated() {
-        if (_encodedSet.contains(encodedBoard())) {
-            _repeated = true;
-            _winner = _turn;
+        long hash = hash();
+        for (int k = _undoSize - 1; k >= 0; k -= 1) {
+            if ((_undo[k] & CAPTURE_MASK) != 0) {
+                break;
+            }
+            if (_history[k] == hash) {
+                _repeated = true;
+                _winner = _turn;
+                break;
+            }
         }
-        _encodedSet.add(encodedBoard());
+        _history[_undoSize] = hash;
     }
 
     /** Return the number of moves since the initial position that have not been
      *  undone. */
     int moveCount() {
-        return _moveCount;
+        return _undoSize;
     }
 
     /** Return location of the king. */
     Square kingPosition() {
-        for (int i = 0; i < SIZE; i++) {
-            for (int j = 0; j < SIZE; j++) {
-                if (_board[i][j] == KING) {
-                    return sq(j, i);
-                }
+        return _king;
+    }
+
+    /** Return the location of a king on the board, searching all squares,
+     *  or null if there is none. */
+    private Square findKing() {
+        for (int i = 0; i < _board.length; i += 1) {
+            if (_board[i] == KING) {
+                return _squares[i];
             }
         }
         return null;
     }
     /** Return the contents the square at S. */
     final Piece get(Square s) {
-        return get(s.col(), s.row());
+        return _board[s.index()];
     }
 
     /** Return the contents of the square at (COL, ROW), where
-     *  0 <= COL, ROW <= 9. */
+     *  0 <= COL, ROW < size(). */
     final Piece get(int col, int row) {
-        if (!(0 <= col && 0 <= row && row <= 9 && col <= 9)) {
+        if (!(0 <= col && 0 <= row && row < _size && col < _size)) {
             throw Utils.error("Contents out of bounds");
         }
-        return _board[row][col];
+        return _board[row * _size + col];
     }
 
     /** Return the contents of the square at COL ROW. */
@@ -162,14 +257,38 @@ class Board {
         return get(row - '1', col - 'a');
     }
 
-    /** Set square S to P. */
+    /** Set square S, one of my squares, to P. */
     final void put(Piece p, Square s) {
-        _board[s.row()][s.col()] = p;
+        Piece old = _board[s.index()];
+        for (int k = 0; k < Symmetry.COUNT; k += 1) {
+            int i = _perms[k][s.index()];
+            _hashes[k] ^=
+                _zobrist[old.ordinal()][i] ^ _zobrist[p.ordinal()][i];
+        }
+        _board[s.index()] = p;
+        if (old != EMPTY) {
+            _masks[maskIndex(old, s.index())] &= ~(1L << s.index());
+        }
+        if (p != EMPTY) {
+            _masks[maskIndex(p, s.index())] |= 1L << s.index();
+        }
+        if (_mobility != null) {
+            _mobility.update(s.index(), old);
+        }
+        if (_accumulator != null) {
+            _accumulator.update(s.index(), old);
+        }
+        clearDestinations();
+        if (p == KING) {
+            _king = s;
+        } else if (s == _king) {
+            _king = findKing();
+        }
     }
 
     /** Set square COL ROW to P. */
     final void put(Piece p, char col, char row) {
-        put(p, sq(col - 'a', row - '1'));
+        put(p, sq(col - 'a', row - '1', _size));
     }
 
     /** Return true iff FROM - TO is an unblocked rook move on the current
@@ -196,15 +315,59 @@ class Board {
         return get(from).side() == _turn;
     }
 
-    /** Return true iff FROM-TO is a valid move. */
+    /** Return true iff FROM-TO is a valid move.  Takes constant time once
+     *  the destinations from FROM are known (see destinations). */
     boolean isLegal(Square from, Square to) {
-        if (!isLegal(from) || !isUnblockedMove(from, to)) {
+        if (!isLegal(from)) {
             return false;
         }
-        if (get(from) != KING) {
-            return to != THRONE;
+        int i = to.index(), k = _words * from.index() + (i >> 6);
+        return (destinations(from.index())[k] & (1L << i)) != 0;
+    }
+
+    /** Return the squares to which the piece on FROM may legally move, or
+     *  the empty set if FROM does not hold a piece of the side to move. */
+    SquareSet legalDestinations(Square from) {
+        if (!isLegal(from)) {
+            return SquareSet.EMPTY;
+        }
+        return squareSet(destinations(from.index()),
+                         _words * from.index());
+    }
+
+    /** Return _destinations, first making sure that its entry for the
+     *  square with index I is up to date.  The entries are computed on
+     *  demand and all discarded whenever a square changes, so that
+     *  repeated questions about one position cost one walk along the
+     *  rays from each square asked about. */
+    private long[] destinations(int i) {
+        int w = i >> 6;
+        long known = 1L << i;
+        if ((_destinationsKnown[w] & known) == 0) {
+            Piece p = _board[i];
+            int k = _words * i;
+            Arrays.fill(_destinations, k, k + _words, 0L);
+            int[][] rays = p == KING ? _rays : _pawnRays;
+            for (int d = 0; p != EMPTY && d < 4; d += 1) {
+                for (int j : rays[4 * i + d]) {
+                    if (_board[j] != EMPTY) {
+                        break;
+                    }
+                    if (j != _throne || p == KING) {
+                        _destinations[k + (j >> 6)] |= 1L << j;
+                    }
+                }
+            }
+            _destinationsKnown[w] |= known;
+        }
+        return _destinations;
+    }
+
+    /** Mark all entries of _destinations out of date. */
+    private void clearDestinations() {
+        for (int w = 0; w < _words; w += 1) {
+            _destinationsKnown[w] = 0;
         }
-        return true;
     }
 
     /** Return true iff MOVE is a legal move in the current
@@ -215,90 +378,112 @@ class Board {
 
     /** Move FROM-TO, assuming this is a legal move. */
     void makeMove(Square from, Square to) {
+        long delta = from.index() | to.index() << TO_SHIFT
+            | (_winner == null ? 0 : _winner.ordinal()) << WINNER_SHIFT
+            | (_repeated ? REPEATED_FLAG : 0);
+        _captured = _kingCaptured = 0;
         put(get(from), to);
         put(EMPTY, from);
         ifCapture(to);
+        pushUndo(delta | _captured << CAPTURE_SHIFT
+                 | _kingCaptured << KING_CAPTURE_SHIFT);
 
-
-        if (kingPosition() != null && kingPosition().isEdge()) {
+        if (_king != null && _escape[_king.index()]) {
             _winner = WHITE;
         } else if (kingPosition() == null) {
             _winner = BLACK;
-        } else if (legalMoves(_turn.opponent()).isEmpty()) {
+        } else if (!hasMove(_turn.opponent())) {
             _winner = _turn;
-        } else {
-            _moveCount++;
-            if (_moveCount >= _moveLim) {
-                _winner = _turn.opponent();
-            }
+        } else if (moveCount() >= _moveLim) {
+            _winner = _turn.opponent();
         }
         _turn = _turn.opponent();
+        for (int k = 0; k < Symmetry.COUNT; k += 1) {
+            _hashes[k] ^= _whiteToMove;
+        }
         checkRepeated();
+        _batchMoves += 1;
+        if (_batchMoves >= EngineEvents.MOVE_BATCH) {
+            recordMoveBatch();
+        }
+    }
+
+    /** Record the moves made since the last call as an
+     *  EngineEvents.MoveBatch event, and begin the next. */
+    private void recordMoveBatch() {
+        if (_moveBatch.shouldCommit()) {
+            _moveBatch.moves = _batchMoves;
+            _moveBatch.commit();
+        }
+        beginMoveBatch();
+    }
+
+    /** Begin a new EngineEvents.MoveBatch event, discarding any moves not
+     *  yet recorded. */
+    private void beginMoveBatch() {
+        _batchMoves = 0;
+        _moveBatch = new EngineEvents.MoveBatch();
+        _moveBatch.begin();
     }
 
     /** This function checks all capture conditions and makes sure
-     TO does get captured if it meets a condition. */
+     TO does get captured if it meets a condition.  Uses only the
+     precomputed tables of the variant. */
     void ifCapture(Square to) {
-        /**if (kingPosition().isEdge())
-                return; */
-        for (int i = 0; i <= 3; i++) {
-            if (ROOK_MOVES[to.index()][i].size() > 1) {
-                Square other = ROOK_MOVES[to.index()][i].get(1).to();
-                if (exists(other.col(), other.row())) {
-                    if (get(other.between(to)) == _turn.opponent()) {
-                        if (get(other).side() == _turn) {
-                            capture(to, other);
-                        }
-                        if (other == THRONE && get(THRONE) == EMPTY) {
-                            capture(to, other);
-                        }
-                        if (_turn == BLACK && other == THRONE
-                                && get(THRONE) == KING
-                                && throneWhiteHostile()) {
-                            capture(to, other);
-                        }
-                    } else if (_turn == BLACK
-                            && get(other.between(to)) == KING) {
-                        if (Arrays.asList(INITIAL_DEFENDERS)
-                                .contains(kingPosition())
-                                || kingPosition() == THRONE) {
-                            boolean flag = true;
-                            for (int j = 0; j <= 3; j++) {
-                                Square s = ROOK_MOVES[kingPosition()
-                                        .index()][j].get(0).to();
-                                if (s != THRONE) {
-                                    if (get(s) != BLACK) {
-                                        flag = false;
-                                    }
-                                }
-                            }
-                            if (flag) {
-                                capture(to, other);
-                            }
-                        } else {
-                            if (get(other).side() == _turn) {
-                                capture(to, other);
-                            }
-                        }
+        int t = to.index();
+        Piece victim = _turn.opponent();
+        if (!_armedKing && _board[t] == KING) {
+            return;
+        }
+        for (int d = 0; d < 4; d += 1) {
+            int other = _beyond[4 * t + d];
+            if (other < 0) {
+                continue;
+            }
+            Piece prey = _board[_neighbor[4 * t + d]];
+            if (prey == victim) {
+                Piece partner = _board[other];
+                if (partner.side() == _turn
+                       && (_armedKing || partner != KING)
+                    || _hostile[other]
+                    || other == _throne
+                       && (partner == EMPTY
+                           || _turn == BLACK && throneWhiteHostile())) {
+                    capture(to, d);
+                }
+            } else if (prey == KING && _turn == BLACK) {
+                int[] guards = _kingGuards[_neighbor[4 * t + d]];
+                boolean captured;
+                if (guards == null) {
+                    captured = _board[other] == BLACK;
+                } else {
+                    captured = true;
+                    for (int g : guards) {
+                        captured &= _board[g] == BLACK;
                     }
                 }
+                if (captured) {
+                    capture(to, d);
+                }
             }
         }
     }
 
-    /** Determines whether the throne is hostile to white squares.
+    /** Determines whether the throne is hostile to white squares: this is
+     *  so when the king occupies it and three of the four squares next to
+     *  it hold black pieces.
      *  @return something*/
     boolean throneWhiteHostile() {
+        if (_board[_throne] != KING) {
+            return false;
+        }
         int i = 0;
-        for (Square def : INITIAL_DEFENDERS) {
-            if (get(def) == BLACK) {
+        for (int d = 0; d < 4; d += 1) {
+            if (_board[_neighbor[4 * _throne + d]] == BLACK) {
                 i++;
             }
         }
-        if (i == 3) {
-            return true;
-        }
-        return false;
+        return i == 3;
     }
 
 
@@ -307,31 +492,58 @@ class Board {
         makeMove(move.from(), move.to());
     }
 
-    /** Capture the piece between SQ0 and SQ2, assuming a piece just moved to
-     *  SQ0 and the necessary conditions are satisfied. */
-    private void capture(Square sq0, Square sq2) {
-        Square square = sq0.between(sq2);
-        put(EMPTY, square);
+    /** Capture the piece next to SQ0 in direction DIR, assuming a piece
+     *  just moved to SQ0 and the necessary conditions are satisfied. */
+    private void capture(Square sq0, int dir) {
+        Square square = _squares[_neighbor[4 * sq0.index() + dir]];
+        if (get(square) != EMPTY) {
+            _captured |= 1 << dir;
+            if (get(square) == KING) {
+                _kingCaptured |= 1 << dir;
+            }
+            put(EMPTY, square);
+        }
     }
 
-    /** Undo one move.  Has no effect on the initial board. */
+    /** Undo one move.  Has no effect on the initial board.  Takes time
+     *  proportional to the number of pieces the move captured. */
     void undo() {
-        if (_moveCount > 0) {
-            undoPosition();
-            int last = _encodedSet.size() - 1;
-            String prev = _encodedSet.get(last);
-
-            char t = prev.charAt(0);
-            _turn  = charToPiece(t);
-
-            for (int i = 1; i < prev.length(); i++) {
-                Square s = SQUARE_LIST.get(i - 1);
-                _board[s.row()][s.col()] = charToPiece(prev.charAt(i));
+        if (_undoSize > 0) {
+            _undoSize -= 1;
+            long delta = _undo[_undoSize];
+            Square from = _squares[(int) delta & SQUARE_BITS],
+                to = _squares[(int) (delta >> TO_SHIFT) & SQUARE_BITS];
+            int captured = (int) (delta >> CAPTURE_SHIFT) & 0xf,
+                kingCaptured = (int) (delta >> KING_CAPTURE_SHIFT) & 0xf;
+            for (int dir = 0; captured != 0; dir += 1, captured >>= 1) {
+                if ((captured & 1) != 0) {
+                    put((kingCaptured & (1 << dir)) != 0 ? KING : _turn,
+                        to.rookMove(dir, 1));
+                }
             }
-            _moveCount--;
+            put(get(to), from);
+            put(EMPTY, to);
+            _turn = _turn.opponent();
+            for (int k = 0; k < Symmetry.COUNT; k += 1) {
+                _hashes[k] ^= _whiteToMove;
+            }
+            int winner = (int) (delta >> WINNER_SHIFT) & 3;
+            _winner = winner == 0 ? null : PIECES[winner];
+            _repeated = (delta & REPEATED_FLAG) != 0;
         }
     }
 
+    /** Push DELTA onto the undo stack, making room for the position that
+     *  follows it in the history. */
+    private void pushUndo(long delta) {
+        if (_undoSize + 1 == _undo.length) {
+            _undo = Arrays.copyOf(_undo, 2 * _undo.length);
+            _history = Arrays.copyOf(_history, 2 * _history.length);
+        }
+        _undo[_undoSize] = delta;
+        _undoSize += 1;
+    }
+
     /** Returns piece from toString char. @param c */
     Piece charToPiece(char c) {
         if (c == '-') {
@@ -345,32 +557,32 @@ class Board {
         }
     }
 
-    /** Remove record of current position in the set of positions encountered,
-     *  unless it is a repeated position or we are at the first move. */
-    private void undoPosition() {
-        if (!_repeated) {
-            _encodedSet.remove(_encodedSet.size() - 1);
-        }
-    }
-
     /** Clear the undo stack and board-position counts. Does not modify the
      *  current position or win status. */
     void clearUndo() {
-        _encodedSet.clear();
-        _moveCount = 0;
+        _undoSize = 0;
+        _history[0] = hash();
     }
 
     /** Return a new mutable list of all legal moves on the current board for
      *  SIDE (ignoring whose turn it is at the moment). */
     List<Move> legalMoves(Piece side) {
+        assert side != EMPTY;
         ArrayList<Move> moves = new ArrayList<>();
-        for (Square s : pieceLocations(side)) {
-            for (int i = 0; i < SIZE; i++) {
-                for (int j = 0; j < SIZE; j++) {
-                    Move move = mv(s, sq(j, i));
-                    if (move != null && isUnblockedMove(move.from(),
-                            move.to())) {
-                        moves.add(move);
+        int m = maskIndex(side, 0);
+        for (int w = 0; w < _words; w += 1) {
+            for (long bits = _masks[m + w]; bits != 0; bits &= bits - 1) {
+                int from = 64 * w + Long.numberOfTrailingZeros(bits);
+                Piece p = _board[from];
+                int[][] rays = p == KING ? _rays : _pawnRays;
+                for (int d = 0; d < 4; d += 1) {
+                    for (int to : rays[4 * from + d]) {
+                        if (_board[to] != EMPTY) {
+                            break;
+                        }
+                        if (to != _throne || p == KING) {
+                            moves.add(_moves[from][to]);
+                        }
                     }
                 }
             }
@@ -378,10 +590,55 @@ class Board {
         return moves;
     }
 
+    /** Store the codes (see Move.code) of all legal moves on the current
+     *  board for SIDE (ignoring whose turn it is at the moment) in MOVES,
+     *  which must have room for MAX_MOVES codes, and return their number.
+     *  Unlike legalMoves, does not allocate. */
+    int generateMoves(Piece side, int[] moves) {
+        assert side != EMPTY;
+        int n = 0;
+        int m = maskIndex(side, 0);
+        for (int w = 0; w < _words; w += 1) {
+            for (long bits = _masks[m + w]; bits != 0; bits &= bits - 1) {
+                int from = 64 * w + Long.numberOfTrailingZeros(bits);
+                Piece p = _board[from];
+                int[][] rays = p == KING ? _rays : _pawnRays;
+                for (int d = 0; d < 4; d += 1) {
+                    for (int to : rays[4 * from + d]) {
+                        if (_board[to] != EMPTY) {
+                            break;
+                        }
+                        if (to != _throne || p == KING) {
+                            moves[n] = from << 8 | to;
+                            n += 1;
+                        }
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
     /** Return true iff SIDE has a legal move. */
     boolean hasMove(Piece side) {
-        if (legalMoves(side).size() > 0) {
-            return true;
+        assert side != EMPTY;
+        int m = maskIndex(side, 0);
+        for (int w = 0; w < _words; w += 1) {
+            for (long bits = _masks[m + w]; bits != 0; bits &= bits - 1) {
+                int from = 64 * w + Long.numberOfTrailingZeros(bits);
+                Piece p = _board[from];
+                int[][] rays = p == KING ? _rays : _pawnRays;
+                for (int d = 0; d < 4; d += 1) {
+                    for (int to : rays[4 * from + d]) {
+                        if (_board[to] != EMPTY) {
+                            break;
+                        }
+                        if (to != _throne || p == KING) {
+                            return true;
+                        }
+                    }
+                }
+            }
         }
         return false;
     }
@@ -396,68 +653,504 @@ class Board {
      */
     String toString(boolean coordinates) {
         Formatter out = new Formatter();
-        for (int r = SIZE - 1; r >= 0; r -= 1) {
+        for (int r = _size - 1; r >= 0; r -= 1) {
             if (coordinates) {
                 out.format("%2d", r + 1);
             } else {
                 out.format("  ");
             }
-            for (int c = 0; c < SIZE; c += 1) {
+            for (int c = 0; c < _size; c += 1) {
                 out.format(" %s", get(c, r));
             }
             out.format("%n");
         }
         if (coordinates) {
             out.format("  ");
-            for (char c = 'a'; c <= 'i'; c += 1) {
-                out.format(" %c", c);
+            for (int c = 0; c < _size; c += 1) {
+                out.format(" %c", (char) ('a' + c));
             }
             out.format("%n");
         }
         return out.toString();
     }
 
-    /** Return the locations of all pieces on SIDE. */
-    HashSet<Square> pieceLocations(Piece side) {
-        assert side != EMPTY;
-        HashSet<Square> locations = new HashSet<>();
-        for (int i = 0; i < SIZE; i++) {
-            for (int j = 0; j < SIZE; j++) {
-                if (_board[i][j] == side) {
-                    locations.add(sq(j, i));
-                } else if (_board[i][j] == KING
-                        && side == WHITE) {
-                    locations.add(sq(j, i));
-                }
-            }
+    /** Return the reachable-square maps for the current position.  They are
+     *  created on the first call, and from then on are kept up to date
+     *  (at some cost to every change of the board), so that the result
+     *  remains valid. */
+    Mobility mobility() {
+        if (_mobility == null) {
+            _mobility = new Mobility(_variant, _board);
+        }
+        return _mobility;
+    }
+
+    /** Return the accumulator of NETWORK for the current position.  As for
+     *  mobility(), it is created on the first call (or the first with a
+     *  different network) and then kept up to date.  Networks evaluate
+     *  only boards of SIZE squares on a side. */
+    Network.Accumulator accumulator(Network network) {
+        if (_size != SIZE) {
+            throw Utils.error("networks evaluate only %dx%d boards",
+                              SIZE, SIZE);
+        }
+        if (_accumulator == null || _accumulator.network() != network) {
+            _accumulator = new Network.Accumulator(network, _board);
         }
-        return locations;
+        return _accumulator;
+    }
+
+    /** Return the locations of all pieces on SIDE (including the king, for
+     *  WHITE). */
+    SquareSet pieceLocations(Piece side) {
+        assert side != EMPTY;
+        return squareSet(_masks, maskIndex(side, 0));
+    }
+
+    /** Return the locations of all pieces. */
+    SquareSet occupied() {
+        return new SquareSet(_size, occupiedWord(0), occupiedWord(1),
+                             occupiedWord(2));
+    }
+
+    /** Return long number W (0-2) of the mask (as for SquareSet) of the
+     *  locations of all pieces.  Unlike occupied(), does not allocate. */
+    long occupiedWord(int w) {
+        return w < _words ? _masks[w] | _masks[_words + w] : 0;
     }
 
-    /** Return the contents of _board in the order of SQUARE_LIST as a sequence
-     *  of characters: the toString values of the current turn and Pieces. */
+    /** Return the set of my squares whose mask is in the _words longs of
+     *  MASKS starting at K. */
+    private SquareSet squareSet(long[] masks, int k) {
+        return new SquareSet(_size, masks[k],
+                             _words > 1 ? masks[k + 1] : 0,
+                             _words > 2 ? masks[k + 2] : 0);
+    }
+
+    /** Return the index in _masks of the word holding the bit for square
+     *  index I among the pieces on the side of P. */
+    private int maskIndex(Piece p, int i) {
+        return (p == BLACK ? _words : 0) + (i >> 6);
+    }
+
+    /** Return the contents of _board in order of square index as a
+     *  sequence of characters: the toString values of the current turn and
+     *  Pieces. */
     String encodedBoard() {
-        char[] result = new char[Square.SQUARE_LIST.size() + 1];
+        char[] result = new char[_board.length + 1];
         result[0] = turn().toString().charAt(0);
-        for (Square sq : SQUARE_LIST) {
-            result[sq.index() + 1] = get(sq).toString().charAt(0);
+        for (int i = 0; i < _board.length; i += 1) {
+            result[i + 1] = _board[i].toString().charAt(0);
         }
         return new String(result);
     }
 
+    /** Number of bytes in the compact form of a Tablut position: two bits
+     *  per square plus one bit for the side to move. */
+    static final int POSITION_BYTES = positionBytes(SIZE);
+
+    /** Return the number of bytes in the compact form of a position on a
+     *  board with SIZE squares on a side. */
+    static int positionBytes(int size) {
+        return (2 * size * size + 1 + 7) / 8;
+    }
+
+    /** The Pieces indexed by ordinal, which is also their 2-bit code in the
+     *  compact form. */
+    private static final Piece[] PIECES = Piece.values();
+
+    /** Return the current position in compact form:
+     *  positionBytes(size()) bytes holding the 2-bit ordinal of the contents
+     *  of each square in order of index (least significant bits first),
+     *  followed by a bit that is 1 iff it is white's move. */
+    byte[] toBytes() {
+        byte[] result = new byte[positionBytes(_size)];
+        toBytes(result, 0);
+        return result;
+    }
+
+    /** Store the compact form of the current position (see toBytes()) in
+     *  DST starting at OFFSET. */
+    void toBytes(byte[] dst, int offset) {
+        int turnBit = 2 * _board.length;
+        Arrays.fill(dst, offset, offset + positionBytes(_size), (byte) 0);
+        for (int i = 0; i < _board.length; i += 1) {
+            int code = _board[i].ordinal();
+            dst[offset + i / 4] |= code << (2 * (i % 4));
+        }
+        if (_turn == WHITE) {
+            dst[offset + turnBit / 8] |= 1 << (turnBit % 8);
+        }
+    }
+
+    /** Return a new Board set up with the compact position in SRC, in the
+     *  standard variant of the board size for which SRC has the right
+     *  length. */
+    static Board fromBytes(byte[] src) {
+        Board result = new Board();
+        result.initForSize(sizeOfBytes(src.length), src.length + " bytes");
+        result.setPosition(src, 0);
+        return result;
+    }
+
+    /** Set up the compact position (see toBytes()) of my board size in SRC
+     *  starting at OFFSET, as for a new game of my variant whose initial
+     *  position this is.  It is an error if there is not exactly one
+     *  king. */
+    void setPosition(byte[] src, int offset) {
+        init();
+        int turnBit = 2 * _board.length;
+        for (int i = 0; i < _board.length; i += 1) {
+            int code = (src[offset + i / 4] >> (2 * (i % 4))) & 3;
+            _board[i] = PIECES[code];
+        }
+        if (kingCount() != 1) {
+            throw Utils.error("bad position: not exactly one king");
+        }
+        boolean white =
+            (src[offset + turnBit / 8] & (1 << (turnBit % 8))) != 0;
+        _turn = white ? WHITE : BLACK;
+        rehash();
+    }
+
+    /** Return the board size whose compact positions (see toBytes()) are
+     *  LENGTH bytes long, or -1 if there is none. */
+    private static int sizeOfBytes(int length) {
+        for (int n = MIN_SIZE; n <= MAX_SIZE; n += 2) {
+            if (positionBytes(n) == length) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    /** Switch to the standard variant with SIZE squares on a side, unless
+     *  my variant has that size already.  It is an error, reported as a
+     *  bad position TEXT, if there is no such variant. */
+    private void initForSize(int size, String text) {
+        if (size != _size) {
+            Variant variant = Variant.forSize(size);
+            if (variant == null) {
+                throw Utils.error("bad position: %s", text);
+            }
+            init(variant);
+        }
+    }
+
+    /** Return the number of kings on the board. */
+    private int kingCount() {
+        int n = 0;
+        for (Piece p : _board) {
+            if (p == KING) {
+                n += 1;
+            }
+        }
+        return n;
+    }
+
+    /** Return the compact form of the current position as base-64 text. */
+    String toBase64() {
+        return Base64.getUrlEncoder().withoutPadding()
+            .encodeToString(toBytes());
+    }
+
+    /** Return a new Board set up with the position whose base-64 compact
+     *  form (as from toBase64()) is TEXT, as for setBase64. */
+    static Board fromBase64(String text) {
+        Board result = new Board();
+        result.setBase64(text);
+        return result;
+    }
+
+    /** Set up the position whose base-64 compact form (as from toBase64())
+     *  is TEXT, as for a new game whose initial position this is.  If the
+     *  position is for another board size than mine, the game is of the
+     *  standard variant of that size. */
+    void setBase64(String text) {
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(text);
+        } catch (IllegalArgumentException excp) {
+            throw Utils.error("bad position: %s", text);
+        }
+        initForSize(sizeOfBytes(bytes.length), text);
+        setPosition(bytes, 0);
+    }
+
+    /** Return the current position in FEN-like text form: the rows from
+     *  the top down separated by '/', each listing its pieces from the left
+     *  as 'W', 'B', or 'K', with a number standing for that many empty
+     *  squares, followed by a space and 'w' or 'b' for the side to move.
+     *  The initial position of Tablut is
+     *  3BBB3/4B4/4W4/B3W3B/BBWWKWWBB/B3W3B/4W4/4B4/3BBB3 b. */
+    String toFen() {
+        StringBuilder out = new StringBuilder(2 * _board.length);
+        for (int r = _size - 1; r >= 0; r -= 1) {
+            int empty = 0;
+            for (int c = 0; c < _size; c += 1) {
+                Piece p = _board[r * _size + c];
+                if (p == EMPTY) {
+                    empty += 1;
+                    continue;
+                }
+                if (empty > 0) {
+                    out.append(empty);
+                    empty = 0;
+                }
+                out.append(p.toString());
+            }
+            if (empty > 0) {
+                out.append(empty);
+            }
+            out.append(r == 0 ? ' ' : '/');
+        }
+        out.append(_turn == WHITE ? 'w' : 'b');
+        return out.toString();
+    }
+
+    /** Return a new Board set up with the position whose FEN-like form
+     *  (as from toFen()) is FEN, as for setFen. */
+    static Board fromFen(String fen) {
+        Board result = new Board();
+        result.setFen(fen);
+        return result;
+    }
+
+    /** Set up the position whose FEN-like form (as from toFen()) is FEN, as
+     *  for a new game whose initial position this is.  If the position has
+     *  another number of rows than my board, the game is of the standard
+     *  variant of that size.  It is an error if there is not exactly one
+     *  king. */
+    void setFen(String fen) {
+        int rows = 1;
+        for (int k = 0; k < fen.length() && fen.charAt(k) != ' '; k += 1) {
+            if (fen.charAt(k) == '/') {
+                rows += 1;
+            }
+        }
+        initForSize(rows, fen);
+        init();
+        int r = _size - 1, c = 0, k;
+        for (k = 0; k < fen.length() && fen.charAt(k) != ' '; k += 1) {
+            char ch = fen.charAt(k);
+            if (ch == '/') {
+                if (c != _size || r == 0) {
+                    throw Utils.error("bad position: %s", fen);
+                }
+                r -= 1;
+                c = 0;
+            } else if (ch >= '1' && ch <= '9') {
+                int n = ch - '0';
+                if (k + 1 < fen.length()
+                    && Character.isDigit(fen.charAt(k + 1))) {
+                    k += 1;
+                    n = 10 * n + fen.charAt(k) - '0';
+                }
+                if (c + n > _size) {
+                    throw Utils.error("bad position: %s", fen);
+                }
+                for (; n > 0; n -= 1, c += 1) {
+                    _board[r * _size + c] = EMPTY;
+                }
+            } else if ((ch == 'W' || ch == 'B' || ch == 'K') && c < _size) {
+                _board[r * _size + c] = charToPiece(ch);
+                c += 1;
+            } else {
+                throw Utils.error("bad position: %s", fen);
+            }
+        }
+        if (r != 0 || c != _size || k + 2 != fen.length()
+            || (fen.charAt(k + 1) != 'w' && fen.charAt(k + 1) != 'b')
+            || kingCount() != 1) {
+            throw Utils.error("bad position: %s", fen);
+        }
+        _turn = fen.charAt(k + 1) == 'w' ? WHITE : BLACK;
+        rehash();
+    }
+
+    /** Return a 64-bit (Zobrist) hash of the current position and side to
+     *  move.  Equal positions have equal hashes. */
+    long hash() {
+        return _hashes[0];
+    }
+
+    /** Return the hash of the image of the current position under
+     *  symmetry SYM (see Symmetry). */
+    long hash(int sym) {
+        return _hashes[sym];
+    }
+
+    /** Return a hash of the current position that is the same for all
+     *  positions related to it by a symmetry of the board: the smallest of
+     *  the hashes of its eight images.  Intended as the key for caches of
+     *  positions such as transposition tables and opening books. */
+    long canonicalHash() {
+        return _hashes[canonicalSymmetry()];
+    }
+
+    /** Return the symmetry that maps the current position to its canonical
+     *  representative: the image with the smallest hash (the
+     *  lowest-numbered such symmetry if there are several).  Moves in the
+     *  current position map to moves in the representative through
+     *  Symmetry.apply with this symmetry, and back through its inverse. */
+    int canonicalSymmetry() {
+        int best = 0;
+        for (int k = 1; k < Symmetry.COUNT; k += 1) {
+            if (_hashes[k] < _hashes[best]) {
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    /** Return the compact form (see toBytes()) of the canonical
+     *  representative of the current position. */
+    byte[] canonicalBytes() {
+        byte[] result = new byte[positionBytes(_size)];
+        int sym = canonicalSymmetry(), turnBit = 2 * _board.length;
+        for (int i = 0; i < _board.length; i += 1) {
+            int code = _board[i].ordinal();
+            int j = _perms[sym][i];
+            result[j / 4] |= code << (2 * (j % 4));
+        }
+        if (_turn == WHITE) {
+            result[turnBit / 8] |= 1 << (turnBit % 8);
+        }
+        return result;
+    }
+
+    /** Recompute _hashes and the king's position from scratch. */
+    private void rehash() {
+        _king = findKing();
+        clearDestinations();
+        if (_mobility != null) {
+            _mobility.rebuild();
+        }
+        if (_accumulator != null) {
+            _accumulator.rebuild();
+        }
+        Arrays.fill(_masks, 0);
+        for (int i = 0; i < _board.length; i += 1) {
+            if (_board[i] != EMPTY) {
+                _masks[maskIndex(_board[i], i)] |= 1L << i;
+            }
+        }
+        long turn = _turn == WHITE ? _whiteToMove : 0;
+        for (int k = 0; k < Symmetry.COUNT; k += 1) {
+            _hashes[k] = turn;
+        }
+        for (int i = 0; i < _board.length; i += 1) {
+            Piece p = _board[i];
+            for (int k = 0; k < Symmetry.COUNT; k += 1) {
+                _hashes[k] ^= _zobrist[p.ordinal()][_perms[k][i]];
+            }
+        }
+    }
+
+    /** _hashes[k] is the hash of the image of the current position under
+     *  symmetry k, maintained incrementally by put and makeMove. */
+    private final long[] _hashes = new long[Symmetry.COUNT];
+
+    /** The locations of each side's pieces as bit masks of _words longs
+     *  apiece, in the form used by SquareSet: white's pieces (with the
+     *  king) first, then black's.  Maintained by put. */
+    private long[] _masks;
+
+    /** Reachable-square maps, or null if not requested (see
+     *  mobility()). */
+    private Mobility _mobility;
+
+    /** Accumulator of a Network, or null if not requested (see
+     *  accumulator()). */
+    private Network.Accumulator _accumulator;
+
+    /** Number of moves made since _moveBatch began. */
+    private int _batchMoves;
+    /** Event for the current batch of moves (see recordMoveBatch). */
+    private EngineEvents.MoveBatch _moveBatch;
+
+    /** The _words longs of _destinations starting at _words * i are the
+     *  mask (as for SquareSet) of squares to which the piece on the square
+     *  with index i could move, if bit i of _destinationsKnown is set. */
+    private long[] _destinations;
+
+    /** Mask of the squares whose entries in _destinations are up to date.
+     *  Cleared by put. */
+    private long[] _destinationsKnown;
+
     /** Piece whose turn it is (WHITE or BLACK). */
     private Piece _turn;
     /** Cached value of winner on this board, or EMPTY if it has not been
      *  computed. */
     private Piece _winner;
-    /** Number of (still undone) moves since initial position. */
-    private int _moveCount;
     /** True when current board is a repeated position (ending the game). */
     private boolean _repeated;
     /** Move limit. **/
     private int _moveLim;
-    /** Board array. **/
-    private Piece[][] _board;
-    /** Encoded list of boards as strings. **/
-    private ArrayList<String> _encodedSet = new ArrayList<>();
+    /** Board array, indexed by square index. **/
+    private Piece[] _board;
+    /** The square holding the king, or null if there is none. */
+    private Square _king;
+
+    /** My variant. */
+    private Variant _variant;
+    /** The number of rows (and columns) of my board, the number of longs
+     *  in a mask of its squares, and the index of its throne. */
+    private int _size, _words, _throne;
+    /** True iff the king captures and helps to capture. */
+    private boolean _armedKing;
+    /** The rays of my variant (see Variant.rays and Variant.pawnRays). */
+    private int[][] _rays, _pawnRays;
+    /** The squares that capture the king near the throne (see
+     *  Variant.kingGuards). */
+    private int[][] _kingGuards;
+    /** The neighbors of each square (see Variant.neighbor and
+     *  Variant.beyond).  A piece moving to square i captures the piece
+     *  on _neighbor[4 * i + d] against that on _beyond[4 * i + d]. */
+    private int[] _neighbor, _beyond;
+    /** _escape[i] is true iff the king wins on square i. */
+    private boolean[] _escape;
+    /** _hostile[i] is true iff square i, other than the throne, is hostile
+     *  to both sides. */
+    private boolean[] _hostile;
+    /** The Zobrist keys of my variant, indexed by Piece ordinal and
+     *  square. */
+    private long[][] _zobrist;
+    /** Hash key added when it is white's move. */
+    private long _whiteToMove;
+    /** The symmetries of my board (see Symmetry.perms). */
+    private int[][] _perms;
+    /** The squares of my board, by index. */
+    private Square[] _squares;
+    /** The moves on my board (see Move.moves). */
+    private Move[][] _moves;
+
+    /** Layout of the entries of the undo stack.  Each entry is the index
+     *  of the from square, the index of the to square (at TO_SHIFT), a mask
+     *  of the directions from the to square in which pieces were captured
+     *  (at CAPTURE_SHIFT), the subset of those in which the king was
+     *  captured (at KING_CAPTURE_SHIFT), the ordinal of the previous winner
+     *  (at WINNER_SHIFT), and the previous value of repeatedPosition()
+     *  (REPEATED_FLAG). */
+    private static final int
+        SQUARE_BITS = 0xff,
+        TO_SHIFT = 8,
+        CAPTURE_SHIFT = 16,
+        KING_CAPTURE_SHIFT = 20,
+        WINNER_SHIFT = 24;
+    /** See SQUARE_BITS. */
+    private static final long
+        CAPTURE_MASK = 0xfL << CAPTURE_SHIFT,
+        REPEATED_FLAG = 1L << 26;
+
+    /** Stack of moves that may be undone, as described at SQUARE_BITS. */
+    private long[] _undo = new long[64];
+    /** Number of entries in _undo, which is also the move count. */
+    private int _undoSize;
+    /** _history[k] is the hash of the position before move #k on the undo
+     *  stack, and _history[_undoSize] is the current position. */
+    private long[] _history = new long[64];
+    /** Directions from the moved piece in which the current move captured
+     *  a piece and the king, respectively, as masks. */
+    private int _captured, _kingCaptured;
 }
@@ -5,17 +5,24 @@ import ucb.gui2.Pad;
 import java.util.concurrent.ArrayBlockingQueue;
 
 import java.awt.Color;
+import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.Font;
+import java.awt.RenderingHints;
 import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
 import static tablut.Square.sq;
-/** A widget that displays a Tablut game.
+/** A widget that displays a Tablut game, of any variant.  The static
+ *  parts of the board (squares, throne, and grid) are drawn once into a
+ *  background image.
+ *  The board itself is kept in an offscreen buffer, in which only the
+ *  squares whose contents have changed since they were last drawn (for a
+ *  move, its two squares and any captures) are redrawn; each repaint
+ *  then just copies the buffer to the screen.  Both images are drawn
+ *  afresh when the board changes size.
  *  @author neal sharma
  */
 class BoardWidget extends Pad {
-    /** Squares on each side of the board. */
-    static final int SIZE = Board.SIZE;
-
     /** Colors of empty squares, pieces, grid lines, and boundaries. */
     static final Color
         SQUARE_COLOR = new Color(238, 207, 161),
@@ -31,82 +38,224 @@ class BoardWidget extends Pad {
         OFFSET = 2,
         MARGIN = 16;
 
-    /** Side of single square and of board (in pixels). */
-    static final int
-        SQUARE_SIDE = 30,
-        BOARD_SIDE = SQUARE_SIDE * SIZE + 2 * OFFSET + MARGIN;
+    /** Side of single square (in pixels). */
+    static final int SQUARE_SIDE = 30;
 
     /** The font in which to render the "K" in the king. */
     static final Font KING_FONT = new Font("Serif", Font.BOLD, 18);
     /** The font for labeling rows and columns. */
     static final Font ROW_COL_FONT = new Font("SanSerif", Font.PLAIN, 10);
 
-    /** Squares adjacent to the throne. */
-    static final Square[] ADJACENT_THRONE = {
-        Board.NTHRONE, Board.ETHRONE, Board.STHRONE, Board.WTHRONE
-    };
-
     /** A graphical representation of a Tablut board that sends commands
      *  derived from mouse clicks to COMMANDS.  */
     BoardWidget(ArrayBlockingQueue<String> commands) {
         _commands = commands;
         setMouseHandler("click", this::mouseClicked);
-        setPreferredSize(BOARD_SIDE, BOARD_SIDE);
+        setPreferredSize(boardSide(), boardSide());
         _acceptingMoves = false;
     }
 
+    /** Return the side of the displayed board (in pixels). */
+    private int boardSide() {
+        return SQUARE_SIDE * _board.size() + 2 * OFFSET + MARGIN;
+    }
+
     /** Draw the bare board G.  */
     private void drawGrid(Graphics2D g) {
+        int size = _board.size();
+        Square throne = _board.throne();
         g.setColor(SQUARE_COLOR);
-        g.fillRect(0, 0, BOARD_SIDE, BOARD_SIDE);
+        g.fillRect(0, 0, boardSide(), boardSide());
         g.setColor(THRONE_COLOR);
-        g.fillRect(cx(Board.THRONE), cy(Board.THRONE),
-                   SQUARE_SIDE, SQUARE_SIDE);
+        g.fillRect(cx(throne), cy(throne), SQUARE_SIDE, SQUARE_SIDE);
+        g.setColor(ADJACENT_THRONE_COLOR);
+        for (int d = 0; d < 4; d += 1) {
+            Square s = throne.rookMove(d, 1);
+            g.fillRect(cx(s), cy(s), SQUARE_SIDE, SQUARE_SIDE);
+        }
         g.setColor(GRID_LINE_COLOR);
-        for (int k = 0; k <= SIZE; k += 1) {
-            g.drawLine(cx(0), cy(k - 1), cx(SIZE), cy(k - 1));
-            g.drawLine(cx(k), cy(-1), cx(k), cy(SIZE - 1));
+        for (int k = 0; k <= size; k += 1) {
+            g.drawLine(cx(0), cy(k - 1), cx(size), cy(k - 1));
+            g.drawLine(cx(k), cy(-1), cx(k), cy(size - 1));
         }
 
     }
 
     @Override
     public synchronized void paintComponent(Graphics2D g) {
-        drawGrid(g);
-        Square.SQUARE_LIST.iterator().forEachRemaining(s -> drawPiece(g, s));
+        if (_buffer == null) {
+            _background = newImage();
+            Graphics2D bg = _background.createGraphics();
+            drawGrid(bg);
+            bg.dispose();
+            _buffer = newImage();
+            Graphics2D buf = _buffer.createGraphics();
+            buf.drawImage(_background, 0, 0, null);
+            buf.dispose();
+            for (Square s : Square.squares(_board.size())) {
+                markDirty(s);
+            }
+        }
+        if (_dirtyCount > 0) {
+            Graphics2D buf = _buffer.createGraphics();
+            buf.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                                 RenderingHints.VALUE_ANTIALIAS_ON);
+            for (Square s : Square.squares(_board.size())) {
+                if (_dirty[s.index()]) {
+                    drawSquare(buf, s);
+                    _dirty[s.index()] = false;
+                }
+            }
+            buf.dispose();
+            _dirtyCount = 0;
+        }
+        g.drawImage(_buffer, 0, 0, null);
+    }
+
+    /** Return a new image the size of the board. */
+    private BufferedImage newImage() {
+        return new BufferedImage(boardSide(), boardSide(),
+                                 BufferedImage.TYPE_INT_RGB);
+    }
+
+    /** Redraw square S on G from the background and the current board,
+     *  with any highlighting for the current selection, recording what was
+     *  drawn. */
+    private void drawSquare(Graphics2D g, Square s) {
+        int x = cx(s), y = cy(s);
+        g.drawImage(_background, x, y, x + SQUARE_SIDE, y + SQUARE_SIDE,
+                    x, y, x + SQUARE_SIDE, y + SQUARE_SIDE, null);
+        if (s == _selected) {
+            g.setColor(CLICKED_SQUARE_COLOR);
+            g.fillRect(x + 1, y + 1, SQUARE_SIDE - 1, SQUARE_SIDE - 1);
+        } else if (_targets.contains(s)) {
+            g.setColor(CLICKED_SQUARE_COLOR);
+            g.fillOval(x + (SQUARE_SIDE - TARGET_SIDE) / 2,
+                       y + (SQUARE_SIDE - TARGET_SIDE) / 2,
+                       TARGET_SIDE, TARGET_SIDE);
+        }
+        _drawn[s.index()] = _board.get(s);
+        drawPiece(g, s);
     }
 
     /** Draw the contents of S on G. */
     private void drawPiece(Graphics2D g, Square s) {
+        Piece p = _board.get(s);
+        if (p == Piece.EMPTY) {
+            return;
+        }
+        int x = cx(s) + PIECE_INSET, y = cy(s) + PIECE_INSET,
+            side = SQUARE_SIDE - 2 * PIECE_INSET;
+        g.setColor(p == Piece.BLACK ? BLACK_COLOR : WHITE_COLOR);
+        g.fillOval(x, y, side, side);
+        g.setColor(GRID_LINE_COLOR);
+        g.drawOval(x, y, side, side);
+        if (p == Piece.KING) {
+            g.setFont(KING_FONT);
+            FontMetrics metrics = g.getFontMetrics();
+            g.drawString("K", cx(s) + (SQUARE_SIDE
+                                       - metrics.stringWidth("K")) / 2,
+                         cy(s) + (SQUARE_SIDE + metrics.getAscent()
+                                  - metrics.getDescent()) / 2);
+        }
+    }
+
+    /** Mark S to be redrawn at the next repaint. */
+    private void markDirty(Square s) {
+        if (!_dirty[s.index()]) {
+            _dirty[s.index()] = true;
+            _dirtyCount += 1;
+        }
     }
 
-    /** Handle a click on S. */
+    /** Select S, whose piece is to be moved, highlighting it and the
+     *  squares to which it may move, or clear the selection if S is
+     *  null. */
+    private void select(Square s) {
+        if (_selected != null) {
+            markDirty(_selected);
+            for (Square t : _targets) {
+                markDirty(t);
+            }
+        }
+        _selected = s;
+        _targets = s == null ? SquareSet.EMPTY : _board.legalDestinations(s);
+        if (s != null) {
+            markDirty(s);
+            for (Square t : _targets) {
+                markDirty(t);
+            }
+        }
+    }
+
+    /** Handle a click on S.  The first click selects a piece of the side
+     *  to move; a second click on one of its legal destinations sends the
+     *  move.  Clicking another piece of the side to move selects it
+     *  instead, and any other click clears the selection. */
     private void click(Square s) {
+        if (_selected != null && _targets.contains(s)) {
+            _commands.offer(Move.mv(_selected, s).toString());
+            select(null);
+        } else if (s != _selected && _board.isLegal(s)) {
+            select(s);
+        } else {
+            select(null);
+        }
         repaint();
     }
 
     /** Handle mouse click event E. */
     private synchronized void mouseClicked(String unused, MouseEvent e) {
-        int xpos = e.getX(), ypos = e.getY();
+        int xpos = e.getX(), ypos = e.getY(), size = _board.size();
         int x = (xpos - OFFSET - MARGIN) / SQUARE_SIDE,
-            y = (OFFSET - ypos) / SQUARE_SIDE + SIZE - 1;
+            y = (OFFSET - ypos) / SQUARE_SIDE + size - 1;
         if (_acceptingMoves
-            && x >= 0 && x < SIZE && y >= 0 && y < SIZE) {
-            click(sq(x, y));
+            && x >= 0 && x < size && y >= 0 && y < size) {
+            click(sq(x, y, size));
         }
     }
 
     /** Revise the displayed board according to BOARD. */
     synchronized void update(Board board) {
+        boolean resized = board.size() != _board.size();
         _board.copy(board);
-        repaint();
+        if (resized) {
+            resize();
+        }
+        boolean changed = false;
+        for (Square s : Square.squares(_board.size())) {
+            if (_board.get(s) != _drawn[s.index()]) {
+                markDirty(s);
+                changed = true;
+            }
+        }
+        if (changed) {
+            select(null);
+        }
+        if (_dirtyCount > 0) {
+            repaint();
+        }
+    }
+
+    /** Discard the images and what was drawn in them, so as to draw a
+     *  board of the size of _board from scratch. */
+    private void resize() {
+        int n = _board.size() * _board.size();
+        _drawn = new Piece[n];
+        _dirty = new boolean[n];
+        _dirtyCount = 0;
+        _selected = null;
+        _targets = SquareSet.EMPTY;
+        _background = _buffer = null;
+        setPreferredSize(boardSide(), boardSide());
     }
 
     /** Turn on move collection iff COLLECTING, and clear any current
      *  partial selection.  When move collection is off, ignore clicks on
      *  the board. */
-    void setMoveCollection(boolean collecting) {
+    synchronized void setMoveCollection(boolean collecting) {
         _acceptingMoves = collecting;
+        select(null);
         repaint();
     }
 
@@ -119,7 +268,7 @@ class BoardWidget extends Pad {
     /** Return y-pixel coordinate of the upper corners of row Y
      *  relative to the upper-left corner of the board. */
     private int cy(int y) {
-        return (SIZE - y - 1) * SQUARE_SIDE + OFFSET;
+        return (_board.size() - y - 1) * SQUARE_SIDE + OFFSET;
     }
 
     /** Return x-pixel coordinate of the left corner of S
@@ -139,6 +288,30 @@ class BoardWidget extends Pad {
     /** Board being displayed. */
     private final Board _board = new Board();
 
+    /** Gap between the edges of a square and the piece drawn on it. */
+    private static final int PIECE_INSET = 3;
+    /** Diameter of the marks on the squares to which the selected piece
+     *  may move. */
+    private static final int TARGET_SIDE = 10;
+
+    /** The square of the piece selected for moving, or null. */
+    private Square _selected;
+    /** The squares to which the piece on _selected may move. */
+    private SquareSet _targets = SquareSet.EMPTY;
+
+    /** Image of the empty board, or null if not yet drawn. */
+    private BufferedImage _background;
+    /** Image of the board as last drawn, or null if not yet drawn. */
+    private BufferedImage _buffer;
+    /** _drawn[i] is the piece drawn in _buffer on the square with index
+     *  i. */
+    private Piece[] _drawn = new Piece[Board.SIZE * Board.SIZE];
+    /** _dirty[i] is true iff the square with index i must be redrawn in
+     *  _buffer. */
+    private boolean[] _dirty = new boolean[Board.SIZE * Board.SIZE];
+    /** Number of true entries in _dirty. */
+    private int _dirtyCount;
+
     /** True iff accepting moves from user. */
     private boolean _acceptingMoves;
 
@@ -1,8 +1,17 @@
 package tablut;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.function.Consumer;
@@ -40,19 +49,64 @@ final class Controller {
         _strict = strict;
     }
 
+    /** Record every completed or abandoned game of RECORD's variant
+     *  played from the initial position to RECORD, which is closed when
+     *  play ends. */
+    void setRecord(GameRecord.Writer record) {
+        _record = record;
+    }
+
+    /** Play games of VARIANT until a "variant" command says otherwise. */
+    void setVariant(Variant variant) {
+        _board.init(variant);
+    }
+
+    /** If INTERRUPTIBLE, read input on a separate thread so that "quit",
+     *  "undo", and "new" typed while an automated player is thinking take
+     *  effect at once, abandoning its move.  Otherwise (the default, used
+     *  for scripted input so that it replays identically), such commands
+     *  wait for the move to be made. */
+    void setInterruptible(boolean interruptible) {
+        if (interruptible && _inputLines == null) {
+            _inputLines = new LinkedBlockingQueue<>();
+            Thread reader = new Thread(() -> {
+                while (_input.hasNextLine()) {
+                    _inputLines.add(_input.nextLine());
+                    _wakeup.release();
+                }
+                _inputLines.add(END_OF_INPUT);
+                _wakeup.release();
+            }, "input");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
     /** Play Tablut. */
     void play() {
         _playing = true;
         _winner = null;
         _board.init();
+        startRecord();
+        try {
+            playGames();
+        } finally {
+            closeLogs();
+        }
+    }
+
+    /** Process commands until a quit. */
+    private void playGames() {
         while (_playing) {
+            long start = System.nanoTime();
             _view.update(this);
+            Metrics.VIEW_UPDATES.record(System.nanoTime() - start);
             String command;
             if (_winner == null) {
                 if (_board.turn() == WHITE) {
-                    command = _white.myMove();
+                    command = nextMove(_white);
                 } else {
-                    command = _black.myMove();
+                    command = nextMove(_black);
                 }
             } else {
                 command = _nonPlayer.myMove();
@@ -65,13 +119,145 @@ final class Controller {
             } catch (IllegalArgumentException excp) {
                 reportError("Error: %s%n", excp.getMessage());
                 if (_strict) {
+                    closeLogs();
                     System.exit(1);
                 }
             }
+            _thinkingTime = -1;
         }
+    }
+
+    /** Return the next command from PLAYER, whose move it is.  Automated
+     *  players compute their moves in the background, so that the move
+     *  may be abandoned in favor of an interrupting command from the
+     *  input (see setInterruptible).  The time taken is left in
+     *  _thinkingTime, to be charged to PLAYER if the command turns out to
+     *  be a move (see doMove). */
+    private String nextMove(Player player) {
+        long start = System.nanoTime();
+        _thinkingTime = -1;
+        String command = player.isManual() ? player.myMove()
+            : nextAutoMove(player);
+        _thinkingTime = System.nanoTime() - start;
+        _thinkingAutomated = !player.isManual();
+        return command;
+    }
+
+    /** Return the next command from the automated PLAYER, whose move it
+     *  is, as for nextMove.  Waits on _wakeup, which is released when the
+     *  move is done or a line of input arrives, so that either is acted
+     *  on at once.  Interrupts from other sources (see
+     *  Player.pendingInterrupt) are checked every POLL_INTERVAL. */
+    private String nextAutoMove(Player player) {
+        _progress.clear();
+        _wakeup.drainPermits();
+        CompletableFuture<Move> move = player.myMoveAsync(Long.MAX_VALUE);
+        move.whenComplete((result, excp) -> _wakeup.release());
+        try {
+            while (!move.isDone()) {
+                String interrupt = pollInterrupt();
+                if (interrupt == null) {
+                    interrupt = _nonPlayer.pendingInterrupt();
+                }
+                if (interrupt != null) {
+                    move.cancel(false);
+                    return interrupt;
+                }
+                _wakeup.tryAcquire(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+            Move result = move.get();
+            reportMove(result);
+            return result.toString();
+        } catch (ExecutionException excp) {
+            throw new IllegalStateException("move computation failed",
+                                            excp.getCause());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("move computation interrupted",
+                                            excp);
+        } finally {
+            _progress.clear();
+        }
+    }
+
+    /** If any line of input waiting to be read is a command that may
+     *  interrupt an automated player's move, return the next line of
+     *  input, removing it.  Otherwise return null, leaving the input
+     *  unchanged.  The lines before the interrupting command are returned
+     *  first, by this call and the next, so that commands are executed in
+     *  the order given, but the move is abandoned at once. */
+    private String pollInterrupt() {
+        if (_inputLines == null) {
+            return null;
+        }
+        for (String line : _inputLines) {
+            if (line == END_OF_INPUT) {
+                return null;
+            }
+            if (isInterrupt(line)) {
+                return _inputLines.remove().trim();
+            }
+        }
+        return null;
+    }
+
+    /** Return true iff LINE is a command that may interrupt an automated
+     *  player's move: quit, undo, or new. */
+    static boolean isInterrupt(String line) {
+        String cmnd = line.replaceFirst("#.*", "").trim().toLowerCase();
+        return INTERRUPTS.matcher(cmnd).matches();
+    }
+
+    /** Return the time budget for the automated player about to search
+     *  for a move in the current position, or null if there is no clock or
+     *  in deterministic mode, where the clock is ignored. */
+    TimeManager.Budget moveBudget() {
+        if (_timeManager == null || _deterministic) {
+            return null;
+        }
+        return _timeManager.budget(_board);
+    }
+
+    /** Return the intermediate results of automated players' searches
+     *  for the move in progress, for display. */
+    SearchProgress progress() {
+        return _progress;
+    }
+
+    /** Write out the game in progress, if any, and close the log and game
+     *  record. */
+    private void closeLogs() {
         if (_logFile != null) {
             _logFile.close();
+            _logFile = null;
+        }
+        if (_record != null) {
+            try {
+                recordGame();
+                _record.close();
+            } catch (IOException excp) {
+                reportError("Could not write game record: %s",
+                            excp.getMessage());
+            }
+            _record = null;
+        }
+    }
+
+    /** Start recording a new game from the initial position. */
+    private void startRecord() {
+        _recordLength = _recordLimit = 0;
+        _recordable = true;
+    }
+
+    /** Append the game in progress to the game record, if it is non-empty,
+     *  of the record's variant, and started from the initial position. */
+    private void recordGame() throws IOException {
+        if (_record != null && _recordable && _recordLength > 0
+            && _board.variant().equals(_record.variant())) {
+            _record.write(_recordMoves, _recordLength, _recordLimit,
+                          GameRecord.resultOf(_board));
         }
+        startRecord();
     }
 
     /** Return the current board.  The value returned should not be
@@ -90,9 +276,34 @@ final class Controller {
 
     /** Re-seed the pseudo-random number generator (PRNG) that supplies randInt
      *  with the value SEED. Identical seeds produce identical sequences.
-     *  Initially, the PRNG is randomly seeded. */
+     *  Initially, the PRNG is randomly seeded.  Also puts automated
+     *  players in deterministic mode (see deterministic()) and empties their
+     *  search cache. */
     void setSeed(long seed) {
         _randGen.setSeed(seed);
+        _deterministic = true;
+        if (_searchCache != null) {
+            _searchCache.clear();
+        }
+    }
+
+    /** Return true iff automated players should be deterministic, as they
+     *  are once a seed has been set.  Their choices then depend only on
+     *  the seed and the commands since, so that repeating a script repeats
+     *  their moves and search statistics exactly: all their random choices
+     *  come from randInt, they search on a single thread with a cache of
+     *  their own (see searchCache()), and they ignore the clock. */
+    boolean deterministic() {
+        return _deterministic;
+    }
+
+    /** Return the search cache used by automated players in deterministic
+     *  mode, in place of the one shared by the whole process. */
+    SearchCache searchCache() {
+        if (_searchCache == null) {
+            _searchCache = new SearchCache(SearchCache.DEFAULT_ENTRIES);
+        }
+        return _searchCache;
     }
 
     /** Return the next line of input, or null if there is no more. First
@@ -103,7 +314,19 @@ final class Controller {
             System.out.print("> ");
             System.out.flush();
         }
-        if (_input.hasNextLine()) {
+        if (_inputLines != null) {
+            String line;
+            try {
+                line = _inputLines.take();
+            } catch (InterruptedException excp) {
+                throw new IllegalStateException("input interrupted");
+            }
+            if (line == END_OF_INPUT) {
+                _inputLines.add(END_OF_INPUT);
+                return null;
+            }
+            return line.trim();
+        } else if (_input.hasNextLine()) {
             return _input.nextLine().trim();
         } else {
             return null;
@@ -140,22 +363,27 @@ final class Controller {
     void logComment(String format, Object... args) {
         if (_logFile != null) {
             _logFile.printf("# " + format + "%n", args);
-            _logFile.flush();
         }
     }
 
-    /** A Command is pair (<pattern>, <processor>), where <pattern> is a
+    /** A Command is a triple (<name>, <pattern>, <processor>), where <name>
+     *  identifies the kind of command (for monitoring), <pattern> is a
      *  Matcher that matches instances of a particular command, and
      *  <processor> is a functional object whose .accept method takes a
      *  successfully matched Matcher and performs some operation. */
     private static class Command {
-        /** A new Command that matches PATN (a regular expression) and uses
-         *  PROCESSOR to process commands that match the pattern. */
-        Command(String patn, Consumer<Matcher> processor) {
+        /** A new Command named NAME that matches PATN (a regular
+         *  expression) and uses PROCESSOR to process commands that match
+         *  the pattern. */
+        Command(String name, String patn, Consumer<Matcher> processor) {
+            _name = name;
             _matcher = Pattern.compile(patn).matcher("");
             _processor = processor;
         }
 
+        /** My name. */
+        protected final String _name;
+
         /** A Matcher matching my pattern. */
         protected final Matcher _matcher;
         /** The function object that implements my command. */
@@ -165,27 +393,48 @@ final class Controller {
     /** A list of Commands describing the valid textual commands to the
      *  Tablut program and the methods to process them. */
     private Command[] _commands = {
-        new Command("quit$", this::doQuit),
-        new Command("new$", this::doNew),
-        new Command("seed\\s+(\\d+)$", this::doSeed),
-        new Command("dump$", this::doDump),
-        new Command("undo$", this::doUndo),
-        new Command("manual\\s+(white|black)$", this::doManual),
-        new Command("auto\\s+(white|black)$", this::doAuto),
-        new Command("limit\\s+(\\d+)$", this::doLimit),
-        new Command("toggle\\s+" + SQ + "$", this::doToggle),
-        new Command(Move.MOVE_PATTERN.pattern(), this::doMove)
+        new Command("quit", "quit$", this::doQuit),
+        new Command("new", "new$", this::doNew),
+        new Command("variant",
+                    "variant\\s+(\\w+)(?:\\s+(edge|corner))?(\\s+unarmed)?$",
+                    this::doVariant),
+        new Command("seed", "seed\\s+(\\d+)$", this::doSeed),
+        new Command("dump", "dump$", this::doDump),
+        new Command("analyze",
+                    "analyze(?:\\s+(\\d+))?(?:\\s+(depth|time)\\s+(\\d+))?$",
+                    this::doAnalyze),
+        new Command("undo", "undo$", this::doUndo),
+        new Command("manual", "manual\\s+(white|black)$", this::doManual),
+        new Command("auto", "auto\\s+(white|black)(?:\\s+(mcts))?$",
+                    this::doAuto),
+        new Command("limit", "limit\\s+(\\d+)$", this::doLimit),
+        new Command("clock", "clock(?:\\s+(off|\\d+)(?:\\s+(\\d+))?)?$",
+                    this::doClock),
+        new Command("toggle", "toggle\\s+" + SQ + "$", this::doToggle),
+        new Command("metrics", "metrics$", this::doMetrics),
+        new Command("move", Move.MOVE_PATTERN.pattern(), this::doMove)
     };
 
+    /** Default search depth for "analyze". */
+    static final int ANALYSIS_DEPTH = 3;
+
+    /** Commands that may interrupt an automated player's move. */
+    private static final Pattern INTERRUPTS = Pattern.compile("quit|undo|new");
+
+    /** Milliseconds between checks for interrupting commands from other
+     *  players while an automated player is thinking. */
+    private static final long POLL_INTERVAL = 50;
+
     /** A Matcher whose Pattern matches comments. */
     private static final Matcher COMMENT = Pattern.compile("#.*").matcher("");
 
     /** Check that CMND is one of the valid Tablut commands and execute it, if
-     *  so, raising an IllegalArgumentException otherwise. */
+     *  so, raising an IllegalArgumentException otherwise.  Records each
+     *  valid command as an EngineEvents.Command event, and its time in
+     *  Metrics.COMMANDS. */
     private void executeCommand(String cmnd) {
         if (_logFile != null) {
             _logFile.println(cmnd);
-            _logFile.flush();
         }
 
         COMMENT.reset(cmnd);
@@ -197,7 +446,19 @@ final class Controller {
         for (Command parser : _commands) {
             parser._matcher.reset(cmnd);
             if (parser._matcher.matches()) {
-                parser._processor.accept(parser._matcher);
+                EngineEvents.Command event = new EngineEvents.Command();
+                event.begin();
+                long start = System.nanoTime();
+                try {
+                    parser._processor.accept(parser._matcher);
+                    event.succeeded = true;
+                } finally {
+                    Metrics.COMMANDS.record(System.nanoTime() - start);
+                    if (event.shouldCommit()) {
+                        event.command = parser._name;
+                        event.commit();
+                    }
+                }
                 return;
             }
         }
@@ -206,8 +467,34 @@ final class Controller {
 
     /** Command "new". */
     private void doNew(Matcher unused) {
+        try {
+            recordGame();
+        } catch (IOException excp) {
+            throw error("could not write game record");
+        }
         _board.init();
         _winner = null;
+        if (_timeManager != null) {
+            _timeManager.reset();
+        }
+    }
+
+    /** Command "variant <name> [edge|corner] [unarmed]": start a new game
+     *  of the variant described by the groups of MAT (see
+     *  Variant.forOptions). */
+    private void doVariant(Matcher mat) {
+        Variant variant = Variant.forOptions(mat.group(1), mat.group(2),
+                                             mat.group(3) != null);
+        try {
+            recordGame();
+        } catch (IOException excp) {
+            throw error("could not write game record");
+        }
+        _board.init(variant);
+        _winner = null;
+        if (_timeManager != null) {
+            _timeManager.reset();
+        }
     }
 
     /** Command "manual <color>", where <color> is COLOR.group(1). */
@@ -225,14 +512,18 @@ final class Controller {
         _view.update(this);
     }
 
-    /** Command "auto <color>", where <color> is COLOR.group(1). */
+    /** Command "auto <color> [mcts]", where <color> is COLOR.group(1).
+     *  With "mcts" (COLOR.group(2)), the player searches by Monte Carlo
+     *  tree search rather than alpha-beta. */
     private void doAuto(Matcher color) {
+        Player template =
+            color.group(2) == null ? _autoPlayerTemplate : MCTS_TEMPLATE;
         switch (color.group(1)) {
         case "black":
-            _black = _autoPlayerTemplate.create(BLACK, this);
+            _black = template.create(BLACK, this);
             break;
         case "white":
-            _white = _autoPlayerTemplate.create(WHITE, this);
+            _white = template.create(WHITE, this);
             break;
         default:
             assert false;
@@ -244,7 +535,7 @@ final class Controller {
      *  The contents of the square are modified:
      *  EMPTY -> WHITE -> KING -> BLACK .< ENPTY". Clear Undo information. */
     private void doToggle(Matcher mat) {
-        Square sq = sq(mat.group(1));
+        Square sq = sq(mat.group(1), _board.size());
         Piece piece;
         switch (_board.get(sq)) {
         case EMPTY: piece = WHITE; break;
@@ -255,6 +546,7 @@ final class Controller {
         }
         _board.put(piece, sq);
         _board.clearUndo();
+        _recordable = false;
     }
 
     /** Command "quit". */
@@ -275,14 +567,54 @@ final class Controller {
     private void doLimit(Matcher mat) {
         try {
             _board.setMoveLimit(Integer.parseInt(mat.group(1)));
+            _recordLimit = Integer.parseInt(mat.group(1));
         } catch (NumberFormatException excp) {
             throw error("number too large");
         }
     }
 
+    /** Command "clock [MILLIS [INCREMENT] | off]": give each side a
+     *  clock with MILLIS milliseconds for the game, plus INCREMENT (default
+     *  0) milliseconds per move, for automated players to budget their time
+     *  against; or remove the clock; or, with no arguments, print the time
+     *  left.  The groups of MAT are the arguments. */
+    private void doClock(Matcher mat) {
+        try {
+            if (mat.group(1) == null) {
+                if (_timeManager == null) {
+                    System.out.printf("No clock.%n");
+                } else {
+                    System.out.printf("Clock: white %d ms, black %d ms%n",
+                                      _timeManager.remainingMillis(WHITE),
+                                      _timeManager.remainingMillis(BLACK));
+                }
+            } else if (mat.group(1).equals("off")) {
+                _timeManager = null;
+            } else {
+                long increment =
+                    mat.group(2) == null ? 0 : Long.parseLong(mat.group(2));
+                _timeManager =
+                    new TimeManager(Long.parseLong(mat.group(1)), increment);
+            }
+        } catch (ArithmeticException | NumberFormatException excp) {
+            throw error("number too large");
+        }
+    }
+
     /** Execute a move command matched in MAT. */
     private void doMove(Matcher mat) {
-        _board.makeMove(Move.mv(mat.group(0)));
+        Move move = _board.move(mat.group(0));
+        if (move == null) {
+            throw error("invalid move: %s", mat.group(0));
+        }
+        Piece mover = _board.turn();
+        _board.makeMove(move);
+        chargeMove(mover);
+        if (_recordLength == _recordMoves.length) {
+            _recordMoves = Arrays.copyOf(_recordMoves, 2 * _recordLength);
+        }
+        _recordMoves[_recordLength] = (short) move.code();
+        _recordLength += 1;
         if (_winner == null) {
             _winner = _board.winner();
             if (_winner != null) {
@@ -292,17 +624,70 @@ final class Controller {
         }
     }
 
+    /** Charge MOVER, who has just moved, for the time taken to choose the
+     *  move, if it came from nextMove: on the clock, if any, and in
+     *  Metrics.MOVES for automated players.  Time spent producing other
+     *  commands (and moves from elsewhere) is not charged. */
+    private void chargeMove(Piece mover) {
+        if (_thinkingTime < 0) {
+            return;
+        }
+        if (_timeManager != null) {
+            _timeManager.charge(mover, _thinkingTime);
+        }
+        if (_thinkingAutomated) {
+            Metrics.MOVES.record(_thinkingTime);
+        }
+        _thinkingTime = -1;
+    }
+
     /** Dump the contents of the board on standard output. */
     private void doDump(Matcher unused) {
         System.out.printf("===%n%s===%n", _board);
     }
 
+    /** Command "metrics": print latency percentiles (see Metrics). */
+    private void doMetrics(Matcher unused) {
+        System.out.print(Metrics.report());
+    }
+
+    /** Command "analyze [K] [depth D | time MS]": print the best K
+     *  moves (default 3) in the current position with their scores and
+     *  principal variations, from a search of depth D or for MS
+     *  milliseconds, whose values are the groups of MAT, followed by the
+     *  number of positions searched. */
+    private void doAnalyze(Matcher mat) {
+        if (_board.winner() != null) {
+            throw error("game is over");
+        }
+        AI ai = new AI(_board.turn(), this);
+        List<AI.Line> lines;
+        try {
+            int k = mat.group(1) == null ? 3 : Integer.parseInt(mat.group(1));
+            if (mat.group(2) == null) {
+                lines = ai.analyze(_board, k, ANALYSIS_DEPTH);
+            } else if (mat.group(2).equals("depth")) {
+                lines = ai.analyze(_board, k, Integer.parseInt(mat.group(3)));
+            } else {
+                lines = ai.analyzeFor(_board, k, Long.parseLong(mat.group(3)));
+            }
+        } catch (NumberFormatException excp) {
+            throw error("number too large");
+        }
+        System.out.printf("===%n");
+        for (int i = 0; i < lines.size(); i += 1) {
+            System.out.printf("%d. %s%n", i + 1, lines.get(i));
+        }
+        System.out.printf("=== %d nodes%n", ai.nodes());
+    }
+
     /** Undo back to before my last move, if there was one (otherwise does
      *  nothing). */
     private void doUndo(Matcher unused) {
         if (_board.moveCount() > 1) {
             _board.undo();
             _board.undo();
+            _recordLength = Math.max(0, _recordLength - 2);
             _winner = null;
             _view.update(this);
         }
@@ -323,12 +708,62 @@ final class Controller {
     /** My pseudo-random number generator. */
     private Random _randGen = new Random();
 
+    /** True iff automated players should be deterministic. */
+    private boolean _deterministic;
+
+    /** Search cache for automated players in deterministic mode, or null
+     *  if not yet needed. */
+    private SearchCache _searchCache;
+
+    /** Game clock, or null if none. */
+    private TimeManager _timeManager;
+
+    /** Nanoseconds taken by the player to move to produce the last
+     *  command returned by nextMove, or -1 if it has been charged or the
+     *  last command did not come from nextMove. */
+    private long _thinkingTime = -1;
+
+    /** True iff the last command returned by nextMove came from an
+     *  automated player. */
+    private boolean _thinkingAutomated;
+
+    /** Progress of the automated player's search for its move. */
+    private final SearchProgress _progress = new SearchProgress();
+
     /** Log file, or null if absent. */
     private PrintStream _logFile;
 
+    /** Binary game record, or null if absent. */
+    private GameRecord.Writer _record;
+
+    /** Move codes of the game in progress, for _record. */
+    private short[] _recordMoves = new short[64];
+
+    /** Number of moves in _recordMoves. */
+    private int _recordLength;
+
+    /** Move limit of the game in progress, or 0 if none. */
+    private int _recordLimit;
+
+    /** True iff the game in progress started from the initial position
+     *  and may be recorded. */
+    private boolean _recordable;
+
     /** Input source. */
     private Scanner _input;
 
+    /** If non-null, lines read from _input by a separate thread, ending
+     *  with END_OF_INPUT (see setInterruptible). */
+    private BlockingQueue<String> _inputLines;
+
+    /** Released once for each line added to _inputLines, and when an
+     *  automated player's move is done (see nextAutoMove). */
+    private final Semaphore _wakeup = new Semaphore(0);
+
+    /** Marks the end of _inputLines.  Compared by identity, so that it
+     *  cannot be confused with any input line. */
+    private static final String END_OF_INPUT = new String("");
+
     /** The current White and Black players, each created from
      *  _autoPlayerTemplate or _manualPlayerTemplate. */
     private Player _white, _black;
@@ -340,6 +775,9 @@ final class Controller {
     /** The current templates for manual and automated players. */
     private Player _autoPlayerTemplate, _manualPlayerTemplate;
 
+    /** Template for players requested with "auto <color> mcts". */
+    private static final Player MCTS_TEMPLATE = new MctsAI();
+
     /** Reporter for messages and errors. */
     private Reporter _reporter;
 
@@ -0,0 +1,105 @@
+package tablut;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** Java Flight Recorder events for the engine's hot paths, so that
+ *  recordings show which searches and commands coincide with collections
+ *  or CPU spikes.  Each is a plain JFR event: created, begun, and (when
+ *  shouldCommit() says so) filled in and committed.  While recording is
+ *  off, shouldCommit() is false and the JIT compiler removes the rest,
+ *  including the event object.  Fields are named for the attributes in
+ *  recordings rather than in this package's style.
+ *  @author neal sharma
+ */
+final class EngineEvents {
+
+    /** Number of moves made on a Board per MoveBatch event. */
+    static final int MOVE_BATCH = 4096;
+
+    /** Not instantiable. */
+    private EngineEvents() {
+    }
+
+    /** The search for one move by an AI. */
+    @Name("tablut.Search")
+    @Label("Search")
+    @Category("Tablut")
+    @Description("The search for one move by an AI")
+    @StackTrace(false)
+    static final class Search extends Event {
+        /** The side to move. */
+        @Label("Side")
+        String side;
+        /** Depth of the deepest completed iteration, or length of the
+         *  proof. */
+        @Label("Depth")
+        int depth;
+        /** Positions examined. */
+        @Label("Nodes")
+        long nodes;
+        /** Score of the chosen move, positive favoring white (wins being
+         *  near Integer.MAX_VALUE in magnitude). */
+        @Label("Score")
+        int score;
+        /** The chosen move. */
+        @Label("Move")
+        String move;
+        /** True iff the move comes from a proof of a forced win. */
+        @Label("Proved")
+        boolean proved;
+    }
+
+    /** One iteration of deepening in the search for a move. */
+    @Name("tablut.SearchIteration")
+    @Label("Search Iteration")
+    @Category("Tablut")
+    @Description("One completed iteration of deepening in a search")
+    @StackTrace(false)
+    static final class Iteration extends Event {
+        /** Depth of the iteration. */
+        @Label("Depth")
+        int depth;
+        /** Positions examined by the search so far. */
+        @Label("Nodes")
+        long nodes;
+        /** Score of the best move, as for Search. */
+        @Label("Score")
+        int score;
+        /** Best move found by the iteration. */
+        @Label("Move")
+        String move;
+    }
+
+    /** The execution of one command by a Controller. */
+    @Name("tablut.Command")
+    @Label("Command")
+    @Category("Tablut")
+    @Description("Execution of one command by the controller")
+    @StackTrace(false)
+    static final class Command extends Event {
+        /** The kind of command ("move", "undo", ...). */
+        @Label("Command")
+        String command;
+        /** False iff the command was rejected. */
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    /** MOVE_BATCH consecutive moves made on one Board (a sample of the
+     *  rate of makeMove, which is too frequent for an event each). */
+    @Name("tablut.MoveBatch")
+    @Label("Move Batch")
+    @Category("Tablut")
+    @Description("A batch of consecutive moves made on one board")
+    @StackTrace(false)
+    static final class MoveBatch extends Event {
+        /** Number of moves in the batch. */
+        @Label("Moves")
+        int moves;
+    }
+}
@@ -7,6 +7,7 @@ import java.awt.Dimension;
 import javax.swing.JEditorPane;
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
+import javax.swing.Timer;
 
 import java.io.InputStream;
 import java.io.IOException;
@@ -31,6 +32,9 @@ class GUI extends TopLevel implements View, Reporter {
     /** Resource name of Tablut help text. */
     static final String HELP_TEXT = "tablut/Help.html";
 
+    /** Milliseconds between refreshes of the search progress display. */
+    static final int PROGRESS_INTERVAL = 200;
+
     /** A new window with given TITLE providing a view of a Tablut board. */
     GUI(String title) {
         super(title, true);
@@ -44,7 +48,13 @@ class GUI extends TopLevel implements View, Reporter {
                  new LayoutSpec("x", 0, "y", 0,
                                 "height", 1,
                                 "width", 3));
-
+        addLabel(" ", "Progress",
+                 new LayoutSpec("x", 0, "y", 2,
+                                "height", 1,
+                                "width", 3));
+        Timer progressTimer = new Timer(PROGRESS_INTERVAL,
+                                        e -> showProgress());
+        progressTimer.start();
     }
 
     /** Response to "Quit" button click. */
@@ -53,6 +63,20 @@ class GUI extends TopLevel implements View, Reporter {
     }
 
 
+    /** Show the latest progress report from an automated player's search,
+     *  if any.  Runs on the event thread, so that the display stays
+     *  current however long the search takes. */
+    private void showProgress() {
+        SearchProgress progress = _progress;
+        SearchProgress.Report report =
+            progress == null ? null : progress.latest();
+        String text = report == null ? " " : "Thinking: " + report;
+        if (!text.equals(_progressText)) {
+            _progressText = text;
+            setLabel("Progress", text);
+        }
+    }
+
     /** Return the next command from our widget, waiting for it as necessary.
      *  The BoardWidget uses _pendingCommands to queue up moves that it
      *  receives.  Thie class uses _pendingCommands to queue up commands that
@@ -68,9 +92,21 @@ class GUI extends TopLevel implements View, Reporter {
         }
     }
 
+    /** Return the next pending command, removing it, if it is one that
+     *  may interrupt an automated player's move (see
+     *  Controller.isInterrupt).  Otherwise return null without waiting. */
+    String pollInterrupt() {
+        String cmnd = _pendingCommands.peek();
+        if (cmnd != null && Controller.isInterrupt(cmnd)) {
+            return _pendingCommands.poll();
+        }
+        return null;
+    }
+
     @Override
     public void update(Controller controller) {
         Board board = controller.board();
+        _progress = controller.progress();
 
         _widget.update(board);
         if (board.winner() != null) {
@@ -140,6 +176,13 @@ class GUI extends TopLevel implements View, Reporter {
     /** The board widget. */
     private BoardWidget _widget;
 
+    /** Search progress of the controller I display, or null if not yet
+     *  known. */
+    private volatile SearchProgress _progress;
+
+    /** Text currently shown in the progress label. */
+    private String _progressText = " ";
+
     /** Queue of pending commands resulting from menu clicks and moves on the
      *  board.  We use a blocking queue because the responses to clicks
      *  on the board and on menus happen in parallel to the methods that
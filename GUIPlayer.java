@@ -35,13 +35,18 @@ class GUIPlayer extends Player implements Reporter {
             if (command == null) {
                 command = _gui.readCommand();
             }
-            Move move = Move.mv(command);
+            Move move = board().move(command);
             if (move == null || board().isLegal(move)) {
                 return command;
             }
         }
     }
 
+    @Override
+    String pendingInterrupt() {
+        return _gui.pollInterrupt();
+    }
+
     @Override
     public void reportError(String fmt, Object... args) {
         _gui.reportError(fmt, args);
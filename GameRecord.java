@@ -0,0 +1,286 @@
+package tablut;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.*;
+import static tablut.Piece.*;
+import static tablut.Utils.*;
+
+/** A compact binary record of one game played from the initial position
+ *  of a variant.  A record file consists of a header (the four bytes
+ *  "TBLR", a version byte, the board size, a rules byte, and a reserved
+ *  byte) followed by any number of games of the standard variant of that
+ *  size (see Variant.forSize), modified by the rules byte: CORNER_RULE
+ *  for corner escape, and UNARMED_RULE for an unarmed king.  Each game
+ *  is an unsigned 16-bit move count, an unsigned 16-bit move limit (0 for
+ *  none), the moves themselves as 16-bit codes (see Move.code), and a
+ *  result byte: 0 for an unfinished game, 1 for a white win, 2 for a
+ *  black win, plus REPEATED if the game ended in a repeated position.
+ *  All values are big-endian.
+ *  @author neal sharma
+ */
+final class GameRecord {
+
+    /** The four bytes at the start of every record file. */
+    static final int MAGIC = 0x54424c52;
+
+    /** The current format version. */
+    static final int VERSION = 1;
+
+    /** Size of the file header in bytes. */
+    static final int HEADER_SIZE = 8;
+
+    /** Rules flag for a variant with corner escape. */
+    static final int CORNER_RULE = 1;
+
+    /** Rules flag for a variant whose king is unarmed. */
+    static final int UNARMED_RULE = 2;
+
+    /** Result flag marking a win by repetition. */
+    static final int REPEATED = 4;
+
+    /** Largest number of moves a single record may hold. */
+    static final int MAX_MOVES = 0xffff;
+
+    /** Size of the I/O buffers used by Writer and Reader.  Large enough to
+     *  hold any single game. */
+    private static final int BUFFER_SIZE = 1 << 18;
+
+    /** A record of the game MOVES (move codes) with move limit LIMIT (0
+     *  for none), whose result byte is RESULT. */
+    GameRecord(short[] moves, int limit, int result) {
+        _moves = moves;
+        _limit = limit;
+        _result = result;
+    }
+
+    /** Return the number of moves in this game. */
+    int size() {
+        return _moves.length;
+    }
+
+    /** Return the code of move #K (numbering from 0). */
+    int moveCode(int k) {
+        return _moves[k] & 0xffff;
+    }
+
+    /** Return the move limit, or 0 if there was none. */
+    int limit() {
+        return _limit;
+    }
+
+    /** Return the recorded winner, or null if the game was unfinished. */
+    Piece winner() {
+        return resultWinner(_result);
+    }
+
+    /** Return true iff the game ended in a repeated position. */
+    boolean repeated() {
+        return (_result & REPEATED) != 0;
+    }
+
+    /** Return my result byte. */
+    int result() {
+        return _result;
+    }
+
+    /** Return the result byte describing the outcome of BOARD. */
+    static int resultOf(Board board) {
+        int result;
+        if (board.winner() == WHITE) {
+            result = 1;
+        } else if (board.winner() == BLACK) {
+            result = 2;
+        } else {
+            return 0;
+        }
+        return board.repeatedPosition() ? result | REPEATED : result;
+    }
+
+    /** Return the winner encoded by result byte RESULT, or null. */
+    static Piece resultWinner(int result) {
+        switch (result & 3) {
+        case 1:
+            return WHITE;
+        case 2:
+            return BLACK;
+        default:
+            return null;
+        }
+    }
+
+    /** Writes game records to a file through a buffered channel.  Nothing
+     *  is guaranteed to reach the file until flush or close. */
+    static class Writer implements AutoCloseable {
+
+        /** A Writer of Tablut games that creates (or truncates) FILE and
+         *  writes the record header to it. */
+        Writer(Path file) throws IOException {
+            this(file, Variant.TABLUT);
+        }
+
+        /** A Writer of games of VARIANT, which must be a standard variant,
+         *  possibly with different rules, that creates (or truncates) FILE
+         *  and writes the record header to it. */
+        Writer(Path file, Variant variant) throws IOException {
+            Variant standard = Variant.forSize(variant.size());
+            if (standard == null
+                || !standard.name().equals(variant.name())) {
+                throw error("cannot record variant %s", variant);
+            }
+            int rules = (variant.cornerEscape() ? CORNER_RULE : 0)
+                | (variant.armedKing() ? 0 : UNARMED_RULE);
+            _variant = variant;
+            _channel = FileChannel.open(file, CREATE, TRUNCATE_EXISTING,
+                                        WRITE);
+            _buf.putInt(MAGIC).put((byte) VERSION).put((byte) variant.size())
+                .put((byte) rules).put((byte) 0);
+        }
+
+        /** Return the variant of the games I record. */
+        Variant variant() {
+            return _variant;
+        }
+
+        /** Append the game consisting of the first N move codes in MOVES,
+         *  played under move limit LIMIT (0 if none), and having result
+         *  byte RESULT. */
+        void write(short[] moves, int n, int limit, int result)
+            throws IOException {
+            if (n > MAX_MOVES || limit < 0 || limit > 0xffff) {
+                throw error("game too long to record");
+            }
+            if (_buf.remaining() < 2 * n + 5) {
+                flush();
+            }
+            _buf.putShort((short) n).putShort((short) limit);
+            for (int i = 0; i < n; i += 1) {
+                _buf.putShort(moves[i]);
+            }
+            _buf.put((byte) result);
+            _count += 1;
+        }
+
+        /** Append GAME. */
+        void write(GameRecord game) throws IOException {
+            write(game._moves, game._moves.length, game._limit, game._result);
+        }
+
+        /** Return the number of games written so far. */
+        long count() {
+            return _count;
+        }
+
+        /** Write out all buffered data. */
+        void flush() throws IOException {
+            _buf.flip();
+            while (_buf.hasRemaining()) {
+                _channel.write(_buf);
+            }
+            _buf.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (_channel.isOpen()) {
+                flush();
+                _channel.close();
+            }
+        }
+
+        /** The variant of the games recorded. */
+        private final Variant _variant;
+        /** Destination channel. */
+        private final FileChannel _channel;
+        /** Pending output. */
+        private final ByteBuffer _buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        /** Number of games written. */
+        private long _count;
+    }
+
+    /** Reads the games in a record file sequentially. */
+    static class Reader implements AutoCloseable {
+
+        /** A Reader for FILE, which must start with a valid header. */
+        Reader(Path file) throws IOException {
+            _channel = FileChannel.open(file, READ);
+            _buf.flip();
+            if (!fill(HEADER_SIZE) || _buf.getInt() != MAGIC) {
+                throw error("%s is not a game record file", file);
+            }
+            int version = _buf.get(), size = _buf.get(), rules = _buf.get();
+            _buf.get();
+            Variant standard = Variant.forSize(size);
+            if (version != VERSION || standard == null
+                || (rules & ~(CORNER_RULE | UNARMED_RULE)) != 0) {
+                throw error("unsupported record version or variant");
+            }
+            _variant = Variant.forName(standard.name(),
+                                       (rules & CORNER_RULE) != 0,
+                                       (rules & UNARMED_RULE) == 0);
+        }
+
+        /** Return the variant of the games in the file. */
+        Variant variant() {
+            return _variant;
+        }
+
+        /** Return the next game in the file, or null at end of file. */
+        GameRecord next() throws IOException {
+            if (!fill(4)) {
+                if (_buf.hasRemaining()) {
+                    throw error("truncated game record");
+                }
+                return null;
+            }
+            int n = _buf.getShort() & 0xffff, limit = _buf.getShort() & 0xffff;
+            if (!fill(2 * n + 1)) {
+                throw error("truncated game record");
+            }
+            short[] moves = new short[n];
+            _buf.asShortBuffer().get(moves);
+            _buf.position(_buf.position() + 2 * n);
+            return new GameRecord(moves, limit, _buf.get());
+        }
+
+        /** Make sure at least N bytes are available in the buffer, reading
+         *  more from the channel as needed.  Return false if the file ends
+         *  first. */
+        private boolean fill(int n) throws IOException {
+            if (_buf.remaining() >= n) {
+                return true;
+            }
+            _buf.compact();
+            while (_buf.position() < n) {
+                if (_channel.read(_buf) < 0) {
+                    _buf.flip();
+                    return false;
+                }
+            }
+            _buf.flip();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            _channel.close();
+        }
+
+        /** The variant of the games in the file. */
+        private final Variant _variant;
+        /** Source channel. */
+        private final FileChannel _channel;
+        /** Input read from _channel but not yet consumed. */
+        private final ByteBuffer _buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /** The move codes of this game. */
+    private final short[] _moves;
+    /** The move limit, or 0. */
+    private final int _limit;
+    /** The result byte. */
+    private final int _result;
+}
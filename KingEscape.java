@@ -0,0 +1,192 @@
+package tablut;
+
+import static tablut.Piece.*;
+
+/** Detects the king's routes to an escape square (an edge square in
+ *  Tablut), using precomputed masks of the squares between each square
+ *  and the escape square at the end of its ray in each direction (see
+ *  Variant.escapeRays).  A ray is open if none of its squares is
+ *  occupied, so that the king can escape along it in one move.  Since one
+ *  black move can close at most one ray, a king with two open rays that
+ *  cannot be captured at once escapes by force.  Masks of occupied
+ *  squares are passed as their three longs W0, W1, W2, as for SquareSet.
+ *  @author neal sharma
+ */
+final class KingEscape {
+
+    /** Return the number of open rays from the king to an escape square in
+     *  BOARD, or 0 if there is no king. */
+    static int openRays(Board board) {
+        Square king = board.kingPosition();
+        if (king == null) {
+            return 0;
+        }
+        return openRays(board.variant().escapeRays(), king.index(),
+                        board.occupiedWord(0), board.occupiedWord(1),
+                        board.occupiedWord(2));
+    }
+
+    /** Return the pieces in BOARD that are each the only obstacle on one
+     *  of the king's rays to an escape square: the pieces whose removal
+     *  would open a ray. */
+    static SquareSet blockers(Board board) {
+        Square king = board.kingPosition();
+        if (king == null) {
+            return SquareSet.EMPTY;
+        }
+        long[] rays = board.variant().escapeRays();
+        long[] result = new long[3];
+        for (int d = 0; d < 4; d += 1) {
+            int k = 3 * (4 * king.index() + d);
+            long b0 = rays[k] & board.occupiedWord(0),
+                b1 = rays[k + 1] & board.occupiedWord(1),
+                b2 = rays[k + 2] & board.occupiedWord(2);
+            if (Long.bitCount(b0) + Long.bitCount(b1) + Long.bitCount(b2)
+                == 1) {
+                result[0] |= b0;
+                result[1] |= b1;
+                result[2] |= b2;
+            }
+        }
+        return new SquareSet(board.size(), result[0], result[1], result[2]);
+    }
+
+    /** Return the number of moves (plies) in which white wins by moving
+     *  the king to an escape square, whatever black does, if that is 3 or
+     *  fewer and detected here, and otherwise 0.  Does not take account of
+     *  move limits.  BOARD is restored before returning. */
+    static int forcedEscape(Board board) {
+        Square king = board.kingPosition();
+        if (king == null || board.winner() != null) {
+            return 0;
+        }
+        int k = king.index();
+        long[] rays = board.variant().escapeRays();
+        long w0 = board.occupiedWord(0), w1 = board.occupiedWord(1),
+            w2 = board.occupiedWord(2);
+        if (board.turn() == BLACK) {
+            return escapes(board, k, -1, w0, w1, w2) ? 2 : 0;
+        }
+        if (openRays(rays, k, w0, w1, w2) > 0) {
+            return 1;
+        }
+        int[][] kingRays = board.variant().rays();
+        for (int d = 0; d < 4; d += 1) {
+            for (int s : kingRays[4 * k + d]) {
+                if (occupied(s, w0, w1, w2)) {
+                    break;
+                }
+                long m0 = w0 & ~bit(k, 0) | bit(s, 0),
+                    m1 = w1 & ~bit(k, 1) | bit(s, 1),
+                    m2 = w2 & ~bit(k, 2) | bit(s, 2);
+                if (escapes(board, s, k, m0, m1, m2)) {
+                    board.makeMove(king, board.square(s));
+                    boolean safe = board.winner() == null;
+                    board.undo();
+                    if (safe) {
+                        return 3;
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    /** Return true iff, with the king on square S, black to move, square
+     *  VACATED (if not -1) empty, and W0, W1, W2 the mask of occupied
+     *  squares, the king has two open rays and black cannot capture it at
+     *  once, according to the other contents of BOARD. */
+    private static boolean escapes(Board board, int s, int vacated,
+                                   long w0, long w1, long w2) {
+        return openRays(board.variant().escapeRays(), s, w0, w1, w2) >= 2
+            && !blackCanCapture(board, s, vacated, w0, w1, w2);
+    }
+
+    /** Return the number of open rays from square S, according to the
+     *  escape rays RAYS (see Variant.escapeRays), when the occupied squares
+     *  are those in W0, W1, W2. */
+    private static int openRays(long[] rays, int s, long w0, long w1,
+                                long w2) {
+        int n = 0;
+        for (int d = 0; d < 4; d += 1) {
+            int k = 3 * (4 * s + d);
+            if ((rays[k] | rays[k + 1] | rays[k + 2]) != 0
+                && (rays[k] & w0) == 0 && (rays[k + 1] & w1) == 0
+                && (rays[k + 2] & w2) == 0) {
+                n += 1;
+            }
+        }
+        return n;
+    }
+
+    /** Return true iff black can capture a king on square S in one move,
+     *  when the occupied squares are those in W0, W1, W2 and square
+     *  VACATED is empty. */
+    private static boolean blackCanCapture(Board board, int s, int vacated,
+                                           long w0, long w1, long w2) {
+        int[] guards = board.variant().kingGuards()[s];
+        if (guards != null) {
+            int missing = -1;
+            for (int g : guards) {
+                if (!isBlack(board, g, vacated)) {
+                    if (missing >= 0) {
+                        return false;
+                    }
+                    missing = g;
+                }
+            }
+            return missing < 0
+                || blackReaches(board, missing, vacated, w0, w1, w2);
+        }
+        int[] neighbor = board.variant().neighbor();
+        for (int d = 0; d < 4; d += 1) {
+            int n = neighbor[4 * s + d], o = neighbor[4 * s + (d + 2) % 4];
+            if (n >= 0 && o >= 0 && isBlack(board, o, vacated)
+                && !occupied(n, w0, w1, w2)
+                && blackReaches(board, n, vacated, w0, w1, w2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return true iff some black piece can move to empty square T when
+     *  the occupied squares are those in W0, W1, W2 and square VACATED is
+     *  empty. */
+    private static boolean blackReaches(Board board, int t, int vacated,
+                                        long w0, long w1, long w2) {
+        Variant variant = board.variant();
+        if (variant.isKingOnly(t) || occupied(t, w0, w1, w2)) {
+            return false;
+        }
+        int[][] rays = variant.rays();
+        for (int d = 0; d < 4; d += 1) {
+            for (int j : rays[4 * t + d]) {
+                if (occupied(j, w0, w1, w2)) {
+                    if (isBlack(board, j, vacated)) {
+                        return true;
+                    }
+                    break;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Return true iff square I holds a black piece in BOARD and is not
+     *  VACATED. */
+    private static boolean isBlack(Board board, int i, int vacated) {
+        return i != vacated && board.get(board.square(i)) == BLACK;
+    }
+
+    /** Return true iff square I is in the mask W0, W1, W2. */
+    private static boolean occupied(int i, long w0, long w1, long w2) {
+        int w = i >>> 6;
+        return ((w == 0 ? w0 : w == 1 ? w1 : w2) & (1L << i)) != 0;
+    }
+
+    /** Return the word W (0-2) of the mask containing just square I. */
+    private static long bit(int i, int w) {
+        return (i >>> 6) == w ? 1L << i : 0;
+    }
+}
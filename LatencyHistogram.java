@@ -0,0 +1,153 @@
+package tablut;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A histogram of durations in nanoseconds, for latency percentiles.
+ *  Buckets are log-linear: values below SUB_BUCKETS have a bucket each,
+ *  and each larger power of two is split into SUB_BUCKETS equal buckets,
+ *  so that a percentile is reported within 1/SUB_BUCKETS of its true
+ *  value, over the whole range of a long, in a fixed array of counts.
+ *  Recording is lock-free and allocates nothing, so that it may be done
+ *  on any thread in the middle of a search or a repaint.
+ *  @author neal sharma
+ */
+class LatencyHistogram implements LatencyHistogramMBean {
+
+    /** Log2 of SUB_BUCKETS. */
+    static final int SUB_BITS = 4;
+
+    /** Number of buckets per power of two. */
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** Total number of buckets. */
+    static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+    /** An empty histogram named NAME. */
+    LatencyHistogram(String name) {
+        _name = name;
+    }
+
+    /** Return my name. */
+    String name() {
+        return _name;
+    }
+
+    /** Record a duration of NANOS nanoseconds (negative durations count as
+     *  0). */
+    void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        _counts.incrementAndGet(bucket(value));
+        _count.incrementAndGet();
+        _total.addAndGet(value);
+        long max = _max.get();
+        while (value > max && !_max.compareAndSet(max, value)) {
+            max = _max.get();
+        }
+    }
+
+    /** Return the index of the bucket holding VALUE (>= 0). */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exp = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS
+            + (int) (value >>> (exp - SUB_BITS)) - SUB_BUCKETS;
+    }
+
+    /** Return the largest value in bucket INDEX. */
+    static long bucketLimit(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long low = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    /** Return (an upper bound, within a bucket, on) the duration in
+     *  nanoseconds below which the fraction Q of recorded durations lie,
+     *  or 0 if there are none. */
+    long percentile(double q) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i += 1) {
+            count += _counts.get(i);
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS && count > 0; i += 1) {
+            seen += _counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketLimit(i), _max.get());
+            }
+        }
+        return 0;
+    }
+
+    /** Return a one-line summary of the median, 99th and 99.9th
+     *  percentiles, and maximum, in milliseconds. */
+    String summary() {
+        return String.format("%s: %d samples, p50 %.3f ms, p99 %.3f ms,"
+                             + " p999 %.3f ms, max %.3f ms", _name,
+                             getCount(), getP50Millis(), getP99Millis(),
+                             getP999Millis(), getMaxMillis());
+    }
+
+    @Override
+    public long getCount() {
+        return _count.get();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long count = _count.get();
+        return count == 0 ? 0 : millis(_total.get() / count);
+    }
+
+    @Override
+    public double getP50Millis() {
+        return millis(percentile(0.5));
+    }
+
+    @Override
+    public double getP99Millis() {
+        return millis(percentile(0.99));
+    }
+
+    @Override
+    public double getP999Millis() {
+        return millis(percentile(0.999));
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return millis(_max.get());
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i += 1) {
+            _counts.set(i, 0);
+        }
+        _count.set(0);
+        _total.set(0);
+        _max.set(0);
+    }
+
+    /** Return NANOS in milliseconds. */
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /** My name. */
+    private final String _name;
+    /** Number of durations recorded in each bucket. */
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+    /** Number of durations recorded. */
+    private final AtomicLong _count = new AtomicLong();
+    /** Sum of the durations recorded. */
+    private final AtomicLong _total = new AtomicLong();
+    /** Largest duration recorded. */
+    private final AtomicLong _max = new AtomicLong();
+}
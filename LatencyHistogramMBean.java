@@ -0,0 +1,29 @@
+package tablut;
+
+/** The management interface of a LatencyHistogram, as registered by
+ *  Metrics.  (JMX requires that it be public.)
+ *  @author neal sharma
+ */
+public interface LatencyHistogramMBean {
+
+    /** Return the number of durations recorded. */
+    long getCount();
+
+    /** Return the mean duration, in milliseconds. */
+    double getMeanMillis();
+
+    /** Return the median duration, in milliseconds. */
+    double getP50Millis();
+
+    /** Return the 99th-percentile duration, in milliseconds. */
+    double getP99Millis();
+
+    /** Return the 99.9th-percentile duration, in milliseconds. */
+    double getP999Millis();
+
+    /** Return the longest duration, in milliseconds. */
+    double getMaxMillis();
+
+    /** Discard all recorded durations. */
+    void reset();
+}
@@ -5,6 +5,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Paths;
 
 import static tablut.Utils.error;
 
@@ -19,15 +20,65 @@ public class Main {
     public static void main(String... args) {
 
         CommandArgs options =
-            new CommandArgs("--display --testing --strict --log={0,1} --={0,2}",
+            new CommandArgs("--display --testing --strict --log={0,1}"
+                            + " --record={0,1} --convert --replay"
+                            + " --analyze --depth={0,1} --time={0,1}"
+                            + " --cache={0,1} --network={0,1} --train"
+                            + " --games={0,1} --rollouts --variant={0,1}"
+                            + " --escape={0,1} --unarmed --={0,2}",
                             args);
         if (!options.ok()) {
             System.err.println("Usage: java tablut.Main [--display]"
-                               + " [--log=FILE] [--strict] [INPUT [OUTPUT]]");
+                               + " [--log=FILE] [--record=FILE] [--strict]"
+                               + " [--cache=FILE] [--network=FILE]"
+                               + " [VARIANT] [INPUT [OUTPUT]]");
+            System.err.println("       java tablut.Main --convert [VARIANT]"
+                               + " LOG RECORD");
+            System.err.println("       java tablut.Main --replay RECORD");
+            System.err.println("       java tablut.Main --analyze"
+                               + " [--depth=N | --time=MILLIS]"
+                               + " [--cache=FILE] [--network=FILE]"
+                               + " [VARIANT] INPUT OUTPUT");
+            System.err.println("       java tablut.Main --train [--games=N]"
+                               + " [--network=FILE] OUTPUT");
+            System.err.println("       java tablut.Main --rollouts"
+                               + " [--games=N] [VARIANT]");
+            System.err.println("  where VARIANT is [--variant=NAME]"
+                               + " [--escape=edge|corner] [--unarmed]");
             System.exit(1);
         }
 
+        if (options.contains("--cache")) {
+            SearchCache.useFile(Paths.get(options.getFirst("--cache")));
+        }
+        if (options.contains("--network")) {
+            String file = options.getFirst("--network");
+            try {
+                AI.useNetwork(Network.read(Paths.get(file)));
+            } catch (IOException excp) {
+                System.err.printf("Could not read network: %s%n",
+                                  excp.getMessage());
+                System.exit(1);
+            }
+        }
+
         List<String> files = options.get("--");
+        if (options.contains("--convert") || options.contains("--replay")) {
+            runRecordTool(options, files);
+            return;
+        }
+        if (options.contains("--analyze")) {
+            runAnalyzer(options, files);
+            return;
+        }
+        if (options.contains("--train")) {
+            runTrainer(options, files);
+            return;
+        }
+        if (options.contains("--rollouts")) {
+            runRollouts(options);
+            return;
+        }
         if (!files.isEmpty()) {
             try {
                 System.setIn(new FileInputStream(files.get(0)));
@@ -48,6 +99,7 @@ public class Main {
             }
         }
 
+        Metrics.registerMBeans();
         Controller control = getController(options);
         System.out.println("Tablut 61B, staff version 1.0");
 
@@ -63,6 +115,141 @@ public class Main {
 
     }
 
+    /** Analyze the positions in the first file in FILES, writing the
+     *  results to the second, searching positions of the variant given in
+     *  OPTIONS to the depth or for the time given in OPTIONS. */
+    private static void runAnalyzer(CommandArgs options, List<String> files) {
+        if (files.size() != 2) {
+            System.err.println("Wrong number of files.");
+            System.exit(1);
+        }
+        try {
+            int depth = Controller.ANALYSIS_DEPTH;
+            long millis = 0;
+            if (options.contains("--depth")) {
+                depth = Integer.parseInt(options.getFirst("--depth"));
+            }
+            if (options.contains("--time")) {
+                millis = Long.parseLong(options.getFirst("--time"));
+            }
+            if (depth < 1 || millis < 0) {
+                throw error("bad depth or time");
+            }
+            long n = Analyzer.analyze(Paths.get(files.get(0)),
+                                      Paths.get(files.get(1)),
+                                      getVariant(options),
+                                      Runtime.getRuntime()
+                                      .availableProcessors(),
+                                      depth, millis);
+            System.out.printf("Analyzed %d positions.%n", n);
+            System.exit(0);
+        } catch (IOException | IllegalArgumentException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Train a network from self-play games, with the number of games given
+     *  in OPTIONS, and write it to the file in FILES. */
+    private static void runTrainer(CommandArgs options, List<String> files) {
+        if (files.size() != 1) {
+            System.err.println("Wrong number of files.");
+            System.exit(1);
+        }
+        try {
+            int games = Trainer.DEFAULT_GAMES;
+            if (options.contains("--games")) {
+                games = Integer.parseInt(options.getFirst("--games"));
+            }
+            if (games < 1) {
+                throw error("bad number of games");
+            }
+            Trainer trainer = new Trainer(System.nanoTime());
+            int n = trainer.selfPlay(games);
+            double loss = trainer.train(Trainer.DEFAULT_EPOCHS);
+            trainer.network().write(Paths.get(files.get(0)));
+            System.out.printf("Trained on %d positions: loss %.4f.%n", n,
+                              loss);
+            System.exit(0);
+        } catch (IOException | IllegalArgumentException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Return the variant of the game given in OPTIONS: tablut, hnefatafl
+     *  or tafl13, with the escape rule and armed or unarmed king of the
+     *  standard variant unless overridden. */
+    private static Variant getVariant(CommandArgs options) {
+        String name = "tablut", escape = null;
+        if (options.contains("--variant")) {
+            name = options.getFirst("--variant");
+        }
+        if (options.contains("--escape")) {
+            escape = options.getFirst("--escape");
+        }
+        return Variant.forOptions(name, escape,
+                                  options.contains("--unarmed"));
+    }
+
+    /** Play random games of the variant given in OPTIONS, as many as given
+     *  in OPTIONS, and report the results and the rate of play. */
+    private static void runRollouts(CommandArgs options) {
+        try {
+            Variant variant = getVariant(options);
+            long games = RolloutEngine.DEFAULT_GAMES;
+            if (options.contains("--games")) {
+                games = Long.parseLong(options.getFirst("--games"));
+            }
+            if (games < 1) {
+                throw error("bad number of games");
+            }
+            long start = System.nanoTime();
+            long[] counts =
+                RolloutEngine.playRandom(variant, games,
+                                         RolloutEngine.DEFAULT_MAX_PLIES,
+                                         start);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Played %d games of %s in %.2f s"
+                              + " (%.0f games/s): white won %d,"
+                              + " black won %d, %d unfinished.%n",
+                              games, variant, seconds, games / seconds,
+                              counts[0], counts[1], counts[2]);
+            System.exit(0);
+        } catch (IllegalArgumentException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Convert a text log to a game record of the variant given in OPTIONS
+     *  or replay a game record, as indicated by OPTIONS, on the files
+     *  named in FILES. */
+    private static void runRecordTool(CommandArgs options,
+                                      List<String> files) {
+        try {
+            if (options.contains("--convert") && files.size() == 2) {
+                long n = Replay.convert(Paths.get(files.get(0)),
+                                        Paths.get(files.get(1)),
+                                        getVariant(options));
+                System.out.printf("Converted %d games.%n", n);
+            } else if (options.contains("--replay") && files.size() == 1) {
+                long[] counts =
+                    Replay.validate(Paths.get(files.get(0)),
+                                    Runtime.getRuntime().availableProcessors());
+                System.out.printf("Replayed %d games: %d valid, %d invalid.%n",
+                                  counts[0] + counts[1], counts[0], counts[1]);
+                System.exit(counts[1] == 0 ? 0 : 1);
+            } else {
+                System.err.println("Wrong number of files.");
+                System.exit(1);
+            }
+        } catch (IOException | IllegalArgumentException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+            System.exit(1);
+        }
+    }
+
     /** Return an appropriate Controller as indicated by OPTIONS. */
     private static Controller getController(CommandArgs options) {
         Player manualPlayer;
@@ -96,7 +283,22 @@ public class Main {
             }
         }
 
-        return new Controller(view, log, reporter, manualPlayer,
-                              new AI(), options.contains("--strict"));
+        Variant variant = getVariant(options);
+        Controller controller =
+            new Controller(view, log, reporter, manualPlayer,
+                           new AI(), options.contains("--strict"));
+        controller.setVariant(variant);
+        controller.setInterruptible(options.get("--").isEmpty()
+                                    && !options.contains("--testing")
+                                    && !options.contains("--display"));
+        if (options.contains("--record")) {
+            try {
+                controller.setRecord(new GameRecord.Writer(
+                        Paths.get(options.getFirst("--record")), variant));
+            } catch (IOException excp) {
+                throw error("Could not open game record file");
+            }
+        }
+        return controller;
     }
 }
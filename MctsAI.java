@@ -0,0 +1,331 @@
+package tablut;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static tablut.Piece.*;
+
+/** A Player that automatically generates moves by Monte Carlo tree search
+ *  with UCT selection.  The search tree is kept in parallel arrays indexed
+ *  by node number rather than in node objects.  Several threads search
+ *  the same tree at once, using virtual losses to steer them apart.  Each
+ *  thread selects BATCH leaves at a time and plays them out together on
+ *  its own RolloutEngine, without allocating.
+ *  @author neal sharma
+ */
+class MctsAI extends Player {
+
+    /** Number of playouts per move, shared among all threads. */
+    private static final int PLAYOUTS = 20000;
+    /** Maximum number of nodes in the search tree. */
+    private static final int MAX_NODES = 1 << 18;
+    /** Maximum depth of a path through the tree. */
+    private static final int MAX_DEPTH = 256;
+    /** Maximum length of a playout, in moves.  Playouts that end without
+     *  a winner count as half a win for each side. */
+    private static final int PLAYOUT_LIMIT = 120;
+    /** Number of playouts run together by each thread. */
+    private static final int BATCH = 8;
+    /** The exploration constant in the UCT formula. */
+    private static final double EXPLORATION = 1.4;
+    /** Number of lost visits charged to a node while a playout through it
+     *  is in progress. */
+    private static final int VIRTUAL_LOSS = 1;
+
+    /** A new MctsAI with no piece or controller (intended to produce
+     *  a template). */
+    MctsAI() {
+        this(null, null);
+    }
+
+    /** A new MctsAI playing PIECE under control of CONTROLLER. */
+    MctsAI(Piece piece, Controller controller) {
+        super(piece, controller);
+        _threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    Player create(Piece piece, Controller controller) {
+        return new MctsAI(piece, controller);
+    }
+
+    @Override
+    String myMove() {
+        Move move = findMove(board(), Long.MAX_VALUE, null,
+                             _controller.moveBudget());
+        _controller.reportMove(move);
+        return move.toString();
+    }
+
+    @Override
+    CompletableFuture<Move> myMoveAsync(long deadline) {
+        CompletableFuture<Move> result = new CompletableFuture<>();
+        Board board = new Board(board());
+        TimeManager.Budget budget = _controller.moveBudget();
+        SEARCH_THREADS.execute(() -> {
+            try {
+                result.complete(findMove(board, deadline, result, budget));
+            } catch (RuntimeException excp) {
+                result.completeExceptionally(excp);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    boolean isManual() {
+        return false;
+    }
+
+    /** Return the move for the side to move in BOARD that received the
+     *  most visits in a search of PLAYOUTS playouts, assuming there is a
+     *  move. */
+    Move findMove(Board board) {
+        return findMove(board, Long.MAX_VALUE, null);
+    }
+
+    /** Return the move for the side to move in BOARD that received the
+     *  most visits in a search of PLAYOUTS playouts, assuming there is a
+     *  move, stopping early when System.nanoTime() passes DEADLINE or
+     *  CANCEL (if non-null) is done.  Searches for the same player take
+     *  turns, since they share the tree.  In deterministic mode (see
+     *  Controller.deterministic), searches on one thread and ignores
+     *  DEADLINE. */
+    Move findMove(Board board, long deadline, Future<?> cancel) {
+        return findMove(board, deadline, cancel, null);
+    }
+
+    /** Return a move for BOARD as for findMove(BOARD, DEADLINE, CANCEL),
+     *  but if BUDGET is non-null, playing out until its target time
+     *  (or DEADLINE, if sooner) rather than for PLAYOUTS playouts. */
+    private Move findMove(Board board, long deadline, Future<?> cancel,
+                          TimeManager.Budget budget) {
+        synchronized (_searchLock) {
+            _deadline = budget == null ? deadline
+                : Math.min(deadline, budget.targetDeadline());
+            _playouts = budget == null ? PLAYOUTS : Integer.MAX_VALUE;
+            _cancel = cancel;
+            return search(board);
+        }
+    }
+
+    /** Return the best move for the side to move in BOARD as for
+     *  findMove, but without searching if it is the only move or wins at
+     *  once.  (Playouts cannot tell an immediate win from a certain one
+     *  later, so the search might not take it.) */
+    private Move search(Board board) {
+        if (_move == null) {
+            _move = new int[MAX_NODES];
+            _firstChild = new int[MAX_NODES];
+            _childCount = new int[MAX_NODES];
+            _visits = new int[MAX_NODES];
+            _virtual = new int[MAX_NODES];
+            _wins = new float[MAX_NODES];
+        }
+        Board root = new Board(board);
+        _rootTurn = root.turn();
+        _size = 0;
+        newNode(0);
+        expand(0, root, new int[Board.MAX_MOVES]);
+        if (_childCount[0] == 1) {
+            return root.move(_move[_firstChild[0]]);
+        }
+        for (int c = _firstChild[0]; c < _firstChild[0] + _childCount[0];
+             c += 1) {
+            root.makeMove(root.move(_move[c]));
+            boolean won = root.winner() == _rootTurn;
+            root.undo();
+            if (won) {
+                return root.move(_move[c]);
+            }
+        }
+
+        AtomicInteger budget = new AtomicInteger(_playouts);
+        boolean deterministic =
+            _controller != null && _controller.deterministic();
+        if (deterministic) {
+            _deadline = Long.MAX_VALUE;
+        }
+        Thread[] workers = new Thread[deterministic ? 1 : _threads];
+        for (int i = 0; i < workers.length; i += 1) {
+            RolloutEngine engine =
+                new RolloutEngine(root.variant(), BATCH, PLAYOUT_LIMIT,
+                                  _controller == null ? i + 1
+                                  : _controller.randInt(1 << 30));
+            engine.setEscapeFirst(true);
+            workers[i] = new Thread(() -> search(root, engine, budget));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException excp) {
+                throw new IllegalStateException("search interrupted");
+            }
+        }
+
+        int best = _firstChild[0];
+        for (int c = best + 1; c < _firstChild[0] + _childCount[0]; c += 1) {
+            if (_visits[c] > _visits[best]) {
+                best = c;
+            }
+        }
+        return root.move(_move[best]);
+    }
+
+    /** Perform playouts from position ROOT on ENGINE until BUDGET (the
+     *  number of playouts) is exhausted: repeatedly select up to BATCH
+     *  leaves, play out from all of them at once, and record the
+     *  results.  White always takes an immediate escape for the king in
+     *  playouts. */
+    private void search(Board root, RolloutEngine engine,
+                        AtomicInteger budget) {
+        Board board = new Board(root);
+        int[][] paths = new int[BATCH][MAX_DEPTH];
+        int[] depths = new int[BATCH];
+        int[] moves = new int[Board.MAX_MOVES];
+        while (!stopped()) {
+            int n;
+            for (n = 0; n < BATCH && budget.getAndDecrement() > 0; n += 1) {
+                depths[n] = select(board, paths[n], moves);
+                engine.load(n, board);
+                for (int k = 1; k < depths[n]; k += 1) {
+                    board.undo();
+                }
+            }
+            if (n == 0) {
+                break;
+            }
+            engine.run();
+            for (int g = 0; g < n; g += 1) {
+                Piece winner = engine.winner(g);
+                backup(paths[g], depths[g],
+                       winner == WHITE ? 1 : winner == BLACK ? 0 : 0.5f);
+            }
+        }
+    }
+
+    /** Return true iff the current search should stop early. */
+    private boolean stopped() {
+        return System.nanoTime() > _deadline
+            || _cancel != null && _cancel.isDone();
+    }
+
+    /** Descend the tree from the root, making the selected moves on BOARD
+     *  (initially the root position), until reaching a node that has not
+     *  been visited, a finished game, or the maximum depth.  Expand the
+     *  final node if it has been visited before.  Store the nodes on the
+     *  path in PATH, adding virtual losses to them, and return the length
+     *  of the path.  MOVES is scratch space for move generation. */
+    private synchronized int select(Board board, int[] path, int[] moves) {
+        int node = 0, depth = 0;
+        while (true) {
+            path[depth] = node;
+            depth += 1;
+            _virtual[node] += VIRTUAL_LOSS;
+            if (board.winner() != null || depth == MAX_DEPTH) {
+                return depth;
+            }
+            if (_firstChild[node] < 0) {
+                if (_visits[node] == 0 || !expand(node, board, moves)) {
+                    return depth;
+                }
+            }
+            node = bestChild(node);
+            board.makeMove(board.move(_move[node]));
+        }
+    }
+
+    /** Return the child of NODE with the highest UCT value, counting
+     *  virtual losses as visits that were lost. */
+    private int bestChild(int node) {
+        double logN = Math.log(_visits[node] + _virtual[node]);
+        int first = _firstChild[node], best = first;
+        double bestValue = Double.NEGATIVE_INFINITY;
+        for (int c = first; c < first + _childCount[node]; c += 1) {
+            int n = _visits[c] + _virtual[c];
+            if (n == 0) {
+                return c;
+            }
+            double value =
+                _wins[c] / n + EXPLORATION * Math.sqrt(logN / n);
+            if (value > bestValue) {
+                bestValue = value;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /** Add children to NODE for all legal moves in BOARD, using MOVES as
+     *  scratch space.  Return false if the tree is too full to do so. */
+    private boolean expand(int node, Board board, int[] moves) {
+        int n = board.generateMoves(board.turn(), moves);
+        if (_size + n > MAX_NODES) {
+            return false;
+        }
+        _firstChild[node] = _size;
+        _childCount[node] = n;
+        for (int i = 0; i < n; i += 1) {
+            newNode(moves[i]);
+        }
+        return true;
+    }
+
+    /** Allocate a new unexpanded node reached by the move with code
+     *  MOVE. */
+    private void newNode(int move) {
+        _move[_size] = move;
+        _firstChild[_size] = -1;
+        _childCount[_size] = 0;
+        _visits[_size] = _virtual[_size] = 0;
+        _wins[_size] = 0;
+        _size += 1;
+    }
+
+    /** Record the result WHITESCORE (1 for a white win, 0 for a black win)
+     *  of a playout through the first DEPTH nodes of PATH, removing their
+     *  virtual losses. */
+    private synchronized void backup(int[] path, int depth,
+                                     float whiteScore) {
+        for (int k = 0; k < depth; k += 1) {
+            int node = path[k];
+            _visits[node] += 1;
+            _virtual[node] -= VIRTUAL_LOSS;
+            Piece mover = k % 2 == 1 ? _rootTurn : _rootTurn.opponent();
+            _wins[node] += mover == WHITE ? whiteScore : 1 - whiteScore;
+        }
+    }
+
+    /** Number of search threads. */
+    private final int _threads;
+    /** Held throughout a search. */
+    private final Object _searchLock = new Object();
+    /** Value of System.nanoTime() after which to stop the current
+     *  search. */
+    private volatile long _deadline;
+    /** Number of playouts allowed for the current search. */
+    private int _playouts;
+    /** If non-null, a Future whose completion stops the current search. */
+    private volatile Future<?> _cancel;
+    /** The side to move at the root of the current search. */
+    private Piece _rootTurn;
+    /** Number of nodes in use. */
+    private int _size;
+    /** _move[n] is the code of the move leading to node n. */
+    private int[] _move;
+    /** _firstChild[n] is the index of the first child of node n, or -1 if
+     *  it is unexpanded.  Its children are numbered consecutively. */
+    private int[] _firstChild;
+    /** _childCount[n] is the number of children of node n. */
+    private int[] _childCount;
+    /** _visits[n] is the number of completed playouts through node n. */
+    private int[] _visits;
+    /** _virtual[n] is the virtual loss currently charged to node n. */
+    private int[] _virtual;
+    /** _wins[n] is the total score of playouts through node n for the side
+     *  that made the move leading to it. */
+    private float[] _wins;
+}
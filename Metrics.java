@@ -0,0 +1,71 @@
+package tablut;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** Latency histograms for the parts of a game that take time, for this
+ *  whole process: automated players' moves, the execution of commands,
+ *  and the updating of views.  Together they show whether slow turns come
+ *  from searching or from displaying and reporting.  They are printed by
+ *  the "metrics" command, and available over JMX (as
+ *  tablut:type=Latency,name=NAME) once registered.
+ *  @author neal sharma
+ */
+final class Metrics {
+
+    /** Times taken by automated players to choose moves. */
+    static final LatencyHistogram MOVES = new LatencyHistogram("move");
+
+    /** Times taken by Controller.executeCommand. */
+    static final LatencyHistogram COMMANDS =
+        new LatencyHistogram("command");
+
+    /** Times taken by View.update. */
+    static final LatencyHistogram VIEW_UPDATES =
+        new LatencyHistogram("view update");
+
+    /** All histograms. */
+    static final LatencyHistogram[] ALL = {
+        MOVES, COMMANDS, VIEW_UPDATES
+    };
+
+    /** Not instantiable. */
+    private Metrics() {
+    }
+
+    /** Register the histograms with the platform MBean server, if not
+     *  already done.  Failures are reported, but are otherwise
+     *  harmless. */
+    static synchronized void registerMBeans() {
+        if (_registered) {
+            return;
+        }
+        _registered = true;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (LatencyHistogram histogram : ALL) {
+                String name = histogram.name().replace(' ', '-');
+                server.registerMBean(histogram,
+                                     new ObjectName("tablut:type=Latency,"
+                                                    + "name=" + name));
+            }
+        } catch (JMException excp) {
+            System.err.printf("Warning: cannot register metrics: %s%n",
+                              excp.getMessage());
+        }
+    }
+
+    /** Return a summary of all histograms, one per line. */
+    static String report() {
+        StringBuilder out = new StringBuilder();
+        for (LatencyHistogram histogram : ALL) {
+            out.append(histogram.summary()).append(String.format("%n"));
+        }
+        return out.toString();
+    }
+
+    /** True iff registerMBeans has been called. */
+    private static boolean _registered;
+}
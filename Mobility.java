@@ -0,0 +1,213 @@
+package tablut;
+
+import java.util.Arrays;
+
+import static tablut.Piece.*;
+
+/** Reachable-square maps for the pieces on a Board, kept up to date
+ *  incrementally as squares change.  For each piece and each of the four
+ *  directions, I keep the mask of squares it can move to in that
+ *  direction (as for SquareSet), and for each side, the number of its
+ *  pieces that can move to each square.  When a square changes, only the
+ *  rays that pass through it change: those of the piece on it, and of the
+ *  nearest piece in each direction.  A Board creates me on request (see
+ *  Board.mobility) and informs me of each change thereafter.
+ *  @author neal sharma
+ */
+final class Mobility {
+
+    /** Maps for the pieces in CONTENTS, the square array of a Board of
+     *  VARIANT, which I read but do not change. */
+    Mobility(Variant variant, Piece[] contents) {
+        int n = variant.squares();
+        _contents = contents;
+        _size = variant.size();
+        _words = variant.words();
+        _throne = variant.throne();
+        _rays = variant.rays();
+        _pawnRays = variant.pawnRays();
+        _reach = new long[4 * _words * n];
+        _counts = new byte[2 * n];
+        _attacked = new long[2 * _words];
+        _escapes = new long[_words];
+        for (int i = 0; i < n; i += 1) {
+            if (variant.isEscape(i)) {
+                _escapes[i >> 6] |= 1L << i;
+            }
+        }
+        rebuild();
+    }
+
+    /** Recompute everything from scratch. */
+    void rebuild() {
+        Arrays.fill(_reach, 0);
+        Arrays.fill(_counts, (byte) 0);
+        Arrays.fill(_attacked, 0);
+        _moves[0] = _moves[1] = 0;
+        _king = -1;
+        for (int i = 0; i < _contents.length; i += 1) {
+            if (_contents[i] == KING) {
+                _king = i;
+            }
+            if (_contents[i] != EMPTY) {
+                for (int d = 0; d < 4; d += 1) {
+                    computeRay(i, d);
+                }
+            }
+        }
+    }
+
+    /** Update for a change of the contents of square I, which held
+     *  OLD. */
+    void update(int i, Piece old) {
+        Piece p = _contents[i];
+        if (p == KING) {
+            _king = i;
+        } else if (old == KING && _king == i) {
+            _king = -1;
+        }
+        if (old != EMPTY) {
+            for (int d = 0; d < 4; d += 1) {
+                setRay(i, d, old, NO_SQUARES);
+            }
+        }
+        if (p != EMPTY) {
+            for (int d = 0; d < 4; d += 1) {
+                computeRay(i, d);
+            }
+        }
+        if (old == EMPTY || p == EMPTY) {
+            for (int d = 0; d < 4; d += 1) {
+                for (int j : _rays[4 * i + d]) {
+                    if (_contents[j] != EMPTY) {
+                        computeRay(j, (d + 2) % 4);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Return the squares to which the piece on S can move, or the empty
+     *  set if S is empty. */
+    SquareSet reach(Square s) {
+        long[] words = new long[3];
+        for (int d = 0; d < 4; d += 1) {
+            int k = _words * (4 * s.index() + d);
+            for (int w = 0; w < _words; w += 1) {
+                words[w] |= _reach[k + w];
+            }
+        }
+        return new SquareSet(_size, words[0], words[1], words[2]);
+    }
+
+    /** Return the squares to which some piece of SIDE can move. */
+    SquareSet attacked(Piece side) {
+        int k = _words * sideIndex(side);
+        return new SquareSet(_size, _attacked[k],
+                             _words > 1 ? _attacked[k + 1] : 0,
+                             _words > 2 ? _attacked[k + 2] : 0);
+    }
+
+    /** Return the number of pieces of SIDE that can move to S. */
+    int attackers(Piece side, Square s) {
+        return _counts[sideIndex(side) * _contents.length + s.index()];
+    }
+
+    /** Return the number of legal moves for SIDE. */
+    int moveCount(Piece side) {
+        return _moves[sideIndex(side)];
+    }
+
+    /** Return true iff the king is on the board and can move to a square
+     *  on which it wins. */
+    boolean kingReachesEscape() {
+        for (int d = 0; _king >= 0 && d < 4; d += 1) {
+            int k = _words * (4 * _king + d);
+            for (int w = 0; w < _words; w += 1) {
+                if ((_reach[k + w] & _escapes[w]) != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Recompute the ray of the piece on square I in direction D. */
+    private void computeRay(int i, int d) {
+        Piece p = _contents[i];
+        long[] ray = _scratch;
+        Arrays.fill(ray, 0);
+        for (int j : (p == KING ? _rays : _pawnRays)[4 * i + d]) {
+            if (_contents[j] != EMPTY) {
+                break;
+            }
+            if (j != _throne || p == KING) {
+                ray[j >> 6] |= 1L << j;
+            }
+        }
+        setRay(i, d, p, ray);
+    }
+
+    /** Set the ray of a piece of SIDE on square I in direction D to the
+     *  mask RAY (NO_SQUARES for none), adjusting the totals for SIDE. */
+    private void setRay(int i, int d, Piece side, long[] ray) {
+        int k = _words * (4 * i + d), s = sideIndex(side);
+        for (int w = 0; w < _words; w += 1) {
+            long old = _reach[k + w], bits = ray[w];
+            _reach[k + w] = bits;
+            _moves[s] += Long.bitCount(bits) - Long.bitCount(old);
+            adjust(s, w, old & ~bits, -1);
+            adjust(s, w, bits & ~old, 1);
+        }
+    }
+
+    /** Add DELTA to the counts of side number S for the squares in BITS,
+     *  word W of a mask, keeping _attacked consistent. */
+    private void adjust(int s, int w, long bits, int delta) {
+        for (; bits != 0; bits &= bits - 1) {
+            int j = 64 * w + Long.numberOfTrailingZeros(bits);
+            int c = _counts[s * _contents.length + j] += delta;
+            if (c == 0) {
+                _attacked[_words * s + w] &= ~(1L << j);
+            } else if (c == delta) {
+                _attacked[_words * s + w] |= 1L << j;
+            }
+        }
+    }
+
+    /** Return 0 for white (including the king) and 1 for black. */
+    private static int sideIndex(Piece side) {
+        return side == BLACK ? 1 : 0;
+    }
+
+    /** The empty mask, long enough for any board. */
+    private static final long[] NO_SQUARES = new long[3];
+
+    /** The contents of the board. */
+    private final Piece[] _contents;
+    /** The number of rows (and columns) of the board, the number of longs
+     *  in a mask of its squares, and the index of its throne. */
+    private final int _size, _words, _throne;
+    /** The rays of the variant (see Variant.rays and Variant.pawnRays). */
+    private final int[][] _rays, _pawnRays;
+    /** The mask of the squares on which the king wins. */
+    private final long[] _escapes;
+    /** The square holding the king, or -1 if none. */
+    private int _king;
+    /** The _words longs of _reach starting at _words * (4 * i + d) are
+     *  the mask of the squares to which the piece on square i can move in
+     *  direction d. */
+    private final long[] _reach;
+    /** _counts[s * N + i], where N is the number of squares, is the number
+     *  of pieces of side number s (see sideIndex) that can move to square
+     *  i. */
+    private final byte[] _counts;
+    /** The _words longs of _attacked starting at _words * s are the mask
+     *  of squares with a non-zero count for side number s. */
+    private final long[] _attacked;
+    /** _moves[s] is the number of legal moves for side number s. */
+    private final int[] _moves = new int[2];
+    /** Space for the mask of a ray being computed. */
+    private final long[] _scratch = new long[3];
+}
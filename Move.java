@@ -6,24 +6,28 @@ import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
 import static tablut.Square.sq;
+import static tablut.Square.BOARD_SIZE;
+import static tablut.Square.MAX_SIZE;
+import static tablut.Square.MIN_SIZE;
 import static tablut.Square.NUM_SQUARES;
-import static tablut.Square.ROOK_SQUARES;
 import static tablut.Square.SQUARE_LIST;
 import static tablut.Utils.*;
 
 /** A move in the game of Tablut. As for Squares, Moves are immutable
  *  and unique: there is only one move object for each possible move
  *  (generated by the factory method  mv, the constructor being private).
- *  As for Squares, you can freely use == to compare Moves.
+ *  As for Squares, you can freely use == to compare Moves.  A Move joins
+ *  two squares of the same board size, and the static methods without a
+ *  size argument denote moves on the 9x9 board.
  *  @author neal sharma
  */
 final class Move {
 
     /** The syntax for a move, using either forms CR-C (horizontal moves)
-     *  or CR-R (vertical moves), where C is a column letter (a-i or A-I) and
-     *  R is a row number (1-9). */
+     *  or CR-R (vertical moves), where C is a column letter (a-m) and R is
+     *  a row number (1-13), as for boards of any size. */
     static final Pattern MOVE_PATTERN =
-        Pattern.compile(String.format("(([a-i])([1-9]))-(?:([a-i])|([1-9]))"));
+        Pattern.compile("(([a-m])(1[0-3]|[1-9]))-(?:([a-m])|(1[0-3]|[1-9]))");
 
     /** Return the square moved from. */
     Square from() {
@@ -38,29 +42,64 @@ final class Move {
     /** Return the unique Move FROM-TO, or null if this is not a valid
      *  move. */
     static Move mv(Square from, Square to) {
-        if ((from.row() != to.row() && from.col() != to.col()) || from == to) {
+        if ((from.row() != to.row() && from.col() != to.col()) || from == to
+            || from.size() != to.size()) {
             return null;
         }
+        return MOVES[from.size()][from.index()][to.index()];
+    }
+
+    /** Return the Move whose 16-bit code (as returned by code()) is CODE,
+     *  or null if CODE does not denote a valid move. */
+    static Move mv(int code) {
+        return mv(code, BOARD_SIZE);
+    }
+
+    /** Return the Move on a board with SIZE rows and columns whose 16-bit
+     *  code (as returned by code()) is CODE, or null if CODE does not
+     *  denote a valid move. */
+    static Move mv(int code, int size) {
+        int from = (code >> 8) & 0xff, to = code & 0xff;
+        if (from >= size * size || to >= size * size) {
+            return null;
+        }
+        return MOVES[size][from][to];
+    }
 
-        if (MOVES[from.index()][to.index()] == null) {
-            MOVES[from.index()][to.index()] = new Move(from, to);
+    /** Return the table of the Moves on a board with SIZE rows and
+     *  columns: its entry [i][j] is the Move from the square with index i
+     *  to that with index j, or null if there is none.  The result must
+     *  not be modified. */
+    static Move[][] moves(int size) {
+        if (size < MIN_SIZE || size > MAX_SIZE || MOVES[size] == null) {
+            throw error("unsupported board size: %d", size);
         }
-        return MOVES[from.index()][to.index()];
+        return MOVES[size];
     }
 
     /** Return the Move denoted by STR, if STR denotes a move with
      *  valid syntax, and null otherwise. */
     static Move mv(String str) {
+        return mv(str, BOARD_SIZE);
+    }
+
+    /** Return the Move denoted by STR on a board with SIZE rows and
+     *  columns, if STR denotes a move with valid syntax between squares
+     *  of that board, and null otherwise. */
+    static Move mv(String str, int size) {
         _moveMatcher.reset(str);
         if (_moveMatcher.matches()) {
-            Square from = sq(_moveMatcher.group(1));
-            Square to;
-            if (_moveMatcher.group(5) == null) {
-                to = sq(_moveMatcher.group(4), _moveMatcher.group(3));
+            String col0 = _moveMatcher.group(2), row0 = _moveMatcher.group(3),
+                col1 = _moveMatcher.group(4), row1 = _moveMatcher.group(5);
+            if (col1 == null) {
+                col1 = col0;
             } else {
-                to = sq(_moveMatcher.group(2), _moveMatcher.group(5));
+                row1 = row0;
+            }
+            if (!exists(col0, row0, size) || !exists(col1, row1, size)) {
+                return null;
             }
-            return mv(from, to);
+            return mv(sq(col0, row0, size), sq(col1, row1, size));
         }
         return null;
     }
@@ -71,6 +110,19 @@ final class Move {
         return _moveMatcher.matches();
     }
 
+    /** Return true iff column letter COL and row number ROW (as text)
+     *  denote a square on a board with SIZE rows and columns. */
+    private static boolean exists(String col, String row, int size) {
+        return Square.exists(col.charAt(0) - 'a', Integer.parseInt(row) - 1,
+                             size);
+    }
+
+    /** Return a compact 16-bit encoding of me: the index of from() in the
+     *  high byte and the index of to() in the low byte. */
+    int code() {
+        return (_from.index() << 8) | _to.index();
+    }
+
     @Override
     public String toString() {
         return _str;
@@ -93,7 +145,7 @@ final class Move {
     private Move(Square from, Square to) {
         _from = from; _to = to;
         if (_from.col() == _to.col()) {
-            _str = String.format("%s-%c", from, (char) to.row() + '1');
+            _str = String.format("%s-%d", from, to.row() + 1);
         } else {
             _str = String.format("%s-%c", from, (char) to.col() + 'a');
         }
@@ -109,23 +161,40 @@ final class Move {
         return (_from.index() << 6) + _to.index();
     }
 
-    /** The cache of all Moves created. */
-    private static final Move[][] MOVES = new Move[NUM_SQUARES][NUM_SQUARES];
+    /** MOVES[n][i][j] is the move from the square with index i to that
+     *  with index j on the board with n rows and columns, or null if that
+     *  is not a rook move.  All moves are created in advance. */
+    private static final Move[][][] MOVES = new Move[MAX_SIZE + 1][][];
+
+    static {
+        for (int n = MIN_SIZE; n <= MAX_SIZE; n += 2) {
+            MOVES[n] = new Move[n * n][n * n];
+            for (Square sq0 : Square.squares(n)) {
+                for (int d = 0; d < 4; d += 1) {
+                    for (int k = 1; sq0.rookMove(d, k) != null; k += 1) {
+                        Square sq1 = sq0.rookMove(d, k);
+                        MOVES[n][sq0.index()][sq1.index()] =
+                            new Move(sq0, sq1);
+                    }
+                }
+            }
+        }
+    }
 
     /** ROOK_MOVES[i][d] is a list of all rook moves in direction
-     *  d from the square with index i. Direction displacements are defined
-     *  as in Square. Lists are in order of increasing distance from
-     *  square i. */
+     *  d from the square with index i on the 9x9 board. Direction
+     *  displacements are defined as in Square. Lists are in order of
+     *  increasing distance from square i. */
     static final MoveList[][] ROOK_MOVES = new MoveList[NUM_SQUARES][4];
 
     static {
         for (Square sq0 : SQUARE_LIST) {
-            int r0 = sq0.row(), c0 = sq0.col(), i0 = sq0.index();
+            int i0 = sq0.index();
             for (int d = 0; d < 4; d += 1) {
                 MoveList L = new MoveList();
                 ROOK_MOVES[i0][d] = L;
-                for (Square sq1 : ROOK_SQUARES[i0][d]) {
-                    L.add(mv(sq0, sq1));
+                for (int k = 1; sq0.rookMove(d, k) != null; k += 1) {
+                    L.add(mv(sq0, sq0.rookMove(d, k)));
                 }
             }
         }
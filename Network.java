@@ -0,0 +1,284 @@
+package tablut;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.lang.Math.*;
+import static tablut.Piece.*;
+import static tablut.Square.NUM_SQUARES;
+
+/** A small neural network that evaluates positions, in the manner of the
+ *  "efficiently updatable" (NNUE) networks of shogi and chess programs.
+ *  The input is sparse: one feature for each kind of piece (black, white,
+ *  king) on each square.  The first layer's output, the accumulator, is
+ *  the sum of the weight rows of the features present, and so changes
+ *  by one row subtracted and one added when a square changes; a Board
+ *  keeps it up to date as moves are made and undone (see
+ *  Board.accumulator).  Only the two small dense layers after it are
+ *  computed for each evaluation.
+ *
+ *  All arithmetic is in integers.  Weights and activations are 16-bit
+ *  fixed-point values, activations being clipped to [0, ONE] (that is,
+ *  [0, 1]) after each layer; sums are 32-bit.  The second layer adds the
+ *  weights of each nonzero input to all its sums at once, which skips
+ *  the many inputs clipped to 0 and leaves an inner loop over a short
+ *  array that the JIT compiler can vectorize.
+ *  The output estimates the log-odds of a win for white, and is scaled by
+ *  SCORE_SCALE to give a score in the units of AI's scores.  Networks are
+ *  produced by Trainer and kept in files (see read and write).
+ *  @author neal sharma
+ */
+final class Network {
+
+    /** Number of input features: three kinds of piece on each square. */
+    static final int FEATURES = 3 * NUM_SQUARES;
+
+    /** Width of the accumulator. */
+    static final int HIDDEN = 64;
+
+    /** Width of the second layer. */
+    static final int HIDDEN2 = 16;
+
+    /** The fixed-point representation of an activation of 1. */
+    static final int ONE = 127;
+
+    /** The fixed-point representation of a weight of 1 in the dense
+     *  layers. */
+    static final int WEIGHT_ONE = 64;
+
+    /** Score corresponding to an output (log-odds) of 1. */
+    static final int SCORE_SCALE = 100;
+
+    /** Identifies network files ("TNN1" in ASCII). */
+    static final int MAGIC = 0x544e4e31;
+
+    /** Multiplier of the digest computed by id() (that of 64-bit
+     *  FNV-1a). */
+    private static final long ID_PRIME = 0x100000001b3L;
+
+    /** A network with first-layer weights W0 (HIDDEN consecutive values
+     *  for each feature, scaled by ONE) and biases B0 (scaled by ONE);
+     *  second-layer weights W1 (HIDDEN2 consecutive values, one for each of
+     *  its outputs, for each of its HIDDEN inputs, scaled by WEIGHT_ONE)
+     *  and biases B1 (HIDDEN2 values with white to move, then HIDDEN2 with
+     *  black to move, scaled by ONE * WEIGHT_ONE); and output weights W2
+     *  (scaled by WEIGHT_ONE) and bias B2 (scaled by ONE * WEIGHT_ONE).
+     *  The arrays become mine. */
+    Network(short[] w0, short[] b0, short[] w1, int[] b1, short[] w2,
+            int b2) {
+        if (w0.length != FEATURES * HIDDEN || b0.length != HIDDEN
+            || w1.length != HIDDEN2 * HIDDEN || b1.length != 2 * HIDDEN2
+            || w2.length != HIDDEN2) {
+            throw Utils.error("wrong network dimensions");
+        }
+        _w0 = w0;
+        _b0 = b0;
+        _w1 = w1;
+        _b1 = b1;
+        _w2 = w2;
+        _b2 = b2;
+        long id = MAGIC;
+        for (short[] weights : new short[][] { w0, b0, w1, w2 }) {
+            for (short w : weights) {
+                id = (id ^ w) * ID_PRIME;
+            }
+        }
+        for (int b : b1) {
+            id = (id ^ b) * ID_PRIME;
+        }
+        id = (id ^ b2) * ID_PRIME;
+        _id = id == 0 ? 1 : id;
+    }
+
+    /** Return a nonzero digest of my weights and biases, which identifies
+     *  me: networks with the same weights have the same id, and others
+     *  almost certainly have different ones. */
+    long id() {
+        return _id;
+    }
+
+    /** Return the feature number for piece P (not EMPTY) on the square
+     *  with index I. */
+    static int feature(Piece p, int i) {
+        return (p.ordinal() - 1) * NUM_SQUARES + i;
+    }
+
+    /** Return the score of the position on BOARD, positive favoring
+     *  white. */
+    int evaluate(Board board) {
+        return board.accumulator(this).evaluate(board.turn() == BLACK);
+    }
+
+    /** Return the score for the accumulator values ACC with black to move
+     *  iff BLACKTOMOVE, using SUMS (of length HIDDEN2) as scratch
+     *  space. */
+    private int evaluate(short[] acc, boolean blackToMove, int[] sums) {
+        System.arraycopy(_b1, blackToMove ? HIDDEN2 : 0, sums, 0, HIDDEN2);
+        for (int j = 0; j < HIDDEN; j += 1) {
+            int x = min(max(acc[j], 0), ONE);
+            if (x != 0) {
+                int row = j * HIDDEN2;
+                for (int k = 0; k < HIDDEN2; k += 1) {
+                    sums[k] += _w1[row + k] * x;
+                }
+            }
+        }
+        int out = _b2;
+        for (int k = 0; k < HIDDEN2; k += 1) {
+            out += _w2[k] * min(max(sums[k] / WEIGHT_ONE, 0), ONE);
+        }
+        return (int) ((long) out * SCORE_SCALE / (ONE * WEIGHT_ONE));
+    }
+
+    /** Return the network in FILE, as written by write. */
+    static Network read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FEATURES
+                || in.readInt() != HIDDEN || in.readInt() != HIDDEN2) {
+                throw new IOException("not a network file: " + file);
+            }
+            short[] w0 = readShorts(in, FEATURES * HIDDEN),
+                b0 = readShorts(in, HIDDEN),
+                w1 = readShorts(in, HIDDEN2 * HIDDEN);
+            int[] b1 = new int[2 * HIDDEN2];
+            for (int k = 0; k < b1.length; k += 1) {
+                b1[k] = in.readInt();
+            }
+            short[] w2 = readShorts(in, HIDDEN2);
+            int b2 = in.readInt();
+            return new Network(w0, b0, w1, b1, w2, b2);
+        } catch (EOFException excp) {
+            throw new IOException("truncated network file: " + file);
+        }
+    }
+
+    /** Write me to FILE, in big-endian order: MAGIC, the dimensions
+     *  FEATURES, HIDDEN and HIDDEN2, and then the weights and biases in
+     *  the order of the constructor's parameters. */
+    void write(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                 new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FEATURES);
+            out.writeInt(HIDDEN);
+            out.writeInt(HIDDEN2);
+            writeShorts(out, _w0);
+            writeShorts(out, _b0);
+            writeShorts(out, _w1);
+            for (int b : _b1) {
+                out.writeInt(b);
+            }
+            writeShorts(out, _w2);
+            out.writeInt(_b2);
+        }
+    }
+
+    /** Return the next N shorts from IN. */
+    private static short[] readShorts(DataInputStream in, int n)
+        throws IOException {
+        short[] result = new short[n];
+        for (int i = 0; i < n; i += 1) {
+            result[i] = in.readShort();
+        }
+        return result;
+    }
+
+    /** Write VALUES to OUT. */
+    private static void writeShorts(DataOutputStream out, short[] values)
+        throws IOException {
+        for (short v : values) {
+            out.writeShort(v);
+        }
+    }
+
+    /** The first-layer outputs of a Network for the pieces on a Board,
+     *  kept up to date incrementally as squares change.  A Board creates
+     *  me on request (see Board.accumulator) and informs me of each change
+     *  thereafter. */
+    static final class Accumulator {
+
+        /** The accumulator of NETWORK for the pieces in CONTENTS, the square
+         *  array of a Board, which I read but do not change. */
+        Accumulator(Network network, Piece[] contents) {
+            _network = network;
+            _contents = contents;
+            rebuild();
+        }
+
+        /** Return the network whose accumulator I am. */
+        Network network() {
+            return _network;
+        }
+
+        /** Return my values, which the caller must not change. */
+        short[] values() {
+            return _values;
+        }
+
+        /** Return my network's score for the position, with black to move
+         *  iff BLACKTOMOVE. */
+        int evaluate(boolean blackToMove) {
+            return _network.evaluate(_values, blackToMove, _sums);
+        }
+
+        /** Recompute everything from scratch. */
+        void rebuild() {
+            System.arraycopy(_network._b0, 0, _values, 0, HIDDEN);
+            for (int i = 0; i < NUM_SQUARES; i += 1) {
+                if (_contents[i] != EMPTY) {
+                    add(feature(_contents[i], i), 1);
+                }
+            }
+        }
+
+        /** Update for a change of the contents of square I, which held
+         *  OLD. */
+        void update(int i, Piece old) {
+            if (old != EMPTY) {
+                add(feature(old, i), -1);
+            }
+            if (_contents[i] != EMPTY) {
+                add(feature(_contents[i], i), 1);
+            }
+        }
+
+        /** Add SIGN (1 or -1) times the weights of feature F to my
+         *  values. */
+        private void add(int f, int sign) {
+            short[] w0 = _network._w0;
+            int row = f * HIDDEN;
+            for (int j = 0; j < HIDDEN; j += 1) {
+                _values[j] += sign * w0[row + j];
+            }
+        }
+
+        /** The network. */
+        private final Network _network;
+        /** The board's squares. */
+        private final Piece[] _contents;
+        /** The first-layer outputs. */
+        private final short[] _values = new short[HIDDEN];
+        /** Scratch space for evaluate. */
+        private final int[] _sums = new int[HIDDEN2];
+    }
+
+    /** First-layer weights and biases. */
+    private final short[] _w0, _b0;
+    /** Second-layer weights. */
+    private final short[] _w1;
+    /** Second-layer biases for each side to move. */
+    private final int[] _b1;
+    /** Output weights. */
+    private final short[] _w2;
+    /** Output bias. */
+    private final int _b2;
+    /** See id(). */
+    private final long _id;
+}
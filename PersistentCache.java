@@ -0,0 +1,274 @@
+package tablut;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/** A SearchCache kept in a memory-mapped file, so that its contents
+ *  survive restarts and may be shared by several processes on one host
+ *  mapping the same file.  The file is a header of HEADER_BYTES bytes
+ *  followed by the slots of the cache (two longs per entry, as in
+ *  SearchCache), little-endian.  The header holds MAGIC, the format
+ *  VERSION, the number of entries, the id of the evaluation whose scores
+ *  the entries hold (see AI.evaluatorId), and a CRC-32 checksum of those
+ *  fields.  Each entry checks itself, since it holds its key XORed with
+ *  its data: a damaged or half-written entry does not match its key and
+ *  is ignored.  If the file cannot be written, it is mapped read-only and
+ *  stores are ignored, which suits processes that only profit from a
+ *  cache filled by others.
+ *
+ *  A file whose header is missing, corrupt, of another version or for
+ *  another evaluation is reinitialized (emptied) if writable, but only if
+ *  no other process is using it.  Processes coordinate with advisory
+ *  locks on two bytes far beyond the end of the file: each process
+ *  validates or initializes the file while holding an exclusive lock on
+ *  INIT_LOCK, and holds a shared lock on USE_LOCK for as long as it uses
+ *  the file.  A process may have only one cache open on a file at a
+ *  time.
+ *
+ *  Pages of the file are read only as they are touched, so opening is
+ *  cheap however large the cache.  Changes reach the file through the
+ *  operating system's page cache, and are forced to disk every
+ *  FLUSH_INTERVAL seconds on a background thread.
+ *  @author neal sharma
+ */
+class PersistentCache extends SearchCache {
+
+    /** Identifies cache files ("TablutTT" in ASCII). */
+    static final long MAGIC = 0x5461626c75745454L;
+
+    /** Version of the file format, including the layout of the data word
+     *  of an entry.  Files of other versions are reinitialized. */
+    static final int VERSION = 2;
+
+    /** Size of the file header in bytes. */
+    static final int HEADER_BYTES = 64;
+
+    /** Seconds between forcing changes to disk. */
+    static final int FLUSH_INTERVAL = 30;
+
+    /** Offsets of the header fields. */
+    private static final int MAGIC_OFFSET = 0, VERSION_OFFSET = 8,
+        ENTRIES_OFFSET = 12, EVALUATOR_OFFSET = 16, CHECKSUM_OFFSET = 24;
+
+    /** Positions of the bytes locked while validating or initializing the
+     *  file, and while using it. */
+    private static final long INIT_LOCK = Long.MAX_VALUE - 2,
+        USE_LOCK = Long.MAX_VALUE - 1;
+
+    /** Access to the slots of a mapped file as longs, with the memory
+     *  ordering of AtomicLongArray. */
+    private static final VarHandle LONGS =
+        MethodHandles.byteBufferViewVarHandle(long[].class,
+                                              ByteOrder.LITTLE_ENDIAN);
+
+    /** Thread that forces changes to disk. */
+    private static final ScheduledExecutorService FLUSHER =
+        Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "cache-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    /** A cache of ENTRIES entries (a power of two) in the file mapped to
+     *  BUFFER, which may be read-only, and open on CHANNEL, which holds
+     *  this process's shared lock on USE_LOCK. */
+    private PersistentCache(MappedByteBuffer buffer, int entries,
+                            FileChannel channel) {
+        super(entries, false);
+        _buffer = buffer;
+        _readOnly = buffer.isReadOnly();
+        _channel = channel;
+        _flushTask = _readOnly ? null
+            : FLUSHER.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL,
+                                             FLUSH_INTERVAL,
+                                             TimeUnit.SECONDS);
+    }
+
+    /** Return a cache kept in FILE for scores from the evaluation whose id
+     *  is EVALUATOR (see AI.evaluatorId).  If FILE holds a valid cache for
+     *  that evaluation, it is used as is, whatever its size; otherwise, if
+     *  FILE can be written and no other process is using it, it is
+     *  (re)created with room for at least ENTRIES entries.  If FILE cannot
+     *  be written, it is used read-only.  Throws IOException if FILE
+     *  cannot be used. */
+    static synchronized PersistentCache open(Path file, int entries,
+                                             long evaluator)
+        throws IOException {
+        FileChannel channel;
+        boolean writable = true;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ,
+                                       StandardOpenOption.WRITE,
+                                       StandardOpenOption.CREATE);
+        } catch (AccessDeniedException excp) {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            writable = false;
+        }
+        boolean opened = false;
+        try {
+            FileLock init = channel.lock(INIT_LOCK, 1, !writable);
+            int existing = validEntries(channel, evaluator);
+            if (existing > 0) {
+                entries = existing;
+            } else if (!writable) {
+                throw new IOException("not a valid cache file: " + file);
+            } else {
+                entries = SearchCache.buckets(entries) * BUCKET_SIZE;
+                FileLock unused = tryLock(channel, false);
+                if (unused == null) {
+                    throw new IOException("cache file in use for other"
+                                          + " scores: " + file);
+                }
+                unused.release();
+                channel.truncate(0);
+            }
+            long size = HEADER_BYTES + 16L * entries;
+            MappedByteBuffer buffer =
+                channel.map(writable ? FileChannel.MapMode.READ_WRITE
+                            : FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (existing == 0) {
+                writeHeader(buffer, entries, evaluator);
+                buffer.force();
+            }
+            tryLock(channel, true);
+            PersistentCache result =
+                new PersistentCache(buffer, entries, channel);
+            init.release();
+            opened = true;
+            return result;
+        } finally {
+            if (!opened) {
+                channel.close();
+            }
+        }
+    }
+
+    /** Return a cache kept in FILE, as for open(FILE, ENTRIES, EVALUATOR),
+     *  or, if that fails, an ordinary cache of ENTRIES entries, after
+     *  printing a warning. */
+    static SearchCache openOrFallBack(Path file, int entries,
+                                      long evaluator) {
+        try {
+            return open(file, entries, evaluator);
+        } catch (IOException excp) {
+            System.err.printf("Warning: cannot use cache file: %s%n",
+                              excp.getMessage());
+            return new SearchCache(entries);
+        }
+    }
+
+    /** Return true iff my file is mapped read-only. */
+    boolean readOnly() {
+        return _readOnly;
+    }
+
+    /** Force any changes to disk. */
+    void flush() {
+        _buffer.force();
+    }
+
+    /** Force any changes to disk and stop using my file, so that other
+     *  processes may reinitialize it.  I must not be used afterwards. */
+    synchronized void close() throws IOException {
+        if (_flushTask != null) {
+            _flushTask.cancel(false);
+            flush();
+        }
+        _channel.close();
+    }
+
+    @Override
+    protected long slot(int i) {
+        return (long) LONGS.getVolatile(_buffer, HEADER_BYTES + 8 * i);
+    }
+
+    @Override
+    protected void setSlot(int i, long value) {
+        if (!_readOnly) {
+            LONGS.setVolatile(_buffer, HEADER_BYTES + 8 * i, value);
+        }
+    }
+
+    /** Return a lock on the USE_LOCK byte of the file open on CHANNEL,
+     *  shared iff SHARED, or null if it is held incompatibly by another
+     *  process or at all by this one (whose lock, if shared, serves for
+     *  all its caches). */
+    private static FileLock tryLock(FileChannel channel, boolean shared)
+        throws IOException {
+        try {
+            return channel.tryLock(USE_LOCK, 1, shared);
+        } catch (OverlappingFileLockException excp) {
+            return null;
+        }
+    }
+
+    /** Return the number of entries recorded in the header of the file
+     *  open on CHANNEL, or 0 if it has no valid header for the
+     *  evaluation whose id is EVALUATOR or its size does not match. */
+    private static int validEntries(FileChannel channel, long evaluator)
+        throws IOException {
+        if (channel.size() < HEADER_BYTES) {
+            return 0;
+        }
+        ByteBuffer header =
+            ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        int entries = header.getInt(ENTRIES_OFFSET);
+        if (header.getLong(MAGIC_OFFSET) != MAGIC
+            || header.getInt(VERSION_OFFSET) != VERSION
+            || header.getLong(EVALUATOR_OFFSET) != evaluator
+            || header.getLong(CHECKSUM_OFFSET) != checksum(header)
+            || entries <= 0 || Integer.bitCount(entries) != 1
+            || channel.size() != HEADER_BYTES + 16L * entries) {
+            return 0;
+        }
+        return entries;
+    }
+
+    /** Write a header for a cache of ENTRIES entries for the evaluation
+     *  whose id is EVALUATOR to BUFFER. */
+    private static void writeHeader(ByteBuffer buffer, int entries,
+                                    long evaluator) {
+        buffer.putLong(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(ENTRIES_OFFSET, entries);
+        buffer.putLong(EVALUATOR_OFFSET, evaluator);
+        buffer.putLong(CHECKSUM_OFFSET, checksum(buffer));
+    }
+
+    /** Return the CRC-32 checksum of the header fields before the
+     *  checksum in BUFFER. */
+    private static long checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        for (int k = 0; k < CHECKSUM_OFFSET; k += 1) {
+            crc.update(buffer.get(k));
+        }
+        return crc.getValue();
+    }
+
+    /** The mapped file. */
+    private final MappedByteBuffer _buffer;
+    /** True iff _buffer is read-only. */
+    private final boolean _readOnly;
+    /** The channel open on the file, on which the lock on USE_LOCK is
+     *  held. */
+    private final FileChannel _channel;
+    /** The periodic call of flush, or null if read-only. */
+    private final ScheduledFuture<?> _flushTask;
+}
@@ -1,5 +1,9 @@
 package tablut;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import static tablut.Utils.*;
 
 /** A generic Tablut Player.
@@ -39,6 +43,37 @@ abstract class Player {
      *  is not null. */
     abstract String myMove();
 
+    /** Start computing a move for me in the current position, assuming it
+     *  is my move and the game is not over, and return a future for it.
+     *  The computation runs in the background on a copy of the board.
+     *  Cancelling the future asks it to stop as soon as convenient.  When
+     *  System.nanoTime() passes DEADLINE, the computation completes the
+     *  future with the best move it has found so far.  Only automated
+     *  players support this; for others, the future fails with
+     *  UnsupportedOperationException. */
+    CompletableFuture<Move> myMoveAsync(long deadline) {
+        CompletableFuture<Move> result = new CompletableFuture<>();
+        result.completeExceptionally(new UnsupportedOperationException());
+        return result;
+    }
+
+    /** Return a command entered by my user while another player is
+     *  thinking that should interrupt it (see Controller.isInterrupt),
+     *  removing it from my input, or null if there is none.  Never waits.
+     *  By default, returns null. */
+    String pendingInterrupt() {
+        return null;
+    }
+
+    /** Threads on which automated players compute moves in the
+     *  background. */
+    static final ExecutorService SEARCH_THREADS =
+        Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "search");
+            thread.setDaemon(true);
+            return thread;
+        });
+
     /** My Controller. */
     protected Controller _controller;
     /** The Piece I play (WHITE or BLACK). */
@@ -0,0 +1,264 @@
+package tablut;
+
+import java.util.concurrent.Future;
+
+import static java.lang.Math.*;
+import static tablut.Piece.*;
+
+/** A proof-number search (after Allis) for a forced win by the side to
+ *  move: the king's escape for white, or its capture for black, within a
+ *  given number of plies.  The search tree is kept in parallel arrays
+ *  with room for a fixed number of nodes, the children of each node
+ *  being contiguous, so that memory use is bounded; a search that fills
+ *  the table gives up.  Each iteration walks from the root to a most-
+ *  proving node, making the moves on the board, expands it, and backs up
+ *  the proof and disproof numbers, undoing the moves.  When white is the
+ *  attacker, positions in which KingEscape finds a forced escape are
+ *  proved without expansion.
+ *
+ *  A proof also yields its length: the number of plies in which the
+ *  attacker wins against the best defence in the proof tree, as used for
+ *  AI's WINNING_VALUE scores.
+ *  @author neal sharma
+ */
+class ProofSearch {
+
+    /** Default number of nodes in the table. */
+    static final int DEFAULT_NODES = 1 << 17;
+
+    /** Default maximum length of a proof, in plies. */
+    static final int DEFAULT_PLIES = 7;
+
+    /** A proof or disproof number standing for infinity. */
+    private static final int INFINITY = 1 << 28;
+
+    /** Number of iterations between checks for cancellation. */
+    private static final int CHECK_INTERVAL = 64;
+
+    /** A search with room for NODES nodes. */
+    ProofSearch(int nodes) {
+        _pn = new int[nodes];
+        _dn = new int[nodes];
+        _first = new int[nodes];
+        _count = new short[nodes];
+        _length = new byte[nodes];
+        _move = new short[nodes];
+    }
+
+    /** Return true iff BOARD is tactical enough to be worth a proof
+     *  search: the king is on the board and either has an open ray to
+     *  an escape square or no more than two of its neighbours free of
+     *  black pieces. */
+    static boolean isTactical(Board board) {
+        Square king = board.kingPosition();
+        if (king == null || board.winner() != null) {
+            return false;
+        }
+        if (KingEscape.openRays(board) > 0) {
+            return true;
+        }
+        int[] neighbor = board.variant().neighbor();
+        int free = 0;
+        for (int d = 0; d < 4; d += 1) {
+            int n = neighbor[4 * king.index() + d];
+            if (n >= 0 && board.get(board.square(n)) != BLACK) {
+                free += 1;
+            }
+        }
+        return free <= 2;
+    }
+
+    /** Search for a win for the side to move in BOARD in at most MAXPLIES
+     *  plies.  Gives up when System.nanoTime() passes DEADLINE, when CANCEL
+     *  (if non-null) is done, or when my table is full.  Returns the length
+     *  in plies of the win found, or -1 if none was (that is, if the
+     *  position was disproved or the search gave up).  BOARD is restored
+     *  before returning.  Each call starts afresh, reusing my table. */
+    int solve(Board board, int maxPlies, long deadline, Future<?> cancel) {
+        _attacker = board.turn();
+        _rootMoveCount = board.moveCount();
+        _maxPlies = maxPlies;
+        _size = 1;
+        _bestMove = null;
+        _iterations = 0;
+        _pn[0] = _dn[0] = 1;
+        _count[0] = 0;
+        if (board.winner() != null) {
+            return -1;
+        }
+        while (_pn[0] != 0 && _dn[0] != 0) {
+            _iterations += 1;
+            if (_iterations % CHECK_INTERVAL == 0
+                && (System.nanoTime() > deadline
+                    || cancel != null && cancel.isDone())) {
+                return -1;
+            }
+            int node = 0, depth = 0;
+            while (_count[node] > 0) {
+                node = mostProvingChild(board, node);
+                board.makeMove(board.move(_move[node]));
+                _path[depth] = node;
+                depth += 1;
+            }
+            boolean expanded = expand(board, node);
+            while (depth > 0) {
+                update(board, _path[depth - 1]);
+                board.undo();
+                depth -= 1;
+            }
+            update(board, 0);
+            if (!expanded) {
+                return -1;
+            }
+        }
+        if (_pn[0] != 0) {
+            return -1;
+        }
+        int best = -1;
+        for (int c = _first[0]; c < _first[0] + _count[0]; c += 1) {
+            if (_pn[c] == 0 && (best < 0 || _length[c] < _length[best])) {
+                best = c;
+            }
+        }
+        _bestMove = best < 0 ? null : board.move(_move[best]);
+        return _length[0];
+    }
+
+    /** Return the first move of the win found by the last solve, or null
+     *  if it failed. */
+    Move bestMove() {
+        return _bestMove;
+    }
+
+    /** Return the number of nodes used by the last solve. */
+    int nodes() {
+        return _size;
+    }
+
+    /** Return the child of NODE, whose position is on BOARD, on which to
+     *  continue towards a most-proving node. */
+    private int mostProvingChild(Board board, int node) {
+        boolean or = board.turn() == _attacker;
+        int end = _first[node] + _count[node];
+        for (int c = _first[node]; c < end; c += 1) {
+            if (or ? _pn[c] == _pn[node] : _dn[c] == _dn[node]) {
+                return c;
+            }
+        }
+        throw new IllegalStateException("inconsistent proof numbers");
+    }
+
+    /** Expand NODE, whose position is on BOARD, creating and evaluating its
+     *  children, unless it is at the maximum depth, in which case it is
+     *  disproved.  Return false if there is no room for the children. */
+    private boolean expand(Board board, int node) {
+        if (board.moveCount() - _rootMoveCount >= _maxPlies) {
+            _pn[node] = INFINITY;
+            _dn[node] = 0;
+            return true;
+        }
+        int n = board.generateMoves(board.turn(), _moves);
+        if (_size + n > _pn.length) {
+            return false;
+        }
+        _first[node] = _size;
+        _count[node] = (short) n;
+        for (int k = 0; k < n; k += 1) {
+            int c = _size;
+            _size += 1;
+            _move[c] = (short) _moves[k];
+            _count[c] = 0;
+            board.makeMove(board.move(_moves[k]));
+            _pn[c] = _dn[c] = 1;
+            evaluate(board, c);
+            board.undo();
+        }
+        return true;
+    }
+
+    /** Set the proof and disproof numbers of the unexpanded NODE, whose
+     *  position is on BOARD, if it is decided.  */
+    private void evaluate(Board board, int node) {
+        Piece winner = board.winner();
+        int escape;
+        if (winner == _attacker) {
+            prove(node, 0);
+        } else if (winner != null) {
+            _pn[node] = INFINITY;
+            _dn[node] = 0;
+        } else if (_attacker == WHITE
+                   && (escape = KingEscape.forcedEscape(board)) > 0
+                   && board.moveLimit() - board.moveCount() > escape
+                   && board.moveCount() - _rootMoveCount + escape
+                      <= _maxPlies) {
+            prove(node, escape);
+        }
+    }
+
+    /** Mark NODE as proved, with the attacker winning in LENGTH plies. */
+    private void prove(int node, int length) {
+        _pn[node] = 0;
+        _dn[node] = INFINITY;
+        _length[node] = (byte) length;
+    }
+
+    /** Recompute the proof and disproof numbers (and the proof length) of
+     *  NODE, whose position is on BOARD, from those of its children, if
+     *  it has any. */
+    private void update(Board board, int node) {
+        if (_count[node] == 0) {
+            return;
+        }
+        boolean or = board.turn() == _attacker;
+        long sum = 0;
+        int min = INFINITY, length = or ? Integer.MAX_VALUE : 0;
+        int end = _first[node] + _count[node];
+        for (int c = _first[node]; c < end; c += 1) {
+            sum += or ? _dn[c] : _pn[c];
+            min = min(min, or ? _pn[c] : _dn[c]);
+            if (_pn[c] == 0) {
+                length = or ? min(length, _length[c] + 1)
+                    : max(length, _length[c] + 1);
+            }
+        }
+        int total = (int) min(sum, INFINITY);
+        if (or) {
+            _pn[node] = min;
+            _dn[node] = total;
+        } else {
+            _pn[node] = total;
+            _dn[node] = min;
+        }
+        if (_pn[node] == 0) {
+            _length[node] = (byte) length;
+        }
+    }
+
+    /** The side trying to win. */
+    private Piece _attacker;
+    /** Move count of the root position. */
+    private int _rootMoveCount;
+    /** Maximum length of a proof. */
+    private int _maxPlies;
+    /** Number of nodes in use. */
+    private int _size;
+    /** Iterations of the current search. */
+    private long _iterations;
+    /** See bestMove(). */
+    private Move _bestMove;
+    /** Proof and disproof numbers of each node. */
+    private final int[] _pn, _dn;
+    /** Index of the first child of each node. */
+    private final int[] _first;
+    /** Number of children of each node, or 0 if not expanded. */
+    private final short[] _count;
+    /** Length of the proof for each proved node. */
+    private final byte[] _length;
+    /** Code of the move leading to each node. */
+    private final short[] _move;
+    /** _path[k] is the node k + 1 plies below the root on the path to the
+     *  current node. */
+    private final int[] _path = new int[Byte.MAX_VALUE];
+    /** Buffer for move generation. */
+    private final int[] _moves = new int[Board.MAX_MOVES];
+}
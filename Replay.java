@@ -0,0 +1,202 @@
+package tablut;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Tools for converting text logs (as produced by --log) into game records
+ *  and for re-validating large game record files in parallel.
+ *  @author neal sharma
+ */
+class Replay {
+
+    /** Number of games handed to a worker at a time. */
+    private static final int BATCH_SIZE = 4096;
+
+    /** Matches the "limit" command in a text log. */
+    private static final Pattern LIMIT = Pattern.compile("limit\\s+(\\d+)");
+
+    /** Matches the "variant" command in a text log. */
+    private static final Pattern VARIANT =
+        Pattern.compile("variant\\s+(\\w+)(?:\\s+(edge|corner))?"
+                        + "(\\s+unarmed)?");
+
+    /** Matches comments in a text log. */
+    private static final Pattern COMMENT = Pattern.compile("#.*");
+
+    /** Convert the text log in LOG into a game record file OUT of games of
+     *  VARIANT.  Games are separated by "new", "variant" and "quit"
+     *  commands, and the log starts with a game of VARIANT.  Games that
+     *  were set up with "toggle" cannot be recorded and are skipped, as
+     *  are games of other variants and illegal moves.  Returns the number
+     *  of games written. */
+    static long convert(Path log, Path out, Variant variant)
+        throws IOException {
+        Board board = new Board(variant);
+        short[] moves = new short[64];
+        int n, limit;
+        boolean recordable;
+        n = limit = 0;
+        recordable = true;
+        try (BufferedReader in = Files.newBufferedReader(log);
+             GameRecord.Writer writer = new GameRecord.Writer(out, variant)) {
+            while (true) {
+                String line = in.readLine();
+                String cmnd = line == null ? "quit"
+                    : COMMENT.matcher(line).replaceFirst("").trim()
+                        .toLowerCase();
+                Matcher lim = LIMIT.matcher(cmnd);
+                Matcher var = VARIANT.matcher(cmnd);
+                Move move = board.move(cmnd);
+                Variant next = null;
+                if (var.matches()) {
+                    try {
+                        next = Variant.forOptions(var.group(1), var.group(2),
+                                                  var.group(3) != null);
+                    } catch (IllegalArgumentException excp) {
+                        /* Ignore variants the game itself rejected. */
+                    }
+                }
+                if (cmnd.equals("new") || cmnd.equals("quit")
+                    || next != null) {
+                    if (recordable && n > 0) {
+                        writer.write(moves, n, limit,
+                                     GameRecord.resultOf(board));
+                    }
+                    if (line == null) {
+                        break;
+                    }
+                    if (next != null) {
+                        board.init(next);
+                    } else {
+                        board.init();
+                    }
+                    n = limit = 0;
+                    recordable = board.variant().equals(variant);
+                } else if (cmnd.equals("undo")) {
+                    if (board.moveCount() > 1) {
+                        board.undo();
+                        board.undo();
+                        n -= 2;
+                    }
+                } else if (cmnd.startsWith("toggle")) {
+                    recordable = false;
+                } else if (lim.matches()) {
+                    try {
+                        board.setMoveLimit(Integer.parseInt(lim.group(1)));
+                        limit = Integer.parseInt(lim.group(1));
+                    } catch (IllegalArgumentException excp) {
+                        /* Ignore limits the game itself rejected. */
+                    }
+                } else if (move != null && board.winner() == null
+                           && board.isLegal(move)) {
+                    if (n == moves.length) {
+                        moves = Arrays.copyOf(moves, 2 * n);
+                    }
+                    moves[n] = (short) move.code();
+                    n += 1;
+                    board.makeMove(move);
+                }
+            }
+            return writer.count();
+        }
+    }
+
+    /** Replay every game in the record file FILE through Board.makeMove
+     *  using THREADS worker threads, checking that each move is legal and
+     *  that the recorded result matches.  Returns a two-element array
+     *  containing the number of valid and invalid games. */
+    static long[] validate(Path file, int threads) throws IOException {
+        BlockingQueue<List<GameRecord>> work =
+            new ArrayBlockingQueue<>(2 * threads);
+        AtomicLong valid = new AtomicLong(), invalid = new AtomicLong();
+        GameRecord.Reader reader = new GameRecord.Reader(file);
+        Variant variant = reader.variant();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i += 1) {
+            workers[i] = new Thread(() -> {
+                Board board = new Board(variant);
+                try {
+                    while (true) {
+                        List<GameRecord> batch = work.take();
+                        if (batch.isEmpty()) {
+                            return;
+                        }
+                        for (GameRecord game : batch) {
+                            if (isValid(game, board)) {
+                                valid.incrementAndGet();
+                            } else {
+                                invalid.incrementAndGet();
+                            }
+                        }
+                    }
+                } catch (InterruptedException excp) {
+                    /* Terminate. */
+                }
+            }, "replay-" + i);
+            workers[i].start();
+        }
+
+        try (GameRecord.Reader input = reader) {
+            while (true) {
+                List<GameRecord> batch = new ArrayList<>(BATCH_SIZE);
+                for (GameRecord game = input.next();
+                     game != null; game = input.next()) {
+                    batch.add(game);
+                    if (batch.size() == BATCH_SIZE) {
+                        break;
+                    }
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                work.put(batch);
+            }
+            for (int i = 0; i < threads; i += 1) {
+                work.put(new ArrayList<>());
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException excp) {
+            throw new IllegalStateException("replay interrupted");
+        } finally {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        }
+        return new long[] { valid.get(), invalid.get() };
+    }
+
+    /** Return true iff GAME replays legally on BOARD (which is
+     *  reinitialized first to the initial position of its variant) and
+     *  produces its recorded result. */
+    static boolean isValid(GameRecord game, Board board) {
+        try {
+            board.init();
+            if (game.limit() > 0) {
+                board.setMoveLimit(game.limit());
+            }
+            for (int k = 0; k < game.size(); k += 1) {
+                Move move = board.move(game.moveCode(k));
+                if (move == null || board.winner() != null
+                    || !board.isLegal(move)) {
+                    return false;
+                }
+                board.makeMove(move);
+            }
+            return GameRecord.resultOf(board) == game.result();
+        } catch (IllegalArgumentException excp) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,600 @@
+package tablut;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static tablut.Piece.*;
+
+/** Plays many random games of Tablut, or one of its variants, in
+ *  lock-step.  The state of all games is kept in a few flat arrays: each
+ *  game owns a set of consecutive longs of _masks holding bit masks of its
+ *  black pieces, white pieces (other than the king) and king, each as wide
+ *  as the board requires, plus one slot in each of the per-game arrays.
+ *  Each call to step() makes one random move in every unfinished game
+ *  without creating any objects.  The geometry comes from the precomputed
+ *  tables of the Variant.  The rules are those of a Board of the same
+ *  variant, including captures against the throne, the escape rule, wins
+ *  by blocking, move limits and repeated positions, and the games' hashes
+ *  agree with Board.hash().
+ *  @author neal sharma
+ */
+class RolloutEngine {
+
+    /** Default number of games for playRandom. */
+    static final int DEFAULT_GAMES = 10000;
+
+    /** Default maximum length of the games of playRandom. */
+    static final int DEFAULT_MAX_PLIES = 500;
+
+    /** Number of games played at once by playRandom. */
+    private static final int PLAY_BATCH = 1024;
+
+    /** A new engine for GAMES simultaneous games of Tablut of at most
+     *  MAXPLIES moves each, all initially in the starting position, using
+     *  a random sequence determined by SEED. */
+    RolloutEngine(int games, int maxPlies, long seed) {
+        this(Variant.TABLUT, games, maxPlies, seed);
+    }
+
+    /** A new engine for GAMES simultaneous games of VARIANT of at most
+     *  MAXPLIES moves each, all initially in the starting position, using
+     *  a random sequence determined by SEED. */
+    RolloutEngine(Variant variant, int games, int maxPlies, long seed) {
+        _variant = variant;
+        _words = variant.words();
+        _setWords = 3 * _words;
+        _rays = variant.rays();
+        _neighbor = variant.neighbor();
+        _beyond = variant.beyond();
+        _kingGuards = variant.kingGuards();
+        _zobrist = variant.zobrist();
+        _whiteToMove = variant.whiteToMove();
+        _throne = variant.throne();
+        _armedKing = variant.armedKing();
+        _escape = new boolean[variant.squares()];
+        _hostile = new boolean[variant.squares()];
+        for (int i = 0; i < variant.squares(); i += 1) {
+            _escape[i] = variant.isEscape(i);
+            _hostile[i] = variant.isHostile(i);
+        }
+        _pawnRays = variant.pawnRays();
+        _games = games;
+        _maxPlies = maxPlies;
+        _masks = new long[games * _setWords];
+        _turn = new byte[games];
+        _winner = new byte[games];
+        _repeated = new boolean[games];
+        _plies = new int[games];
+        _sinceCapture = new int[games];
+        _lastMove = new int[games];
+        _limit = new int[games];
+        _contents = new Piece[variant.squares()];
+        _history = new long[games * (maxPlies + 1)];
+        _random = seed == 0 ? 1 : seed;
+        _moveLimit = Integer.MAX_VALUE;
+        for (int g = 0; g < games; g += 1) {
+            reset(g);
+        }
+    }
+
+    /** Play GAMES random games of VARIANT from its initial position, of at
+     *  most MAXPLIES moves each, using random sequences determined by SEED.
+     *  Return the numbers of games won by white, won by black, and
+     *  unfinished, in that order. */
+    static long[] playRandom(Variant variant, long games, int maxPlies,
+                             long seed) {
+        SplittableRandom seeds = new SplittableRandom(seed);
+        long[] result = new long[3];
+        for (long played = 0; played < games; played += PLAY_BATCH) {
+            int n = (int) Math.min(PLAY_BATCH, games - played);
+            RolloutEngine engine =
+                new RolloutEngine(variant, n, maxPlies, seeds.nextLong());
+            engine.run();
+            for (int g = 0; g < n; g += 1) {
+                Piece winner = engine.winner(g);
+                result[winner == WHITE ? 0 : winner == BLACK ? 1 : 2] += 1;
+            }
+        }
+        return result;
+    }
+
+    /** Return the variant being played. */
+    Variant variant() {
+        return _variant;
+    }
+
+    /** Return the number of games. */
+    int games() {
+        return _games;
+    }
+
+    /** End each game as a loss for the side to move once its move count
+     *  reaches LIMIT, as for Board.setMoveLimit.  This applies to all
+     *  games, except that later calls to load(G, BOARD) impose BOARD's
+     *  limit instead. */
+    void setMoveLimit(int limit) {
+        _moveLimit = limit;
+        Arrays.fill(_limit, limit);
+    }
+
+    /** If ESCAPEFIRST, white always takes a move of the king to an escape
+     *  square when it has one, rather than a random move.  This makes the
+     *  games better estimates of the value of their starting positions,
+     *  at little cost. */
+    void setEscapeFirst(boolean escapeFirst) {
+        _escapeFirst = escapeFirst;
+    }
+
+    /** Replace game G with a new game starting from the position in
+     *  BOARD (but not its history), subject to the moves remaining before
+     *  BOARD's move limit.  BOARD must be of my variant. */
+    void load(int g, Board board) {
+        if (!board.variant().equals(_variant)) {
+            throw Utils.error("board is not of variant %s", _variant);
+        }
+        for (int i = 0; i < _contents.length; i += 1) {
+            _contents[i] = board.get(board.square(i));
+        }
+        load(g, _contents, board.turn(), board.winner());
+        _limit[g] = board.moveLimit() - board.moveCount();
+    }
+
+    /** Replace game G with a new game in the initial position of the
+     *  variant. */
+    void reset(int g) {
+        for (int i = 0; i < _contents.length; i += 1) {
+            _contents[i] = _variant.initial(i);
+        }
+        load(g, _contents, _variant.firstTurn(), null);
+        _limit[g] = _moveLimit;
+    }
+
+    /** Replace game G with a new game whose square i contains CONTENTS[i],
+     *  with TURN to move, and already won by WINNER (null if none). */
+    private void load(int g, Piece[] contents, Piece turn, Piece winner) {
+        int b = g * _setWords;
+        Arrays.fill(_masks, b, b + _setWords, 0L);
+        long hash = 0;
+        for (int i = 0; i < contents.length; i += 1) {
+            Piece p = contents[i];
+            if (p != EMPTY) {
+                set(b + offset(p), i);
+                hash ^= _zobrist[p.ordinal()][i];
+            }
+        }
+        _turn[g] = (byte) turn.ordinal();
+        if (turn == WHITE) {
+            hash ^= _whiteToMove;
+        }
+        _winner[g] = (byte) (winner == null ? 0 : winner.ordinal());
+        _repeated[g] = false;
+        _plies[g] = _sinceCapture[g] = 0;
+        _lastMove[g] = -1;
+        _history[g * (_maxPlies + 1)] = hash;
+    }
+
+    /** Make one random move in every game that has neither been won nor
+     *  reached the maximum number of moves.  Return true iff any game
+     *  remains unfinished afterwards. */
+    boolean step() {
+        boolean running = false;
+        for (int g = 0; g < _games; g += 1) {
+            if (!finished(g)) {
+                int move = randomMove(g);
+                makeMove(g, move >> 8, move & 0xff);
+                running |= !finished(g);
+            }
+        }
+        return running;
+    }
+
+    /** Step until all games are finished, returning the number of calls
+     *  to step. */
+    int run() {
+        int steps = 0;
+        do {
+            steps += 1;
+        } while (step());
+        return steps;
+    }
+
+    /** Return true iff game G is won or has reached the maximum length. */
+    boolean finished(int g) {
+        return _winner[g] != 0 || _plies[g] == _maxPlies;
+    }
+
+    /** Return the winner of game G, or null if there is none yet. */
+    Piece winner(int g) {
+        return _winner[g] == 0 ? null : PIECES[_winner[g]];
+    }
+
+    /** Return true iff game G ended in a repeated position. */
+    boolean repeatedPosition(int g) {
+        return _repeated[g];
+    }
+
+    /** Return the side to move in game G. */
+    Piece turn(int g) {
+        return PIECES[_turn[g]];
+    }
+
+    /** Return the number of moves made in game G. */
+    int plies(int g) {
+        return _plies[g];
+    }
+
+    /** Return the code (see Move.code) of the last move made in game G, or
+     *  -1 if there is none. */
+    int lastMove(int g) {
+        return _lastMove[g];
+    }
+
+    /** Return the hash of the current position in game G, as for
+     *  Board.hash(). */
+    long hash(int g) {
+        return _history[g * (_maxPlies + 1) + _plies[g]];
+    }
+
+    /** Return the contents of the square with index I in game G. */
+    Piece get(int g, int i) {
+        return PIECES[pieceAt(g * _setWords, i)];
+    }
+
+    /** Return a random legal move code for the side to move in unfinished
+     *  game G: a random piece that can move, then a random destination for
+     *  it (but see setEscapeFirst).  There must be such a move. */
+    private int randomMove(int g) {
+        int b = g * _setWords;
+        boolean white = _turn[g] == WHITE.ordinal();
+        if (white && _escapeFirst) {
+            int escape = kingEscape(b);
+            if (escape >= 0) {
+                return escape;
+            }
+        }
+        int pieces = 0;
+        for (int w = 0; w < _words; w += 1) {
+            pieces += Long.bitCount(sideWord(b, white, w));
+        }
+        int start = nextInt(pieces);
+        for (int k = 0; k < pieces; k += 1) {
+            int from = nthBit(b, white, (start + k) % pieces);
+            boolean king = test(b + KING_MASK, from);
+            int targets = 0;
+            for (int d = 0; d < 4; d += 1) {
+                targets += reach(b, from, d, king);
+            }
+            if (targets == 0) {
+                continue;
+            }
+            int r = nextInt(targets);
+            for (int d = 0; d < 4; d += 1) {
+                int n = reach(b, from, d, king);
+                if (r < n) {
+                    return from << 8 | destination(b, from, d, king, r);
+                }
+                r -= n;
+            }
+        }
+        throw new IllegalStateException("no legal move");
+    }
+
+    /** Return the code of a move of the king to an escape square in the
+     *  game with mask set B, or -1 if there is none. */
+    private int kingEscape(int b) {
+        int king = kingSquare(b);
+        for (int d = 0; king >= 0 && d < 4; d += 1) {
+            int n = reach(b, king, d, true);
+            if (n > 0) {
+                int to = destination(b, king, d, true, n - 1);
+                if (_escape[to]) {
+                    return king << 8 | to;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** Return the number of squares the piece at FROM (the king iff KING)
+     *  may move to in direction D in the game with mask set B. */
+    private int reach(int b, int from, int d, boolean king) {
+        int n = 0;
+        for (int to : (king ? _rays : _pawnRays)[4 * from + d]) {
+            if (occupied(b, to)) {
+                break;
+            }
+            if (king || to != _throne) {
+                n += 1;
+            }
+        }
+        return n;
+    }
+
+    /** Return the Rth (from 0) destination counted by reach(B, FROM, D,
+     *  KING). */
+    private int destination(int b, int from, int d, boolean king, int r) {
+        for (int to : (king ? _rays : _pawnRays)[4 * from + d]) {
+            if (king || to != _throne) {
+                if (r == 0) {
+                    return to;
+                }
+                r -= 1;
+            }
+        }
+        throw new IllegalStateException("bad destination");
+    }
+
+    /** Return true iff the side whose Piece ordinal is SIDE has a legal
+     *  move in the game with mask set B. */
+    private boolean hasMove(int b, int side) {
+        boolean white = side == WHITE.ordinal();
+        for (int w = 0; w < _words; w += 1) {
+            long bits = sideWord(b, white, w);
+            for (; bits != 0; bits &= bits - 1) {
+                int from = 64 * w + Long.numberOfTrailingZeros(bits);
+                boolean king = test(b + KING_MASK, from);
+                for (int d = 0; d < 4; d += 1) {
+                    if (reach(b, from, d, king) > 0) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Make the move FROM-TO in game G, as for Board.makeMove. */
+    private void makeMove(int g, int from, int to) {
+        int b = g * _setWords;
+        int h0 = g * (_maxPlies + 1);
+        long hash = _history[h0 + _plies[g]];
+        int mover = _turn[g], piece = pieceAt(b, from);
+        boolean captured = false;
+        clear(b + offset(piece), from);
+        set(b + offset(piece), to);
+        hash ^= _zobrist[piece][from] ^ _zobrist[piece][to];
+
+        boolean black = mover == BLACK.ordinal();
+        int victim = black ? WHITE.ordinal() : BLACK.ordinal();
+        boolean armed = _armedKing || piece != KING.ordinal();
+        for (int d = 0; armed && d < 4; d += 1) {
+            int other = _beyond[4 * to + d];
+            if (other < 0) {
+                continue;
+            }
+            int mid = _neighbor[4 * to + d], prey = pieceAt(b, mid);
+            boolean capture = false;
+            if (prey == victim) {
+                int partner = pieceAt(b, other);
+                boolean hostile = partner != 0
+                    && PIECES[partner].side().ordinal() == mover
+                    && (_armedKing || partner != KING.ordinal());
+                capture = hostile || _hostile[other]
+                    || other == _throne
+                    && (partner == 0 || black && throneWhiteHostile(b));
+            } else if (prey == KING.ordinal() && black) {
+                int[] guards = _kingGuards[mid];
+                if (guards == null) {
+                    capture = test(b + BLACK_MASK, other);
+                } else {
+                    capture = true;
+                    for (int s : guards) {
+                        capture &= test(b + BLACK_MASK, s);
+                    }
+                }
+            }
+            if (capture) {
+                clear(b + offset(prey), mid);
+                hash ^= _zobrist[prey][mid];
+                captured = true;
+            }
+        }
+
+        _plies[g] += 1;
+        _lastMove[g] = from << 8 | to;
+        int opponent = black ? WHITE.ordinal() : BLACK.ordinal();
+        int king = kingSquare(b);
+        if (king < 0) {
+            _winner[g] = (byte) BLACK.ordinal();
+        } else if (_escape[king]) {
+            _winner[g] = (byte) WHITE.ordinal();
+        } else if (!hasMove(b, opponent)) {
+            _winner[g] = (byte) mover;
+        } else if (_plies[g] >= _limit[g]) {
+            _winner[g] = (byte) opponent;
+        }
+        _turn[g] = (byte) opponent;
+        hash ^= _whiteToMove;
+
+        if (captured) {
+            _sinceCapture[g] = _plies[g];
+        }
+        for (int k = _sinceCapture[g]; k < _plies[g]; k += 1) {
+            if (_history[h0 + k] == hash) {
+                _repeated[g] = true;
+                _winner[g] = (byte) opponent;
+                break;
+            }
+        }
+        _history[h0 + _plies[g]] = hash;
+    }
+
+    /** Return true iff the king is on the throne in the game with mask set
+     *  B and three of the squares next to the throne hold black pieces. */
+    private boolean throneWhiteHostile(int b) {
+        if (!test(b + KING_MASK, _throne)) {
+            return false;
+        }
+        int n = 0;
+        for (int d = 0; d < 4; d += 1) {
+            if (test(b + BLACK_MASK, _neighbor[4 * _throne + d])) {
+                n += 1;
+            }
+        }
+        return n == 3;
+    }
+
+    /** Return the Piece ordinal of the contents of square I in the game
+     *  with mask set B. */
+    private int pieceAt(int b, int i) {
+        if (test(b + BLACK_MASK, i)) {
+            return BLACK.ordinal();
+        } else if (test(b + WHITE_MASK, i)) {
+            return WHITE.ordinal();
+        } else if (test(b + KING_MASK, i)) {
+            return KING.ordinal();
+        }
+        return EMPTY.ordinal();
+    }
+
+    /** Return the offset within a mask set of the mask for the Piece with
+     *  ordinal P. */
+    private static int offset(int p) {
+        return p == BLACK.ordinal() ? BLACK_MASK
+            : p == WHITE.ordinal() ? WHITE_MASK : KING_MASK;
+    }
+
+    /** Return the offset within a mask set of the mask for P. */
+    private static int offset(Piece p) {
+        return offset(p.ordinal());
+    }
+
+    /** Return true iff square I is occupied in the game with mask set B. */
+    private boolean occupied(int b, int i) {
+        int w = i >>> 6;
+        int o = b + 3 * w;
+        long all = _masks[o] | _masks[o + 1] | _masks[o + 2];
+        return (all & (1L << i)) != 0;
+    }
+
+    /** Return word W of the mask of the pieces of white (with the king) if
+     *  WHITE, or of black otherwise, in the game with mask set B. */
+    private long sideWord(int b, boolean white, int w) {
+        if (white) {
+            return _masks[b + 3 * w + WHITE_MASK]
+                | _masks[b + 3 * w + KING_MASK];
+        }
+        return _masks[b + 3 * w + BLACK_MASK];
+    }
+
+    /** Return the square holding the king in the game with mask set B, or
+     *  -1 if there is none. */
+    private int kingSquare(int b) {
+        for (int w = 0; w < _words; w += 1) {
+            long bits = _masks[b + 3 * w + KING_MASK];
+            if (bits != 0) {
+                return 64 * w + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return -1;
+    }
+
+    /** Return true iff bit I is set in the mask at M. */
+    private boolean test(int m, int i) {
+        return (_masks[m + 3 * (i >>> 6)] & (1L << i)) != 0;
+    }
+
+    /** Set bit I in the mask at M. */
+    private void set(int m, int i) {
+        _masks[m + 3 * (i >>> 6)] |= 1L << i;
+    }
+
+    /** Clear bit I in the mask at M. */
+    private void clear(int m, int i) {
+        _masks[m + 3 * (i >>> 6)] &= ~(1L << i);
+    }
+
+    /** Return the square of the Nth (from 0) piece, in order of square
+     *  index, of white (with the king) if WHITE, or else of black, in the
+     *  game with mask set B. */
+    private int nthBit(int b, boolean white, int n) {
+        int w;
+        long bits = 0;
+        for (w = 0; w < _words; w += 1) {
+            bits = sideWord(b, white, w);
+            int count = Long.bitCount(bits);
+            if (n < count) {
+                break;
+            }
+            n -= count;
+        }
+        for (; n > 0; n -= 1) {
+            bits &= bits - 1;
+        }
+        return 64 * w + Long.numberOfTrailingZeros(bits);
+    }
+
+    /** Return a pseudo-random integer in [0 .. N), for N > 0. */
+    private int nextInt(int n) {
+        _random ^= _random << 13;
+        _random ^= _random >>> 7;
+        _random ^= _random << 17;
+        return (int) ((_random >>> 33) % n);
+    }
+
+    /** Offsets of the black, white and king masks within a mask set.
+     *  Their words are interleaved: word w of the mask at offset m is at
+     *  m + 3 * w. */
+    private static final int BLACK_MASK = 0, WHITE_MASK = 1, KING_MASK = 2;
+
+    /** The Pieces indexed by ordinal. */
+    private static final Piece[] PIECES = Piece.values();
+
+    /** The variant being played. */
+    private final Variant _variant;
+    /** Number of longs in one mask, and in the mask set of one game. */
+    private final int _words, _setWords;
+    /** Geometry tables of the variant (see Variant). */
+    private final int[][] _rays, _kingGuards;
+    /** Geometry tables of the variant (see Variant). */
+    private final int[] _neighbor, _beyond;
+    /** Zobrist keys of the variant. */
+    private final long[][] _zobrist;
+    /** Hash key for white to move. */
+    private final long _whiteToMove;
+    /** Index of the throne. */
+    private final int _throne;
+    /** True iff the king captures. */
+    private final boolean _armedKing;
+    /** _escape[i] is true iff the king wins on square i. */
+    private final boolean[] _escape;
+    /** The rays of the variant for pieces other than the king (see
+     *  Variant.pawnRays). */
+    private final int[][] _pawnRays;
+    /** _hostile[i] is true iff square i, other than the throne, is hostile
+     *  to both sides. */
+    private final boolean[] _hostile;
+
+    /** Number of games. */
+    private final int _games;
+    /** Maximum number of moves per game. */
+    private final int _maxPlies;
+    /** Move limit for new games, as for Board.setMoveLimit. */
+    private int _moveLimit;
+    /** Number of moves after which each game is lost by the side to
+     *  move. */
+    private final int[] _limit;
+    /** True iff white always takes an escape for the king. */
+    private boolean _escapeFirst;
+    /** Scratch space for the contents of a position being loaded. */
+    private final Piece[] _contents;
+    /** The mask sets of all games, _setWords longs apiece. */
+    private final long[] _masks;
+    /** Ordinal of the side to move in each game. */
+    private final byte[] _turn;
+    /** Ordinal of the winner of each game, or 0. */
+    private final byte[] _winner;
+    /** True for games ended by a repeated position. */
+    private final boolean[] _repeated;
+    /** Number of moves made in each game. */
+    private final int[] _plies;
+    /** Number of moves made in each game as of its last capture. */
+    private final int[] _sinceCapture;
+    /** Code of the last move in each game, or -1. */
+    private final int[] _lastMove;
+    /** Hashes of the positions of each game: those of game g at
+     *  g * (_maxPlies + 1), in order of play. */
+    private final long[] _history;
+    /** State of the xorshift pseudo-random number generator. */
+    private long _random;
+}
@@ -0,0 +1,206 @@
+package tablut;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A fixed-size cache of search results (transposition table), keyed by
+ *  Board.canonicalHash(), so that positions related by a symmetry of the
+ *  board share entries.  It may be shared by any number of threads
+ *  without locking: each entry is a pair of longs, the key XORed with the
+ *  data and the data itself, so that an entry torn by a concurrent store
+ *  simply fails to match.  Entries are grouped in buckets of BUCKET_SIZE;
+ *  a store replaces an entry for the same key or else the first entry in
+ *  its bucket that has not been used since the clock last passed it
+ *  (second-chance eviction).  The cache shared by all AIs (see shared())
+ *  may instead be kept in a file (see PersistentCache).
+ *  @author neal sharma
+ */
+class SearchCache {
+
+    /** Bound type: the score is exact. */
+    static final int EXACT = 0;
+    /** Bound type: the true score is at least the stored score. */
+    static final int LOWER = 1;
+    /** Bound type: the true score is at most the stored score. */
+    static final int UPPER = 2;
+
+    /** Default number of entries in the cache shared by all AIs. */
+    static final int DEFAULT_ENTRIES = 1 << 20;
+
+    /** Number of entries in a bucket. */
+    static final int BUCKET_SIZE = 4;
+
+    /** Layout of the data word: score in the low 32 bits, then the move
+     *  code (in canonical coordinates), depth, bound type, and the
+     *  referenced bit used by the clock. */
+    private static final int MOVE_SHIFT = 32, DEPTH_SHIFT = 48,
+        BOUND_SHIFT = 56;
+    /** The referenced bit in a data word. */
+    private static final long REFERENCED = 1L << 58;
+
+    /** A cache holding at least ENTRIES entries (rounded up to a power of
+     *  two). */
+    SearchCache(int entries) {
+        this(entries, true);
+    }
+
+    /** A cache holding at least ENTRIES entries (rounded up to a power of
+     *  two), held in memory iff INMEMORY.  Otherwise, the subclass provides
+     *  the storage by overriding slot and setSlot. */
+    protected SearchCache(int entries, boolean inMemory) {
+        _buckets = buckets(entries);
+        _table = inMemory ? new AtomicLongArray(slots()) : null;
+    }
+
+    /** Return the number of buckets used for a cache of at least ENTRIES
+     *  entries. */
+    static int buckets(int entries) {
+        int buckets = Integer.highestOneBit(Math.max(entries - 1, 1)) * 2
+            / BUCKET_SIZE;
+        return Math.max(buckets, 1);
+    }
+
+    /** Return the cache shared by all AIs in this process.  It is created
+     *  on first use, from the file named by useFile if that was called,
+     *  for the evaluation then in use (see AI.evaluatorId). */
+    static SearchCache shared() {
+        SearchCache result = _shared;
+        if (result == null) {
+            synchronized (SearchCache.class) {
+                result = _shared;
+                if (result == null) {
+                    result = _sharedFile == null
+                        ? new SearchCache(DEFAULT_ENTRIES)
+                        : PersistentCache.openOrFallBack(_sharedFile,
+                                                         DEFAULT_ENTRIES,
+                                                         AI.evaluatorId());
+                    _shared = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Arrange for the cache shared by all AIs to be kept in FILE (see
+     *  PersistentCache), which is opened when the cache is first used.
+     *  Has no effect once it has been used. */
+    static synchronized void useFile(Path file) {
+        _sharedFile = file;
+    }
+
+    /** Return the number of entries in the cache. */
+    int capacity() {
+        return _buckets * BUCKET_SIZE;
+    }
+
+    /** Return the number of longs of storage: two per entry. */
+    final int slots() {
+        return 2 * BUCKET_SIZE * _buckets;
+    }
+
+    /** Remove all entries. */
+    void clear() {
+        for (int i = 0; i < slots(); i += 1) {
+            setSlot(i, 0);
+        }
+    }
+
+    /** Return long number I of my storage. */
+    protected long slot(int i) {
+        return _table.get(i);
+    }
+
+    /** Set long number I of my storage to VALUE. */
+    protected void setSlot(int i, long value) {
+        _table.set(i, value);
+    }
+
+    /** Return the data word stored for KEY, or 0 if there is none.  Marks
+     *  the entry as recently used.  Use the static accessors to decode the
+     *  result. */
+    long probe(long key) {
+        int base = bucket(key);
+        for (int k = base; k < base + 2 * BUCKET_SIZE; k += 2) {
+            long data = slot(k + 1);
+            if (data != 0 && (slot(k) ^ data) == key) {
+                if ((data & REFERENCED) == 0) {
+                    data |= REFERENCED;
+                    setSlot(k + 1, data);
+                    setSlot(k, key ^ data);
+                }
+                return data;
+            }
+        }
+        return 0;
+    }
+
+    /** Record that searching the position with hash KEY to DEPTH plies
+     *  produced SCORE, of bound type BOUND (EXACT, LOWER, or UPPER), with
+     *  best move whose code is MOVE (in canonical coordinates), or 0 if
+     *  none. */
+    void store(long key, int depth, int score, int bound, int move) {
+        long data = (score & 0xffffffffL) | ((long) move << MOVE_SHIFT)
+            | ((long) Math.min(depth, 0xff) << DEPTH_SHIFT)
+            | ((long) bound << BOUND_SHIFT) | REFERENCED;
+        int base = bucket(key);
+        int victim = -1;
+        for (int k = base; k < base + 2 * BUCKET_SIZE; k += 2) {
+            long old = slot(k + 1);
+            if ((slot(k) ^ old) == key || old == 0) {
+                victim = k;
+                break;
+            }
+        }
+        for (int pass = 0; victim < 0; pass += 1) {
+            for (int k = base; k < base + 2 * BUCKET_SIZE; k += 2) {
+                long old = slot(k + 1);
+                if ((old & REFERENCED) == 0 || pass > 0) {
+                    victim = k;
+                    break;
+                }
+                old &= ~REFERENCED;
+                setSlot(k + 1, old);
+                setSlot(k, slot(k) ^ REFERENCED);
+            }
+        }
+        setSlot(victim + 1, data);
+        setSlot(victim, key ^ data);
+    }
+
+    /** Return the score in the data word DATA. */
+    static int score(long data) {
+        return (int) data;
+    }
+
+    /** Return the move code in DATA, or 0 if none. */
+    static int move(long data) {
+        return (int) (data >>> MOVE_SHIFT) & 0xffff;
+    }
+
+    /** Return the search depth in DATA. */
+    static int depth(long data) {
+        return (int) (data >>> DEPTH_SHIFT) & 0xff;
+    }
+
+    /** Return the bound type in DATA. */
+    static int bound(long data) {
+        return (int) (data >>> BOUND_SHIFT) & 3;
+    }
+
+    /** Return the index in my storage of the bucket for KEY. */
+    private int bucket(long key) {
+        return 2 * BUCKET_SIZE
+            * (int) ((key ^ (key >>> 32)) & (_buckets - 1));
+    }
+
+    /** Number of buckets (a power of two). */
+    private final int _buckets;
+    /** Pairs (key ^ data, data) for each entry, BUCKET_SIZE per bucket, or
+     *  null if a subclass provides the storage. */
+    private final AtomicLongArray _table;
+
+    /** See shared(). */
+    private static volatile SearchCache _shared;
+    /** See useFile(). */
+    private static Path _sharedFile;
+}
@@ -0,0 +1,93 @@
+package tablut;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/** A hand-off of intermediate results from a search running on one
+ *  thread to a display polling them from another.  The searching thread
+ *  publishes its current best move as often as it likes; at most one
+ *  report per MIN_INTERVAL is actually passed on, so that publishing costs
+ *  almost nothing.  Readers see only the latest report, which is
+ *  immutable, and never block the search.
+ *  @author neal sharma
+ */
+final class SearchProgress {
+
+    /** Minimum time between published reports, in nanoseconds. */
+    static final long MIN_INTERVAL = 100_000_000L;
+
+    /** The state of a search at some point. */
+    static final class Report {
+        /** A report that the best move found so far by a search to DEPTH
+         *  plies is MOVE, with score SCORE (positive favoring white),
+         *  after examining NODES positions. */
+        Report(Move move, int depth, int score, long nodes) {
+            _move = move;
+            _depth = depth;
+            _score = score;
+            _nodes = nodes;
+        }
+
+        /** Return the best move found so far. */
+        Move move() {
+            return _move;
+        }
+
+        /** Return the depth of the search in plies. */
+        int depth() {
+            return _depth;
+        }
+
+        /** Return the score of move(). */
+        int score() {
+            return _score;
+        }
+
+        /** Return the number of positions examined so far. */
+        long nodes() {
+            return _nodes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("depth %d: %s %s (%d nodes)", _depth, _move,
+                                 AI.scoreString(_score), _nodes);
+        }
+
+        /** Best move so far. */
+        private final Move _move;
+        /** Search depth and score of _move. */
+        private final int _depth, _score;
+        /** Positions examined. */
+        private final long _nodes;
+    }
+
+    /** Record that the best move found so far by a search to DEPTH plies
+     *  is MOVE, with score SCORE, after examining NODES positions, unless
+     *  a report was published less than MIN_INTERVAL ago. */
+    void publish(Move move, int depth, int score, long nodes) {
+        long now = System.nanoTime();
+        if (now - _nextPublish < 0) {
+            return;
+        }
+        _nextPublish = now + MIN_INTERVAL;
+        _latest.set(new Report(move, depth, score, nodes));
+    }
+
+    /** Return the latest report published since the last call to clear,
+     *  or null if none. */
+    Report latest() {
+        return _latest.get();
+    }
+
+    /** Discard the latest report, and allow the next one to be published
+     *  immediately. */
+    void clear() {
+        _nextPublish = System.nanoTime();
+        _latest.set(null);
+    }
+
+    /** Value of System.nanoTime() before which publish does nothing. */
+    private volatile long _nextPublish = System.nanoTime();
+    /** The latest report, or null. */
+    private final AtomicReference<Report> _latest = new AtomicReference<>();
+}
@@ -9,13 +9,17 @@ import static tablut.Utils.*;
 
 /** Represents a position on a Tablut board.  Positions are numbered
  *  from 0 (lower-left corner) to BOARD_SIZE * BOARD_SIZE - 1
- *  (upper-right corner).
- *  Squares are immutable and unique: there is precisely one square created for
- *  each distinct position.  Clients create squares using the factory method
- *  sq, not the constructor.  Because there is a unique Square object for each
- *  position, you can freely use the cheap == operator (rather than the
- *  .equals method) to compare Squares, and the program does not waste time
- *  creating the same square over and over again.
+ *  (upper-right corner).  Boards of the other variants (see Variant) have
+ *  squares of their own, numbered in the same way: each Square belongs to
+ *  the board of one size(), and the static methods without a size
+ *  argument denote the squares of the 9x9 board.
+ *  Squares are immutable and unique: there is precisely one square
+ *  created for each distinct position of each board size.  Clients create
+ *  squares using the factory method sq, not the constructor.  Because
+ *  there is a unique Square object for each position, you can freely
+ *  use the cheap == operator (rather than the .equals method) to compare
+ *  Squares, and the program does not waste time creating the same square
+ *  over and over again.
  *  @author neal sharma
  */
 final class Square {
@@ -26,12 +30,17 @@ final class Square {
     /** The total number of possible squares. */
     static final int NUM_SQUARES = BOARD_SIZE * BOARD_SIZE;
 
+    /** The smallest and largest board sizes for which there are squares.
+     *  All sizes between them that are odd have squares.  MAX_SIZE is
+     *  limited by the three longs of a SquareSet. */
+    static final int MIN_SIZE = 5, MAX_SIZE = 13;
+
     /** The regular expression for a square designation (e.g.,
-     *  a3). For convenience, it is in parentheses to make it a
-     *  group.  This subpattern is intended to be incorporated into
-     *  other pattern that contain square designations (such as
+     *  a3) on a board of any size. For convenience, it is in parentheses
+     *  to make it a group.  This subpattern is intended to be incorporated
+     *  into other pattern that contain square designations (such as
      *  patterns for moves). */
-    static final String SQ = "([a-i][1-9])";
+    static final String SQ = "([a-m](?:1[0-3]|[1-9]))";
 
     /** Return my row position, where 0 is the bottom row. */
     int row() {
@@ -43,12 +52,17 @@ final class Square {
         return _col;
     }
 
-    /** Return my index position (0-80).  0 represents square a1, and 80
-     *  is square i9. */
+    /** Return my index position (0-80 on the 9x9 board).  0 represents
+     *  square a1, and 80 is square i9. */
     int index() {
         return _index;
     }
 
+    /** Return the number of rows (and columns) of my board. */
+    int size() {
+        return _size;
+    }
+
     /** Return true iff THIS - TO is a valid rook move. */
     boolean isRookMove(Square to) {
         return this != to && (_row == to._row || _col == to._col);
@@ -57,7 +71,7 @@ final class Square {
     /** Return true iff I am on the edge of the board. */
     boolean isEdge() {
         return (_row == 0 || _col == 0
-                || _row == BOARD_SIZE - 1 || _col == BOARD_SIZE - 1);
+                || _row == _size - 1 || _col == _size - 1);
     }
 
     /** Definitions of direction for rookMove.  DIR[k] = (dcol, drow)
@@ -76,7 +90,7 @@ final class Square {
         if (dir < 0 || dir > 3 || steps <= 0) {
             return null;
         }
-        SqList L = ROOK_SQUARES[index()][dir];
+        SqList L = _rookSquares[dir];
         if (L.size() >= steps) {
             return L.get(steps - 1);
         } else {
@@ -87,7 +101,7 @@ final class Square {
     /** Assuming OTHER is a 2-square rook move away, return the Square
      *  between. */
     Square between(Square other) {
-        return sq((_col + other._col) / 2, (_row + other._row) / 2);
+        return sq((_col + other._col) / 2, (_row + other._row) / 2, _size);
     }
 
     /** Return one of the diagonally adjacent square when facing OTHER. */
@@ -95,7 +109,7 @@ final class Square {
         int dir = direction(other),
             turn = (dir + 1) & 3;
         int[] v0 = DIR[dir], v1 = DIR[turn];
-        return sq(_col + v0[0] + v1[0], _row + v0[1] + v1[1]);
+        return sq(_col + v0[0] + v1[0], _row + v0[1] + v1[1], _size);
     }
 
     /** Return the diagonally adjacent square when facing OTHER that isn't
@@ -104,7 +118,7 @@ final class Square {
         int dir = direction(other),
             turn = (dir - 1) & 3;
         int[] v0 = DIR[dir], v1 = DIR[turn];
-        return sq(_col + v0[0] + v1[0], _row + v0[1] + v1[1]);
+        return sq(_col + v0[0] + v1[0], _row + v0[1] + v1[1], _size);
     }
 
     /** Return the direction (an int as defined in the documentation
@@ -129,15 +143,27 @@ final class Square {
 
     /** Return true iff COL ROW is a legal square. */
     static boolean exists(int col, int row) {
-        return row >= 0 && col >= 0 && row < BOARD_SIZE && col < BOARD_SIZE;
+        return exists(col, row, BOARD_SIZE);
+    }
+
+    /** Return true iff COL ROW is a legal square on a board with SIZE
+     *  rows and columns. */
+    static boolean exists(int col, int row, int size) {
+        return row >= 0 && col >= 0 && row < size && col < size;
     }
 
     /** Return the (unique) Square denoting COL ROW. */
     static Square sq(int col, int row) {
-        if (!exists(row, col)) {
+        return sq(col, row, BOARD_SIZE);
+    }
+
+    /** Return the (unique) Square denoting COL ROW on a board with SIZE
+     *  rows and columns. */
+    static Square sq(int col, int row, int size) {
+        if (!exists(row, col, size)) {
             throw error("row or column out of bounds");
         }
-        return sq(row * BOARD_SIZE + col);
+        return squares(size)[row * size + col];
     }
 
     /** Return the (unique) Square denoting the position with index INDEX. */
@@ -147,27 +173,46 @@ final class Square {
     }
 
     /** Return the (unique) Square denoting the position COL ROW, where
-     *  COL ROW is the standard text format for a square (e.g., a4). */
-    static Square sq(String col, String row) {
-        if (col.length() != 1 || row.length() != 1) {
+     *  COL ROW is the standard text format for a square (e.g., a4), on a
+     *  board with SIZE rows and columns. */
+    static Square sq(String col, String row, int size) {
+        if (col.length() != 1 || !row.matches("[1-9][0-9]?")) {
             throw error("bad row or column");
         }
-        return sq(col.charAt(0) - 'a', row.charAt(0) - '1');
+        return sq(col.charAt(0) - 'a', Integer.parseInt(row) - 1, size);
     }
 
     /** Return the (unique) Square denoting the position in POSN, in the
      *  standard text format for a square (e.g. a4). POSN must be a
      *  valid square designation. */
     static Square sq(String posn) {
+        return sq(posn, BOARD_SIZE);
+    }
+
+    /** Return the (unique) Square denoting the position in POSN, in the
+     *  standard text format for a square (e.g. a4), on a board with SIZE
+     *  rows and columns. POSN must be a valid square designation. */
+    static Square sq(String posn, int size) {
         assert posn.matches(SQ);
-        return sq(posn.charAt(0) - 'a', posn.charAt(1) - '1');
+        return sq(posn.substring(0, 1), posn.substring(1), size);
+    }
+
+    /** Return the Squares of the board with SIZE rows and columns, indexed
+     *  by index.  The result must not be modified. */
+    static Square[] squares(int size) {
+        if (size < MIN_SIZE || size > MAX_SIZE || FAMILIES[size] == null) {
+            throw error("unsupported board size: %d", size);
+        }
+        return FAMILIES[size];
     }
 
-    /** Return the Square with index INDEX. */
-    private Square(int index) {
+    /** Return the Square with index INDEX on a board with SIZE rows and
+     *  columns. */
+    private Square(int index, int size) {
         _index = index;
-        _row = index / BOARD_SIZE;
-        _col = index % BOARD_SIZE;
+        _size = size;
+        _row = index / size;
+        _col = index % size;
         _str = String.format("%c%d", (char) ('a' + _col), 1 + _row);
     }
 
@@ -194,41 +239,45 @@ final class Square {
         return _index;
     }
 
-    /** The cache of all created squares, by index. */
-    private static final Square[] SQUARES =
-        new Square[NUM_SQUARES];
-
-    /** SQUARES viewed as a List. */
-    static final List<Square> SQUARE_LIST = Arrays.asList(SQUARES);
+    /** FAMILIES[n] holds the squares of the board with n rows and
+     *  columns, by index, for odd n from MIN_SIZE to MAX_SIZE. */
+    private static final Square[][] FAMILIES = new Square[MAX_SIZE + 1][];
 
     static {
-        for (int i = NUM_SQUARES - 1; i >= 0; i -= 1) {
-            SQUARES[i] = new Square(i);
+        for (int n = MIN_SIZE; n <= MAX_SIZE; n += 2) {
+            Square[] family = new Square[n * n];
+            for (int i = n * n - 1; i >= 0; i -= 1) {
+                family[i] = new Square(i, n);
+            }
+            FAMILIES[n] = family;
         }
     }
 
+    /** The cache of all created squares of the 9x9 board, by index. */
+    private static final Square[] SQUARES = FAMILIES[BOARD_SIZE];
+
+    /** SQUARES viewed as a List. */
+    static final List<Square> SQUARE_LIST = Arrays.asList(SQUARES);
+
     /** An empty list of Squares. */
     static final List<Square> EMPTY_SQUARE_LIST = new SqList();
 
-    /** ROOK_SQUARES[i][d] is a list of all squares one rook move in direction
-     *  d from the square with index i. Direction displacements are defined
-     *  by DIR, above. Lists are in order of increasing distance from
-     *  square i. */
-    static final SqList[][] ROOK_SQUARES = new SqList[SQUARES.length][4];
-
     static {
-        for (Square sq : SQUARES) {
-            int r0 = sq.row(), c0 = sq.col(), i0 = sq.index();
-            for (int d = 0; d < DIR.length; d += 1) {
-                SqList L = new SqList();
-                ROOK_SQUARES[i0][d] = L;
-
-                for (int k = 1; true; k += 1) {
-                    int c1 = c0 + k * DIR[d][0], r1 = r0 + k * DIR[d][1];
-                    if (!exists(c1, r1)) {
-                        break;
+        for (Square[] family : FAMILIES) {
+            for (int i = 0; family != null && i < family.length; i += 1) {
+                Square sq = family[i];
+                int r0 = sq.row(), c0 = sq.col(), n = sq.size();
+                for (int d = 0; d < DIR.length; d += 1) {
+                    SqList L = new SqList();
+                    sq._rookSquares[d] = L;
+
+                    for (int k = 1; true; k += 1) {
+                        int c1 = c0 + k * DIR[d][0], r1 = r0 + k * DIR[d][1];
+                        if (!exists(c1, r1, n)) {
+                            break;
+                        }
+                        L.add(family[r1 * n + c1]);
                     }
-                    L.add(sq(c1, r1));
                 }
             }
         }
@@ -237,6 +286,14 @@ final class Square {
     /** My index position. */
     private final int _index;
 
+    /** The number of rows (and columns) of my board. */
+    private final int _size;
+
+    /** _rookSquares[d] is a list of all squares one rook move in direction
+     *  d from me. Direction displacements are defined by DIR, above. Lists
+     *  are in order of increasing distance from me. */
+    private final SqList[] _rookSquares = new SqList[4];
+
     /** My row and column (redundant, since these are determined by _index). */
     private final int _row, _col;
 
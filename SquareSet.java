@@ -0,0 +1,194 @@
+package tablut;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static tablut.Square.BOARD_SIZE;
+
+/** An immutable set of the Squares of a board of one size, represented as
+ *  a mask of up to 169 bits held in three longs: bit i of the mask (bit
+ *  i % 64 of long number i / 64) is set iff the Square with index i is in
+ *  the set.  Iteration is in increasing order of index.  Loops that must
+ *  not allocate may iterate over the indices with first and next instead:
+ *      for (int i = set.first(); i >= 0; i = set.next(i)) ...
+ *  @author neal sharma
+ */
+final class SquareSet implements Iterable<Square> {
+
+    /** The empty set of squares of the 9x9 board. */
+    static final SquareSet EMPTY = new SquareSet(0, 0);
+
+    /** The set of squares of the 9x9 board whose mask has LOW as its
+     *  first 64 bits and HIGH as the rest. */
+    SquareSet(long low, long high) {
+        this(BOARD_SIZE, low, high, 0);
+    }
+
+    /** The set of squares of the board with SIZE rows and columns whose
+     *  mask has W0, W1 and W2 as its three longs.  Bits beyond the last
+     *  square are ignored. */
+    SquareSet(int size, long w0, long w1, long w2) {
+        int n = size * size;
+        _size = size;
+        _w0 = w0 & validBits(n, 0);
+        _w1 = w1 & validBits(n, 1);
+        _w2 = w2 & validBits(n, 2);
+    }
+
+    /** Return the set containing SQUARES, which must all be on a board of
+     *  the same size (the 9x9 board if there are none). */
+    static SquareSet of(Square... squares) {
+        int size = squares.length == 0 ? BOARD_SIZE : squares[0].size();
+        long[] words = new long[3];
+        for (Square s : squares) {
+            assert s.size() == size;
+            words[s.index() >> 6] |= 1L << s.index();
+        }
+        return new SquareSet(size, words[0], words[1], words[2]);
+    }
+
+    /** Return the number of rows (and columns) of the board of my
+     *  squares. */
+    int boardSize() {
+        return _size;
+    }
+
+    /** Return long number W (0-2) of my mask. */
+    long word(int w) {
+        return w == 0 ? _w0 : w == 1 ? _w1 : _w2;
+    }
+
+    /** Return the first 64 bits of my mask. */
+    long low() {
+        return _w0;
+    }
+
+    /** Return bits 64-127 of my mask, shifted down by 64. */
+    long high() {
+        return _w1;
+    }
+
+    /** Return true iff I contain the Square with index I. */
+    boolean contains(int i) {
+        return (word(i >> 6) & (1L << i)) != 0;
+    }
+
+    /** Return true iff I contain S. */
+    boolean contains(Square s) {
+        return s.size() == _size && contains(s.index());
+    }
+
+    /** Return the number of Squares in me. */
+    int size() {
+        return Long.bitCount(_w0) + Long.bitCount(_w1) + Long.bitCount(_w2);
+    }
+
+    /** Return true iff I am empty. */
+    boolean isEmpty() {
+        return (_w0 | _w1 | _w2) == 0;
+    }
+
+    /** Return the union of me and OTHER, a set of squares of the same
+     *  board. */
+    SquareSet union(SquareSet other) {
+        return new SquareSet(_size, _w0 | other._w0, _w1 | other._w1,
+                             _w2 | other._w2);
+    }
+
+    /** Return the intersection of me and OTHER, a set of squares of the
+     *  same board. */
+    SquareSet intersection(SquareSet other) {
+        return new SquareSet(_size, _w0 & other._w0, _w1 & other._w1,
+                             _w2 & other._w2);
+    }
+
+    /** Return the Squares in me that are not in OTHER, a set of squares of
+     *  the same board. */
+    SquareSet minus(SquareSet other) {
+        return new SquareSet(_size, _w0 & ~other._w0, _w1 & ~other._w1,
+                             _w2 & ~other._w2);
+    }
+
+    /** Return the smallest index of a Square in me, or -1 if I am
+     *  empty. */
+    int first() {
+        return next(-1);
+    }
+
+    /** Return the smallest index greater than I of a Square in me, or -1
+     *  if there is none. */
+    int next(int i) {
+        for (i += 1; i < 192; i = (i & ~63) + 64) {
+            long rest = word(i >> 6) & (-1L << i);
+            if (rest != 0) {
+                return (i & ~63) + Long.numberOfTrailingZeros(rest);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Iterator<Square> iterator() {
+        return new Iterator<Square>() {
+            @Override
+            public boolean hasNext() {
+                return _next >= 0;
+            }
+
+            @Override
+            public Square next() {
+                if (_next < 0) {
+                    throw new NoSuchElementException();
+                }
+                Square result = _squares[_next];
+                _next = SquareSet.this.next(_next);
+                return result;
+            }
+
+            /** The squares of my board. */
+            private final Square[] _squares = Square.squares(_size);
+            /** Index of the next Square to deliver, or -1 if none. */
+            private int _next = first();
+        };
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof SquareSet)) {
+            return false;
+        }
+        SquareSet other = (SquareSet) obj;
+        return _size == other._size && _w0 == other._w0 && _w1 == other._w1
+            && _w2 == other._w2;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode((_w0 * 31 + _w1) * 31 + _w2) + _size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("{");
+        for (Square s : this) {
+            if (out.length() > 1) {
+                out.append(", ");
+            }
+            out.append(s);
+        }
+        return out.append("}").toString();
+    }
+
+    /** Return the mask of the bits of long number W of a mask that stand
+     *  for squares, when there are N squares. */
+    private static long validBits(int n, int w) {
+        int bits = n - 64 * w;
+        return bits <= 0 ? 0 : bits >= 64 ? -1L : (1L << bits) - 1;
+    }
+
+    /** The number of rows (and columns) of my board. */
+    private final int _size;
+    /** Bits 0-63, 64-127 and 128-191 of my mask, each shifted down to
+     *  start at bit 0. */
+    private final long _w0, _w1, _w2;
+}
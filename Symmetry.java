@@ -0,0 +1,96 @@
+package tablut;
+
+import static tablut.Square.BOARD_SIZE;
+import static tablut.Square.MAX_SIZE;
+import static tablut.Square.MIN_SIZE;
+
+/** The eight symmetries of the Tablut board (rotations and reflections
+ *  about the throne), under which the rules of the game are unchanged.
+ *  Boards of every size have the same eight.
+ *  Symmetry 0 is the identity; 1-3 are rotations by 90, 180 and 270
+ *  degrees counterclockwise; 4 and 5 are reflections about the vertical and
+ *  horizontal center lines; 6 and 7 are reflections about the diagonals.
+ *  @author neal sharma
+ */
+final class Symmetry {
+
+    /** The number of symmetries. */
+    static final int COUNT = 8;
+
+    /** Return the image of square index INDEX of the 9x9 board under
+     *  symmetry SYM. */
+    static int apply(int sym, int index) {
+        return PERMS[BOARD_SIZE][sym][index];
+    }
+
+    /** Return the image of S under symmetry SYM. */
+    static Square apply(int sym, Square s) {
+        int n = s.size();
+        return Square.squares(n)[PERMS[n][sym][s.index()]];
+    }
+
+    /** Return the table of the symmetries of the board with SIZE rows and
+     *  columns: its entry [s][i] is the index of the image of square
+     *  index i under symmetry s.  The result must not be modified. */
+    static int[][] perms(int size) {
+        if (size < MIN_SIZE || size > MAX_SIZE || PERMS[size] == null) {
+            throw Utils.error("unsupported board size: %d", size);
+        }
+        return PERMS[size];
+    }
+
+    /** Return the image of MOVE under symmetry SYM. */
+    static Move apply(int sym, Move move) {
+        return Move.mv(apply(sym, move.from()), apply(sym, move.to()));
+    }
+
+    /** Return the symmetry that undoes symmetry SYM. */
+    static int inverse(int sym) {
+        return INVERSES[sym];
+    }
+
+    /** Return the image of column COL, row ROW under symmetry SYM on the
+     *  board with SIZE rows and columns, as a square index. */
+    private static int transform(int sym, int col, int row, int size) {
+        int n = size - 1;
+        int c, r;
+        switch (sym) {
+        case 0: c = col; r = row; break;
+        case 1: c = n - row; r = col; break;
+        case 2: c = n - col; r = n - row; break;
+        case 3: c = row; r = n - col; break;
+        case 4: c = n - col; r = row; break;
+        case 5: c = col; r = n - row; break;
+        case 6: c = row; r = col; break;
+        default: c = n - row; r = n - col; break;
+        }
+        return r * size + c;
+    }
+
+    /** PERMS[n][s][i] is the index of the image of square index i under
+     *  symmetry s on the board with n rows and columns. */
+    private static final int[][][] PERMS = new int[MAX_SIZE + 1][][];
+
+    /** INVERSES[s] is the inverse of symmetry s. */
+    private static final int[] INVERSES = new int[COUNT];
+
+    static {
+        for (int n = MIN_SIZE; n <= MAX_SIZE; n += 2) {
+            PERMS[n] = new int[COUNT][n * n];
+            for (int s = 0; s < COUNT; s += 1) {
+                for (int i = 0; i < n * n; i += 1) {
+                    PERMS[n][s][i] = transform(s, i % n, i / n, n);
+                }
+            }
+        }
+        int[][] perms = PERMS[BOARD_SIZE];
+        for (int s = 0; s < COUNT; s += 1) {
+            for (int t = 0; t < COUNT; t += 1) {
+                if (perms[t][perms[s][1]] == 1
+                    && perms[t][perms[s][BOARD_SIZE]] == BOARD_SIZE) {
+                    INVERSES[s] = t;
+                }
+            }
+        }
+    }
+}
@@ -1,8 +1,5 @@
 package tablut;
 
-import static tablut.Move.mv;
-
-
 /** A Player that takes input as text commands from its Controller.
  *  @author neal sharma
  */
@@ -40,7 +37,7 @@ class TextPlayer extends Player {
                     _controller.reportError("misplaced move");
                     continue;
                 } else {
-                    Move move = mv(line);
+                    Move move = board().move(line);
                     if (move == null || !board().isLegal(move)) {
                         _controller.reportError("Invalid move. "
                                                 + "Please try again.");
@@ -0,0 +1,147 @@
+package tablut;
+
+import static java.lang.Math.*;
+import static tablut.Piece.*;
+
+/** A game clock for both sides, and the division of each side's remaining
+ *  time among its remaining moves.  The number of moves left is estimated
+ *  from the number of pieces on the board (games with fewer pieces are
+ *  nearer their end), but never exceeds the number left before the move
+ *  limit, if any.  The time for a move is then adjusted as its search
+ *  goes on (see Budget): stretched while the best move keeps changing
+ *  between iterations, and cut short when it is stable.
+ *  @author neal sharma
+ */
+class TimeManager {
+
+    /** Fewest moves assumed to remain for a side without a move limit. */
+    static final int MIN_MOVES_LEFT = 10;
+
+    /** Time in nanoseconds kept in reserve against overheads. */
+    static final long RESERVE = 50_000_000L;
+
+    /** Least time in nanoseconds allowed for a move. */
+    static final long MIN_MOVE_TIME = 10_000_000L;
+
+    /** Largest factor by which a move's time may be stretched. */
+    static final double MAX_STRETCH = 3.0;
+
+    /** Smallest factor to which a move's time may be cut. */
+    static final double MIN_STRETCH = 0.5;
+
+    /** A clock giving each side MILLIS milliseconds for the game, plus
+     *  INCREMENT milliseconds for each move made. */
+    TimeManager(long millis, long increment) {
+        _total = multiplyExact(millis, 1_000_000);
+        _increment = multiplyExact(increment, 1_000_000);
+        reset();
+    }
+
+    /** Restore both sides' full time, as for a new game. */
+    void reset() {
+        _remaining[0] = _remaining[1] = _total;
+    }
+
+    /** Return the time in milliseconds left on the clock of SIDE (which
+     *  may be negative if it has overstepped). */
+    long remainingMillis(Piece side) {
+        return _remaining[sideIndex(side)] / 1_000_000;
+    }
+
+    /** Deduct ELAPSED nanoseconds, the time SIDE took to move, from its
+     *  clock, and add its increment. */
+    void charge(Piece side, long elapsed) {
+        _remaining[sideIndex(side)] += _increment - elapsed;
+    }
+
+    /** Return the number of moves the side to move in BOARD should expect
+     *  to make in the rest of the game, including this one. */
+    static int movesLeft(Board board) {
+        long expected = MIN_MOVES_LEFT + board.occupied().size();
+        long plies = (long) board.moveLimit() - board.moveCount();
+        return (int) max(1, min(expected, (plies + 1) / 2));
+    }
+
+    /** Return a budget for the search for the move of the side to move in
+     *  BOARD, starting now. */
+    Budget budget(Board board) {
+        long remaining = _remaining[sideIndex(board.turn())] - RESERVE;
+        long target = max(MIN_MOVE_TIME,
+                          remaining / movesLeft(board) + _increment);
+        long limit = max(MIN_MOVE_TIME,
+                         min((long) (MAX_STRETCH * target), remaining / 3
+                             + _increment));
+        return new Budget(System.nanoTime(), min(target, limit), limit);
+    }
+
+    /** The time allowed for one move.  The search reports the result of
+     *  each iteration of deepening with iterationDone, which says when to
+     *  stop; the search must in any case stop at deadline(). */
+    static class Budget {
+        /** A budget for a search starting at START (as for
+         *  System.nanoTime()) that should take about TARGET nanoseconds
+         *  and no more than LIMIT. */
+        Budget(long start, long target, long limit) {
+            _start = start;
+            _target = target;
+            _limit = limit;
+        }
+
+        /** Return the value of System.nanoTime() at which the search must
+         *  stop. */
+        long deadline() {
+            return _start + _limit;
+        }
+
+        /** Return the value of System.nanoTime() by which the search
+         *  should normally be finished, for searches that cannot judge
+         *  their progress by iterations. */
+        long targetDeadline() {
+            return _start + _target;
+        }
+
+        /** Record that an iteration of the search has finished with best
+         *  move BEST, and return true iff the search should stop rather
+         *  than start another, longer iteration: when more than half the
+         *  (adjusted) target time is gone.  A change of best move from the
+         *  previous iteration stretches the target; an unchanged one
+         *  shrinks it. */
+        boolean iterationDone(Move best) {
+            if (_best != null) {
+                _stretch = best.equals(_best)
+                    ? max(MIN_STRETCH, _stretch * STABLE_FACTOR)
+                    : min(MAX_STRETCH, _stretch * UNSTABLE_FACTOR);
+            }
+            _best = best;
+            long elapsed = System.nanoTime() - _start;
+            return 2 * elapsed > min(_limit, (long) (_stretch * _target));
+        }
+
+        /** Factor applied to the stretch when the best move is
+         *  unchanged. */
+        private static final double STABLE_FACTOR = 0.8;
+        /** Factor applied to the stretch when the best move changes. */
+        private static final double UNSTABLE_FACTOR = 1.5;
+
+        /** Starting time. */
+        private final long _start;
+        /** Target and maximum durations. */
+        private final long _target, _limit;
+        /** Current adjustment of _target. */
+        private double _stretch = 1.0;
+        /** Best move from the last iteration, or null. */
+        private Move _best;
+    }
+
+    /** Return 0 for white (including the king) and 1 for black. */
+    private static int sideIndex(Piece side) {
+        return side == BLACK ? 1 : 0;
+    }
+
+    /** Time for each side for a game, in nanoseconds. */
+    private final long _total;
+    /** Time added per move, in nanoseconds. */
+    private final long _increment;
+    /** Time left for white and black, in nanoseconds. */
+    private final long[] _remaining = new long[2];
+}
@@ -0,0 +1,289 @@
+package tablut;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static java.lang.Math.*;
+import static tablut.Network.*;
+import static tablut.Piece.*;
+import static tablut.Square.NUM_SQUARES;
+
+/** Trains a Network from positions of self-play games, each labelled with
+ *  the game's result.  The games are played by AIs searching one ply
+ *  (using the network in use by AIs, if any; see AI.useNetwork), with a
+ *  random move in place of the AI's choice now and then for variety.
+ *  Training is by stochastic gradient descent on the cross-entropy
+ *  between the network's estimate of white's chance of winning (the
+ *  logistic function of its output) and the result, in floating point;
+ *  network() then rounds the weights to the fixed-point form of Network.
+ *  @author neal sharma
+ */
+class Trainer {
+
+    /** Default number of self-play games. */
+    static final int DEFAULT_GAMES = 200;
+
+    /** Default number of passes over the positions. */
+    static final int DEFAULT_EPOCHS = 10;
+
+    /** Move limit of self-play games (as for Board.setMoveLimit). */
+    static final int MOVE_LIMIT = 100;
+
+    /** Probability of a random move in self-play. */
+    static final double EXPLORATION = 0.1;
+
+    /** Step size of gradient descent. */
+    static final float LEARNING_RATE = 0.01f;
+
+    /** Largest magnitude of a first-layer weight, which keeps the
+     *  accumulator within 16 bits for any position. */
+    static final float MAX_W0 = (float) Short.MAX_VALUE / ONE / 32;
+
+    /** Smallest probability used in computing the loss. */
+    private static final double EPSILON = 1e-7;
+
+    /** A training position. */
+    private static class Sample {
+        /** A position with features FEATURES, with black to move iff
+         *  BLACKTOMOVE, in a game whose result for white was RESULT (1 for
+         *  a win, 0 for a loss). */
+        Sample(short[] features, boolean blackToMove, float result) {
+            _features = features;
+            _blackToMove = blackToMove;
+            _result = result;
+        }
+
+        /** The features present. */
+        private final short[] _features;
+        /** True iff black is to move. */
+        private final boolean _blackToMove;
+        /** White's result. */
+        private final float _result;
+    }
+
+    /** A trainer with randomly initialized weights and no positions, using
+     *  a random sequence determined by SEED. */
+    Trainer(long seed) {
+        _random = new Random(seed);
+        float scale0 = 0.1f, scale1 = (float) (1 / sqrt(HIDDEN)),
+            scale2 = (float) (1 / sqrt(HIDDEN2));
+        for (int i = 0; i < _w0.length; i += 1) {
+            _w0[i] = scale0 * (2 * _random.nextFloat() - 1);
+        }
+        for (int j = 0; j < HIDDEN; j += 1) {
+            _b0[j] = 0.5f;
+        }
+        for (int i = 0; i < _w1.length; i += 1) {
+            _w1[i] = scale1 * (2 * _random.nextFloat() - 1);
+        }
+        for (int k = 0; k < HIDDEN2; k += 1) {
+            _w2[k] = scale2 * (2 * _random.nextFloat() - 1);
+        }
+    }
+
+    /** Play GAMES self-play games, adding their positions to those to be
+     *  trained on.  Returns the number of positions added. */
+    int selfPlay(int games) {
+        int before = _samples.size();
+        AI ai = new AI();
+        Board board = new Board();
+        List<Board> positions = new ArrayList<>();
+        for (int g = 0; g < games; g += 1) {
+            board.init();
+            board.setMoveLimit(MOVE_LIMIT);
+            positions.clear();
+            while (board.winner() == null) {
+                positions.add(new Board(board));
+                Move move;
+                if (_random.nextDouble() < EXPLORATION) {
+                    List<Move> moves = board.legalMoves(board.turn());
+                    move = moves.get(_random.nextInt(moves.size()));
+                } else {
+                    move = ai.analyze(board, 1, 1).get(0).move();
+                }
+                board.makeMove(move);
+            }
+            Piece winner = board.winner();
+            for (Board position : positions) {
+                add(position, winner);
+            }
+        }
+        return _samples.size() - before;
+    }
+
+    /** Add the position on BOARD, from a game won by WINNER, to those to be
+     *  trained on. */
+    void add(Board board, Piece winner) {
+        short[] features = new short[NUM_SQUARES];
+        int n = 0;
+        for (int i = 0; i < NUM_SQUARES; i += 1) {
+            Piece p = board.get(Square.sq(i));
+            if (p != EMPTY) {
+                features[n] = (short) feature(p, i);
+                n += 1;
+            }
+        }
+        short[] present = new short[n];
+        System.arraycopy(features, 0, present, 0, n);
+        _samples.add(new Sample(present, board.turn() == BLACK,
+                                winner == WHITE ? 1 : 0));
+    }
+
+    /** Return the number of positions to be trained on. */
+    int positions() {
+        return _samples.size();
+    }
+
+    /** Make EPOCHS passes over the positions in random order, adjusting
+     *  the weights after each.  Returns the mean loss over the last
+     *  pass. */
+    double train(int epochs) {
+        double loss = 0;
+        for (int e = 0; e < epochs; e += 1) {
+            Collections.shuffle(_samples, _random);
+            loss = 0;
+            for (Sample sample : _samples) {
+                loss += step(sample);
+            }
+            loss /= max(1, _samples.size());
+        }
+        return loss;
+    }
+
+    /** Return the network's estimate of the log-odds of a win for white in
+     *  the position on BOARD. */
+    float output(Board board) {
+        add(board, null);
+        Sample sample = _samples.remove(_samples.size() - 1);
+        return forward(sample);
+    }
+
+    /** Return my weights rounded to form a Network. */
+    Network network() {
+        short[] w0 = new short[_w0.length], b0 = new short[HIDDEN],
+            w1 = new short[_w1.length], w2 = new short[HIDDEN2];
+        int[] b1 = new int[_b1.length];
+        for (int i = 0; i < w0.length; i += 1) {
+            w0[i] = (short) round(_w0[i] * ONE);
+        }
+        for (int j = 0; j < HIDDEN; j += 1) {
+            b0[j] = (short) round(_b0[j] * ONE);
+        }
+        for (int i = 0; i < w1.length; i += 1) {
+            w1[i] = quantize(_w1[i] * WEIGHT_ONE);
+        }
+        for (int k = 0; k < b1.length; k += 1) {
+            b1[k] = round(_b1[k] * ONE * WEIGHT_ONE);
+        }
+        for (int k = 0; k < HIDDEN2; k += 1) {
+            w2[k] = quantize(_w2[k] * WEIGHT_ONE);
+        }
+        return new Network(w0, b0, w1, b1, w2,
+                           round(_b2 * ONE * WEIGHT_ONE));
+    }
+
+    /** Return X rounded and limited to the range of a short. */
+    private static short quantize(float x) {
+        return (short) max(Short.MIN_VALUE, min(Short.MAX_VALUE, round(x)));
+    }
+
+    /** Return the output for SAMPLE, leaving the accumulator and the
+     *  second layer's sums in _acc and _sum. */
+    private float forward(Sample sample) {
+        System.arraycopy(_b0, 0, _acc, 0, HIDDEN);
+        for (short f : sample._features) {
+            int row = f * HIDDEN;
+            for (int j = 0; j < HIDDEN; j += 1) {
+                _acc[j] += _w0[row + j];
+            }
+        }
+        System.arraycopy(_b1, sample._blackToMove ? HIDDEN2 : 0, _sum, 0,
+                         HIDDEN2);
+        for (int j = 0; j < HIDDEN; j += 1) {
+            float x = clip(_acc[j]);
+            int row = j * HIDDEN2;
+            for (int k = 0; k < HIDDEN2; k += 1) {
+                _sum[k] += _w1[row + k] * x;
+            }
+        }
+        float out = _b2;
+        for (int k = 0; k < HIDDEN2; k += 1) {
+            out += _w2[k] * clip(_sum[k]);
+        }
+        return out;
+    }
+
+    /** Adjust the weights for SAMPLE, returning its loss before the
+     *  adjustment. */
+    private double step(Sample sample) {
+        float out = forward(sample);
+        float p = (float) (1 / (1 + exp(-out)));
+        float y = sample._result;
+        double loss = -(y * log(max(p, EPSILON))
+                        + (1 - y) * log(max(1 - p, EPSILON)));
+        float grad = LEARNING_RATE * (p - y);
+        int bias = sample._blackToMove ? HIDDEN2 : 0;
+        Arrays.fill(_gradAcc, 0);
+        for (int k = 0; k < HIDDEN2; k += 1) {
+            float h = clip(_sum[k]);
+            float gradSum = _sum[k] > 0 && _sum[k] < 1 ? grad * _w2[k] : 0;
+            _w2[k] -= grad * h;
+            if (gradSum != 0) {
+                for (int j = 0; j < HIDDEN; j += 1) {
+                    int i = j * HIDDEN2 + k;
+                    _gradAcc[j] += gradSum * _w1[i];
+                    _w1[i] -= gradSum * clip(_acc[j]);
+                }
+                _b1[bias + k] -= gradSum;
+            }
+        }
+        _b2 -= grad;
+        for (int j = 0; j < HIDDEN; j += 1) {
+            if (_acc[j] <= 0 || _acc[j] >= 1) {
+                _gradAcc[j] = 0;
+            }
+            _b0[j] = limit(_b0[j] - _gradAcc[j]);
+        }
+        for (short f : sample._features) {
+            int row = f * HIDDEN;
+            for (int j = 0; j < HIDDEN; j += 1) {
+                _w0[row + j] = limit(_w0[row + j] - _gradAcc[j]);
+            }
+        }
+        return loss;
+    }
+
+    /** Return X clipped to [0, 1]. */
+    private static float clip(float x) {
+        return max(0, min(1, x));
+    }
+
+    /** Return X limited to [-MAX_W0, MAX_W0]. */
+    private static float limit(float x) {
+        return max(-MAX_W0, min(MAX_W0, x));
+    }
+
+    /** Source of random moves, initial weights, and training order. */
+    private final Random _random;
+    /** The positions to train on. */
+    private final ArrayList<Sample> _samples = new ArrayList<>();
+    /** First-layer weights and biases, as for Network. */
+    private final float[] _w0 = new float[FEATURES * HIDDEN],
+        _b0 = new float[HIDDEN];
+    /** Second-layer weights and biases, as for Network. */
+    private final float[] _w1 = new float[HIDDEN2 * HIDDEN],
+        _b1 = new float[2 * HIDDEN2];
+    /** Output weights, as for Network. */
+    private final float[] _w2 = new float[HIDDEN2];
+    /** Output bias. */
+    private float _b2;
+    /** Accumulator and second-layer sums (before clipping) from the last
+     *  call to forward. */
+    private final float[] _acc = new float[HIDDEN], _sum = new float[HIDDEN2];
+    /** Gradient of the loss with respect to the accumulator, scaled by
+     *  the learning rate. */
+    private final float[] _gradAcc = new float[HIDDEN];
+}
@@ -4,6 +4,27 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import ucb.junit.textui;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 /** The suite of all JUnit tests for the enigma package.
  *  @author neal sharma
  */
@@ -21,7 +42,942 @@ public class UnitTest {
         assertTrue("There are no unit tests!", true);
     }
 
+    /** Check that games survive a round trip through a record file and
+     *  replay as valid. */
+    @Test
+    public void gameRecordTest() throws IOException {
+        Path file = Files.createTempFile("tablut", ".rec");
+        try {
+            Board board = new Board();
+            String[] game = { "d1-2", "d5-6", "f1-2" };
+            short[] moves = new short[game.length];
+            for (int i = 0; i < game.length; i += 1) {
+                Move move = Move.mv(game[i]);
+                assertEquals(move, Move.mv(move.code()));
+                moves[i] = (short) move.code();
+            }
+            try (GameRecord.Writer out = new GameRecord.Writer(file)) {
+                out.write(moves, moves.length, 0, 0);
+                out.write(moves, 1, 7, 0);
+            }
+            try (GameRecord.Reader in = new GameRecord.Reader(file)) {
+                GameRecord g0 = in.next(), g1 = in.next();
+                assertEquals(3, g0.size());
+                assertEquals(Move.mv("d5-6").code(), g0.moveCode(1));
+                assertEquals(7, g1.limit());
+                assertNull(in.next());
+                assertTrue(Replay.isValid(g0, board));
+                assertTrue(Replay.isValid(g1, board));
+            }
+            assertEquals(2, Replay.validate(file, 2)[0]);
+        } finally {
+            Files.delete(file);
+        }
+    }
 
-}
+    /** Check the compact and FEN-like position formats. */
+    @Test
+    public void positionCodecTest() {
+        Board board = new Board();
+        assertEquals("3BBB3/4B4/4W4/B3W3B/BBWWKWWBB/B3W3B/4W4/4B4/3BBB3 b",
+                     board.toFen());
+        board.makeMove(Move.mv("d1-2"));
+        board.makeMove(Move.mv("d5-6"));
+        assertEquals(Board.POSITION_BYTES, board.toBytes().length);
+        assertEquals(board.encodedBoard(),
+                     Board.fromBytes(board.toBytes()).encodedBoard());
+        assertEquals(board.encodedBoard(),
+                     Board.fromBase64(board.toBase64()).encodedBoard());
+        assertEquals(board.encodedBoard(),
+                     Board.fromFen(board.toFen()).encodedBoard());
+        assertEquals("3BBB3/4B4/4W4/B2WW3B/BBW1KWWBB/B3W3B/4W4/3BB4/4BB3 b",
+                     board.toFen());
+
+        for (String fen : new String[] {
+                "3BBB3/4B4/4W4/B3W3B/BBWWWWWBB/B3W3B/4W4/4B4/3BBB3 b",
+                "3BBB3/4B4/4W4/B3W3B/BBWWKWWBB/B3K3B/4W4/4B4/3BBB3 b" }) {
+            try {
+                Board.fromFen(fen);
+                fail("accepted " + fen);
+            } catch (IllegalArgumentException excp) {
+                assertTrue(excp.getMessage().startsWith("bad position"));
+            }
+        }
+        byte[] kingless = new Board().toBytes();
+        kingless[Square.sq("e5").index() / 4] ^=
+            (Piece.KING.ordinal() ^ Piece.WHITE.ordinal())
+            << 2 * (Square.sq("e5").index() % 4);
+        try {
+            Board.fromBytes(kingless);
+            fail("accepted a position without a king");
+        } catch (IllegalArgumentException excp) {
+            assertTrue(excp.getMessage().startsWith("bad position"));
+        }
+    }
 
+    /** Check that positions related by a symmetry share canonical hashes
+     *  and that incremental hashes match those of freshly set-up boards. */
+    @Test
+    public void symmetryTest() {
+        Board b1 = new Board(), b2 = new Board();
+        for (int k = 1; k < Symmetry.COUNT; k += 1) {
+            assertEquals(b1.hash(0), b1.hash(k));
+        }
+        b1.makeMove(Move.mv("d1-2"));
+        b2.makeMove(Symmetry.apply(4, Move.mv("d1-2")));
+        assertEquals("f1-2", Symmetry.apply(4, Move.mv("d1-2")).toString());
+        assertTrue(b1.hash() != b2.hash());
+        assertEquals(b1.canonicalHash(), b2.canonicalHash());
+        assertEquals(Board.fromBytes(b1.canonicalBytes()).encodedBoard(),
+                     Board.fromBytes(b2.canonicalBytes()).encodedBoard());
+        assertEquals(b1.hash(), Board.fromFen(b1.toFen()).hash());
+        for (int k = 0; k < Symmetry.COUNT; k += 1) {
+            Move m = Move.mv("a4-c");
+            assertEquals(m, Symmetry.apply(Symmetry.inverse(k),
+                                           Symmetry.apply(k, m)));
+        }
+    }
+
+    /** Check that undo restores positions, captures and repetition status
+     *  exactly. */
+    @Test
+    public void undoTest() {
+        Board board = new Board();
+        String[] game = { "d1-2", "c5-3", "d2-1", "c3-5" };
+        for (String move : game) {
+            assertFalse(board.repeatedPosition());
+            board.makeMove(Move.mv(move));
+        }
+        assertTrue(board.repeatedPosition());
+        assertEquals(Piece.BLACK, board.winner());
+        board.undo();
+        assertFalse(board.repeatedPosition());
+        assertNull(board.winner());
+        assertEquals(3, board.moveCount());
+
+        board = Board.fromFen("9/9/9/9/4K4/4B4/4W4/3B5/9 b");
+        String before = board.encodedBoard();
+        long hash = board.hash();
+        board.makeMove(Move.mv("d2-e"));
+        assertEquals(Piece.EMPTY, board.get(Square.sq("e3")));
+        board.undo();
+        assertEquals(before, board.encodedBoard());
+        assertEquals(hash, board.hash());
+        assertEquals(0, board.moveCount());
+    }
+
+    /** Check the capture rules: ordinary captures, the empty throne's
+     *  hostility to both sides and the occupied throne's to white, and
+     *  the capture of the king on the throne, next to it, and
+     *  elsewhere. */
+    @Test
+    public void captureTest() {
+        assertTrue(captures("9/7B1/9/9/4K4/9/2BW5/9/1W7 w", "b1-3", "c3"));
+        assertFalse(captures("9/7B1/9/9/4K4/9/2B6/9/1W7 w", "b1-3", "c3"));
+
+        assertTrue(captures("9/9/2K6/9/9/4W4/B8/7W1/9 b", "a3-e", "e4"));
+        assertTrue(captures("9/4W4/9/4B4/9/9/2K6/7W1/B8 w", "e8-7", "e6"));
+        assertTrue(captures("9/9/9/4B4/3BKB3/4W4/B8/9/9 b", "a3-e", "e4"));
+        assertFalse(captures("9/9/9/9/3BKB3/4W4/B8/9/9 b", "a3-e", "e4"));
+
+        assertTrue(captures("9/9/9/4B4/3BKB3/B8/9/7W1/9 b", "a4-e", "e5"));
+        assertFalse(captures("9/9/9/9/3BKB3/B8/9/7W1/9 b", "a4-e", "e5"));
+        assertTrue(captures("9/9/9/9/9/3BKB3/B8/7W1/9 b", "a3-e", "e4"));
+        assertFalse(captures("9/9/9/9/9/3BK4/B8/7W1/9 b", "a3-e", "e4"));
+        assertTrue(captures("3B5/9/1BK6/9/9/9/9/7W1/9 b", "d9-7", "c7"));
+        assertFalse(captures("3B5/2B6/2K6/9/9/9/9/7W1/9 b", "d9-7", "c7"));
+    }
+
+    /** Return true iff the legal move MOVE in the position whose FEN-like
+     *  form is FEN captures the piece on square SQ. */
+    private static boolean captures(String fen, String move, String sq) {
+        Board board = Board.fromFen(fen);
+        assertTrue(board.isLegal(Move.mv(move)));
+        assertNotEquals(Piece.EMPTY, board.get(Square.sq(sq)));
+        board.makeMove(Move.mv(move));
+        return board.get(Square.sq(sq)) == Piece.EMPTY;
+    }
+
+    /** Check SquareSet operations and that Board.pieceLocations stays
+     *  in step with the board through moves and undos. */
+    @Test
+    public void squareSetTest() {
+        SquareSet a = SquareSet.of(Square.sq(0), Square.sq(63),
+                                   Square.sq(64), Square.sq(80));
+        SquareSet b = SquareSet.of(Square.sq(63), Square.sq(70));
+        assertEquals(4, a.size());
+        assertEquals(5, a.union(b).size());
+        assertEquals(SquareSet.of(Square.sq(63)), a.intersection(b));
+        assertEquals("{a1, a8, b8, i9}", a.toString());
+        assertEquals(80, a.next(64));
+        assertEquals(-1, a.next(80));
+        assertTrue(SquareSet.EMPTY.isEmpty());
+
+        Board board = new Board();
+        Random random = new Random(3);
+        for (int k = 0; k < 200 && board.winner() == null; k += 1) {
+            List<Move> moves = board.legalMoves(board.turn());
+            board.makeMove(moves.get(random.nextInt(moves.size())));
+            if (k % 3 == 2) {
+                board.undo();
+            }
+            for (Piece side : new Piece[] { Piece.WHITE, Piece.BLACK }) {
+                SquareSet pieces = board.pieceLocations(side);
+                for (Square s : Square.SQUARE_LIST) {
+                    assertEquals(board.get(s).side() == side,
+                                 pieces.contains(s));
+                }
+            }
+        }
+    }
+
+    /** Check that after the same seed, searches repeat exactly. */
+    @Test
+    public void deterministicSearchTest() {
+        Controller controller =
+            new Controller(new NullView(), null, new TextReporter(),
+                           new TextPlayer(), new AI(), false);
+        Board board = Board.fromFen("3BBB3/4B4/4W4/B3W3B/BBWWKW1BB/"
+                                    + "B3W3B/4W1W2/4B4/3BBB3 b");
+        long[] nodes = new long[2];
+        String[] lines = new String[2];
+        for (int k = 0; k < 2; k += 1) {
+            controller.setSeed(11);
+            AI ai = new AI(Piece.BLACK, controller);
+            lines[k] = ai.analyze(board, 2, 3).toString();
+            nodes[k] = ai.nodes();
+        }
+        assertEquals(lines[0], lines[1]);
+        assertEquals(nodes[0], nodes[1]);
+    }
+
+    /** Check that an AI's move computed in the background is legal and
+     *  reported as progress, and that searches cancelled before they
+     *  finish (as most are here) report nothing once cancelled. */
+    @Test
+    public void asyncMoveTest() throws InterruptedException,
+                                       ExecutionException, TimeoutException {
+        Controller controller =
+            new Controller(new NullView(), null, new TextReporter(),
+                           new TextPlayer(), new AI(), false);
+        AI ai = new AI(Piece.BLACK, controller);
+        Move move =
+            ai.myMoveAsync(Long.MAX_VALUE).get(30, TimeUnit.SECONDS);
+        assertTrue(controller.board().isLegal(move));
+        assertNotNull(controller.progress().latest());
+
+        Board board = controller.board();
+        Random random = new Random(3);
+        int cancellations = 0;
+        for (int k = 0; k < 10 && board.winner() == null; k += 1) {
+            for (int i = 0; i < 2 && board.winner() == null; i += 1) {
+                List<Move> moves = board.legalMoves(board.turn());
+                board.makeMove(moves.get(random.nextInt(moves.size())));
+            }
+            CompletableFuture<Move> search = ai.myMoveAsync(Long.MAX_VALUE);
+            if (search.cancel(false)) {
+                controller.progress().clear();
+                Thread.sleep(200);
+                assertNull(controller.progress().latest());
+                cancellations += 1;
+            }
+        }
+        assertTrue(cancellations > 0);
+    }
+
+    /** An automated player that takes SlowPlayer.DELAY seconds to choose
+     *  its first legal move, unless cancelled. */
+    private static class SlowPlayer extends Player {
+        /** Seconds taken to choose a move. */
+        static final long DELAY = 10;
+
+        /** A player of PIECE under CONTROLLER. */
+        SlowPlayer(Piece piece, Controller controller) {
+            super(piece, controller);
+        }
+
+        @Override
+        boolean isManual() {
+            return false;
+        }
+
+        @Override
+        Player create(Piece piece, Controller controller) {
+            return new SlowPlayer(piece, controller);
+        }
+
+        @Override
+        String myMove() {
+            return board().legalMoves(myPiece()).get(0).toString();
+        }
+
+        @Override
+        CompletableFuture<Move> myMoveAsync(long deadline) {
+            Move move = board().legalMoves(myPiece()).get(0);
+            return CompletableFuture.supplyAsync(
+                () -> move,
+                CompletableFuture.delayedExecutor(DELAY, TimeUnit.SECONDS));
+        }
+    }
+
+    /** Check that with interruptible input, a "quit" queued behind other
+     *  lines while an automated player is thinking abandons its move at
+     *  once, and that the lines before it are still executed first. */
+    @Test
+    public void interruptTest() {
+        InputStream stdin = System.in;
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            System.setIn(new ByteArrayInputStream(
+                             ("manual white\nauto black\n# a comment\ndump\n"
+                              + "quit\n").getBytes()));
+            System.setOut(new PrintStream(output));
+            Controller controller =
+                new Controller(new NullView(), null, new TextReporter(),
+                               new TextPlayer(), new SlowPlayer(null, null),
+                               false);
+            controller.setInterruptible(true);
+            long start = System.nanoTime();
+            controller.play();
+            assertTrue(System.nanoTime() - start
+                       < TimeUnit.SECONDS.toNanos(SlowPlayer.DELAY / 2));
+            assertEquals(0, controller.board().moveCount());
+            assertTrue(output.toString().contains("==="));
+        } finally {
+            System.setIn(stdin);
+            System.setOut(stdout);
+        }
+    }
+
+    /** Check that a report published on one thread is seen on another,
+     *  that reports within MIN_INTERVAL of the last are dropped, and that
+     *  clear discards the latest report and lifts the throttle. */
+    @Test
+    public void searchProgressTest() throws InterruptedException {
+        SearchProgress progress = new SearchProgress();
+        assertNull(progress.latest());
+        Move first = Move.mv("d1-f"), second = Move.mv("e3-5");
+        long start = System.nanoTime();
+        Thread searcher =
+            new Thread(() -> {
+                    progress.publish(first, 1, 10, 100);
+                    progress.publish(second, 2, 20, 200);
+                });
+        searcher.start();
+        searcher.join();
+        SearchProgress.Report report = progress.latest();
+        assertNotNull(report);
+        if (System.nanoTime() - start < SearchProgress.MIN_INTERVAL) {
+            assertSame(first, report.move());
+            assertEquals(1, report.depth());
+            assertEquals(10, report.score());
+            assertEquals(100, report.nodes());
+        }
+
+        Thread.sleep(2 * SearchProgress.MIN_INTERVAL / 1_000_000);
+        progress.publish(second, 2, 20, 200);
+        assertSame(second, progress.latest().move());
+
+        progress.clear();
+        assertNull(progress.latest());
+        progress.publish(first, 3, 30, 300);
+        assertSame(first, progress.latest().move());
+        assertEquals(3, progress.latest().depth());
+    }
+
+    /** Check that an MctsAI takes a one-move escape for the king, and
+     *  that after the same seed, it chooses the same move. */
+    @Test
+    public void mctsTest() {
+        Controller controller =
+            new Controller(new NullView(), null, new TextReporter(),
+                           new TextPlayer(), new AI(), false);
+        Board escape = Board.fromFen("3BBB3/4B4/9/3K5/BB5BB/B7B/4W4/"
+                                     + "4B4/3BBB3 w");
+        MctsAI white = new MctsAI(Piece.WHITE, controller);
+        Move move = white.findMove(escape);
+        escape.makeMove(move);
+        assertEquals(Piece.WHITE, escape.winner());
+
+        MctsAI black = new MctsAI(Piece.BLACK, controller);
+        Move[] moves = new Move[2];
+        for (int k = 0; k < 2; k += 1) {
+            controller.setSeed(5);
+            moves[k] = black.findMove(new Board());
+        }
+        assertEquals(moves[0], moves[1]);
+        assertTrue(new Board().isLegal(moves[0]));
+    }
+
+    /** Check that AI.analyze returns the K best moves, best first, each
+     *  with a principal variation as long as the search, also when the
+     *  cache already holds the position. */
+    @Test
+    public void analyzeTest() {
+        Board board = new Board();
+        AI ai = new AI();
+        List<AI.Line> all =
+            ai.analyze(board, board.legalMoves(board.turn()).size(), 2);
+        for (int pass = 0; pass < 2; pass += 1) {
+            List<AI.Line> lines = ai.analyze(board, 3, 3);
+            assertEquals(3, lines.size());
+            for (int i = 0; i < lines.size(); i += 1) {
+                AI.Line line = lines.get(i);
+                assertEquals(3, line.pv().size());
+                assertEquals(line.move(), line.pv().get(0));
+                if (i > 0) {
+                    assertTrue(line.score() >= lines.get(i - 1).score());
+                }
+                assertFalse(line.toString().contains("  "));
+            }
+            lines = ai.analyze(board, 2, 2);
+            assertEquals(2, lines.size());
+            for (int i = 0; i < lines.size(); i += 1) {
+                assertEquals(all.get(i).score(), lines.get(i).score());
+                assertEquals(2, lines.get(i).pv().size());
+            }
+        }
+    }
+
+    /** Check that Analyzer writes one line per position in input order,
+     *  with one worker and with several, for a file that mixes playable,
+     *  malformed, and finished positions in both formats, and comments. */
+    @Test
+    public void analyzerTest() throws IOException {
+        Path input = Files.createTempFile("tablut", ".in"),
+            output = Files.createTempFile("tablut", ".out");
+        try {
+            List<String> lines = new ArrayList<>();
+            Board board = new Board();
+            Random random = new Random(5);
+            for (int k = 0; k < 40; k += 1) {
+                if (k % 7 == 3) {
+                    lines.add("9/9/9 w");
+                } else if (k % 11 == 5) {
+                    lines.add("9/9/9/9/9/9/9/B8/KB7 w");
+                } else {
+                    if (board.winner() != null) {
+                        board = new Board();
+                    }
+                    List<Move> moves = board.legalMoves(board.turn());
+                    board.makeMove(moves.get(random.nextInt(moves.size())));
+                    lines.add(k % 2 == 0 ? board.toFen() : board.toBase64());
+                }
+            }
+            List<String> file = new ArrayList<>(lines);
+            file.add(10, "# a comment");
+            file.add(20, "");
+            Files.write(input, file);
+
+            for (int threads : new int[] { 1, 3 }) {
+                assertEquals(lines.size(),
+                             Analyzer.analyze(input, output, Variant.TABLUT,
+                                              threads, 1, 0));
+                List<String> results = Files.readAllLines(output);
+                assertEquals(lines.size(), results.size());
+                for (int k = 0; k < lines.size(); k += 1) {
+                    String line = lines.get(k), result = results.get(k);
+                    assertTrue(result.startsWith(line + " "));
+                    String rest = result.substring(line.length() + 1);
+                    if (k % 7 == 3) {
+                        assertTrue(rest.startsWith("error: "));
+                    } else if (k % 11 == 5) {
+                        assertEquals("none", rest);
+                    } else {
+                        Board position = line.indexOf('/') >= 0
+                            ? Board.fromFen(line) : Board.fromBase64(line);
+                        Move move = Move.mv(rest.split(" ")[0]);
+                        assertNotNull(move);
+                        assertTrue(position.isLegal(move));
+                    }
+                }
+            }
+        } finally {
+            Files.delete(input);
+            Files.delete(output);
+        }
+    }
 
+    /** Check that Board.mobility stays equal to maps built from scratch,
+     *  and to the legal moves, through moves and undos, on boards of two
+     *  sizes. */
+    @Test
+    public void mobilityTest() {
+        checkMobility(Variant.TABLUT);
+        checkMobility(Variant.HNEFATAFL);
+    }
+
+    /** Check Board.mobility through random moves of VARIANT. */
+    private void checkMobility(Variant variant) {
+        Board board = new Board(variant);
+        Mobility mobility = board.mobility();
+        Random random = new Random(9);
+        for (int k = 0; k < 300; k += 1) {
+            if (board.winner() != null) {
+                board.init();
+            }
+            List<Move> moves = board.legalMoves(board.turn());
+            board.makeMove(moves.get(random.nextInt(moves.size())));
+            if (k % 4 == 3) {
+                board.undo();
+            }
+            Mobility fresh = new Board(board).mobility();
+            for (Piece side : new Piece[] { Piece.WHITE, Piece.BLACK }) {
+                assertEquals(board.legalMoves(side).size(),
+                             mobility.moveCount(side));
+                assertEquals(fresh.attacked(side), mobility.attacked(side));
+                for (Square s : Square.squares(board.size())) {
+                    assertEquals(fresh.attackers(side, s),
+                                 mobility.attackers(side, s));
+                }
+            }
+            boolean escape = false;
+            for (Move move : board.legalMoves(Piece.WHITE)) {
+                escape |= board.get(move.from()) == Piece.KING
+                    && board.isEscape(move.to());
+            }
+            assertEquals(escape, mobility.kingReachesEscape());
+        }
+    }
+
+    /** Check that the cached legal destinations agree with the legal
+     *  moves through moves and undos. */
+    @Test
+    public void legalDestinationsTest() {
+        Board board = new Board();
+        Random random = new Random(12);
+        for (int k = 0; k < 200; k += 1) {
+            if (board.winner() != null) {
+                board.init();
+            }
+            List<Move> moves = board.legalMoves(board.turn());
+            for (Square from : Square.SQUARE_LIST) {
+                List<Square> dests = new ArrayList<>();
+                for (Move move : moves) {
+                    if (move.from() == from) {
+                        dests.add(move.to());
+                    }
+                }
+                SquareSet legal = board.legalDestinations(from);
+                assertEquals(dests.size(), legal.size());
+                for (Square to : Square.SQUARE_LIST) {
+                    assertEquals(dests.contains(to), legal.contains(to));
+                    assertEquals(dests.contains(to), board.isLegal(from, to));
+                }
+            }
+            board.makeMove(moves.get(random.nextInt(moves.size())));
+            if (k % 3 == 2) {
+                board.undo();
+            }
+        }
+    }
+
+    /** Check that ProofSearch proves short wins for both sides, with
+     *  their lengths and first moves, and fails where there is none. */
+    @Test
+    public void proofSearchTest() {
+        ProofSearch solver = new ProofSearch(ProofSearch.DEFAULT_NODES);
+        Board board = Board.fromFen("3B5/9/9/9/1BK6/9/9/9/9 b");
+        assertTrue(ProofSearch.isTactical(board));
+        assertEquals(1, solver.solve(board, 5, Long.MAX_VALUE, null));
+        assertEquals(Move.mv("d9-5"), solver.bestMove());
+        assertEquals("3B5/9/9/9/1BK6/9/9/9/9 b", board.toFen());
+
+        board = Board.fromFen("9/9/9/9/2K6/9/9/9/8B w");
+        assertEquals(1, solver.solve(board, 5, Long.MAX_VALUE, null));
+        assertTrue(solver.bestMove().to().isEdge());
+
+        board = Board.fromFen("9/9/9/9/4K4/9/9/9/B8 b");
+        assertEquals(-1, solver.solve(board, 3, Long.MAX_VALUE, null));
+        assertEquals(null, solver.bestMove());
+
+        board = Board.fromFen("3B5/9/9/9/1BK6/9/9/9/9 b");
+        assertEquals(1, solver.solve(board, 5, Long.MAX_VALUE, null));
+        assertEquals(Move.mv("d9-5"), solver.bestMove());
+    }
+
+    /** Check TimeManager's division of the clock and its budgets. */
+    @Test
+    public void timeManagerTest() {
+        Board board = new Board();
+        assertEquals(TimeManager.MIN_MOVES_LEFT + 25,
+                     TimeManager.movesLeft(board));
+        board.setMoveLimit(10);
+        assertEquals(5, TimeManager.movesLeft(board));
+
+        TimeManager clock = new TimeManager(10_000, 0);
+        TimeManager.Budget budget = clock.budget(board);
+        long limit = budget.deadline() - System.nanoTime();
+        assertTrue(limit > 0 && limit <= 10_000_000_000L / 3);
+        clock.charge(Piece.BLACK, 4_000_000_000L);
+        assertEquals(6_000, clock.remainingMillis(Piece.BLACK));
+        assertEquals(10_000, clock.remainingMillis(Piece.WHITE));
+
+        TimeManager.Budget stable = new TimeManager.Budget(
+            System.nanoTime(), 1_000_000_000_000L, 2_000_000_000_000L);
+        assertFalse(stable.iterationDone(Move.mv("d1-2")));
+        assertFalse(stable.iterationDone(Move.mv("d1-3")));
+        TimeManager.Budget spent = new TimeManager.Budget(
+            System.nanoTime() - 1_000_000_000L, 1_000_000, 2_000_000);
+        assertTrue(spent.iterationDone(Move.mv("d1-2")));
+    }
+
+    /** Check KingEscape's open rays, blockers and forced escapes. */
+    @Test
+    public void kingEscapeTest() {
+        Board board = Board.fromFen("9/9/9/9/2K6/9/9/9/9 w");
+        assertEquals(4, KingEscape.openRays(board));
+        assertEquals(1, KingEscape.forcedEscape(board));
+
+        board = Board.fromFen("9/2B6/9/9/2K3B2/9/9/9/9 b");
+        assertEquals(2, KingEscape.openRays(board));
+        assertEquals(SquareSet.of(Square.sq("c8"), Square.sq("g5")),
+                     KingEscape.blockers(board));
+        assertEquals(2, KingEscape.forcedEscape(board));
+
+        board = Board.fromFen("9/2B6/9/9/B1K2B3/9/9/2B6/9 w");
+        assertEquals(0, KingEscape.openRays(board));
+        assertEquals(3, KingEscape.forcedEscape(board));
+        assertEquals("9/2B6/9/9/B1K2B3/9/9/2B6/9 w", board.toFen());
+
+        board = Board.fromFen("9/2B6/9/9/1BK3B2/9/9/9/9 b");
+        assertEquals(0, KingEscape.forcedEscape(board));
+    }
+
+    /** Check that SearchCache returns what was stored, replacing entries
+     *  for the same key and evicting when a bucket is full. */
+    @Test
+    public void searchCacheTest() {
+        SearchCache cache = new SearchCache(8);
+        assertEquals(0, cache.probe(42));
+        cache.store(42, 3, -17, SearchCache.LOWER, 0x1234);
+        long data = cache.probe(42);
+        assertEquals(-17, SearchCache.score(data));
+        assertEquals(3, SearchCache.depth(data));
+        assertEquals(SearchCache.LOWER, SearchCache.bound(data));
+        assertEquals(0x1234, SearchCache.move(data));
+        cache.store(42, 5, 9, SearchCache.EXACT, 0);
+        assertEquals(9, SearchCache.score(cache.probe(42)));
+        for (long key = 100; key < 200; key += 1) {
+            cache.store(key, 1, (int) key, SearchCache.EXACT, 0);
+        }
+        int found = 0;
+        for (long key = 100; key < 200; key += 1) {
+            long d = cache.probe(key);
+            if (d != 0) {
+                assertEquals(key, SearchCache.score(d));
+                found += 1;
+            }
+        }
+        assertTrue(found > 0 && found <= cache.capacity());
+    }
+
+    /** Check that a PersistentCache keeps its entries when reopened, that
+     *  a damaged file is reinitialized, and that a file for another
+     *  evaluation is reinitialized only when not in use. */
+    @Test
+    public void persistentCacheTest() throws IOException {
+        Path file = Files.createTempFile("tablut", ".cache");
+        try {
+            Files.write(file, new byte[] { 1, 2, 3 });
+            PersistentCache cache = PersistentCache.open(file, 64, 0);
+            assertEquals(64, cache.capacity());
+            assertEquals(0, cache.probe(42));
+            cache.store(42, 3, -17, SearchCache.UPPER, 0x1234);
+            cache.close();
+            cache = PersistentCache.open(file, 1024, 0);
+            assertEquals(64, cache.capacity());
+            long data = cache.probe(42);
+            assertEquals(-17, SearchCache.score(data));
+            assertEquals(3, SearchCache.depth(data));
+            assertEquals(SearchCache.UPPER, SearchCache.bound(data));
+            assertEquals(0x1234, SearchCache.move(data));
+
+            try {
+                PersistentCache.open(file, 64, 7);
+                fail("cache file in use was reinitialized");
+            } catch (IOException excp) {
+                /* Expected. */
+            }
+            assertFalse(PersistentCache.openOrFallBack(file, 64, 7)
+                        instanceof PersistentCache);
+            assertEquals(data, cache.probe(42));
+            cache.close();
+            cache = PersistentCache.open(file, 64, 7);
+            assertEquals(0, cache.probe(42));
+            cache.close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /** Check that a Network's incrementally updated accumulator agrees with
+     *  one computed afresh, and that a network survives being written and
+     *  read back. */
+    @Test
+    public void networkTest() throws IOException {
+        Trainer trainer = new Trainer(1);
+        trainer.add(new Board(), Piece.WHITE);
+        trainer.train(1);
+        Network net = trainer.network();
+        Board board = new Board();
+        net.evaluate(board);
+        Random random = new Random(2);
+        while (board.winner() == null) {
+            List<Move> moves = board.legalMoves(board.turn());
+            board.makeMove(moves.get(random.nextInt(moves.size())));
+            assertEquals(net.evaluate(new Board(board)), net.evaluate(board));
+        }
+        while (board.moveCount() > 0) {
+            board.undo();
+            assertEquals(net.evaluate(new Board(board)), net.evaluate(board));
+        }
+        Path file = Files.createTempFile("tablut", ".net");
+        try {
+            net.write(file);
+            Network copy = Network.read(file);
+            assertEquals(net.evaluate(board), copy.evaluate(board));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /** Check that LatencyHistogram's buckets cover all values in order, and
+     *  that its percentiles are within a bucket of the true values. */
+    @Test
+    public void latencyHistogramTest() {
+        for (int i = 1; i < LatencyHistogram.BUCKETS; i += 1) {
+            long low = LatencyHistogram.bucketLimit(i - 1) + 1;
+            assertEquals(i, LatencyHistogram.bucket(low));
+            assertEquals(i, LatencyHistogram.bucket(
+                             LatencyHistogram.bucketLimit(i)));
+        }
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        assertEquals(0, histogram.percentile(0.5));
+        for (long v = 1; v <= 1000; v += 1) {
+            histogram.record(v * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        long p50 = histogram.percentile(0.5),
+            p99 = histogram.percentile(0.99);
+        assertTrue(p50 >= 500_000 && p50 <= 500_000 * 17 / 16);
+        assertTrue(p99 >= 990_000 && p99 <= 990_000 * 17 / 16);
+        assertEquals(1_000_000, histogram.percentile(1.0));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+    }
+
+    /** Check that a game with an automated player records JFR events for
+     *  its search, the search's iteration and the commands, and that a
+     *  board records a batch of moves once MOVE_BATCH moves are made. */
+    @Test
+    public void engineEventsTest() throws IOException {
+        Path file = Files.createTempFile("tablut", ".jfr");
+        InputStream stdin = System.in;
+        PrintStream stdout = System.out;
+        try (Recording recording = new Recording()) {
+            for (String name : new String[] {
+                    "tablut.Search", "tablut.SearchIteration",
+                    "tablut.Command", "tablut.MoveBatch" }) {
+                recording.enable(name).withoutThreshold();
+            }
+            recording.start();
+            System.setIn(new ByteArrayInputStream(
+                             ("seed 1\nmanual white\nauto black\ndump\n"
+                              + "quit\n").getBytes()));
+            System.setOut(new PrintStream(new ByteArrayOutputStream()));
+            Controller controller =
+                new Controller(new NullView(), null, new TextReporter(),
+                               new TextPlayer(), new AI(), false);
+            controller.play();
+            Board board = new Board();
+            Move move = board.legalMoves(board.turn()).get(0);
+            for (int k = 0; k < EngineEvents.MOVE_BATCH; k += 1) {
+                board.makeMove(move);
+                board.undo();
+            }
+            recording.stop();
+            recording.dump(file);
+
+            Map<String, Integer> counts = new HashMap<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                counts.merge(event.getEventType().getName(), 1,
+                             Integer::sum);
+            }
+            assertEquals(1, (int) counts.getOrDefault("tablut.Search", 0));
+            assertEquals(1, (int) counts.getOrDefault("tablut.SearchIteration",
+                                                      0));
+            assertEquals(6, (int) counts.getOrDefault("tablut.Command", 0));
+            assertTrue(counts.getOrDefault("tablut.MoveBatch", 0) >= 1);
+        } finally {
+            System.setIn(stdin);
+            System.setOut(stdout);
+            Files.delete(file);
+        }
+    }
+
+    /** Check that Variant's tables agree with the geometry of Square and
+     *  the initial positions of Board, and that a larger corner-escape
+     *  variant plays by its rules. */
+    @Test
+    public void variantTest() {
+        for (Variant variant : new Variant[] {
+                Variant.TABLUT, Variant.HNEFATAFL, Variant.TAFL13 }) {
+            Board board = new Board(variant);
+            int n = variant.size();
+            for (Square s : Square.squares(n)) {
+                int i = s.index();
+                for (int d = 0; d < 4; d += 1) {
+                    int[] ray = variant.rays()[4 * i + d];
+                    for (int k = 0; k < ray.length; k += 1) {
+                        assertEquals(s.rookMove(d, k + 1).index(), ray[k]);
+                    }
+                    assertNull(s.rookMove(d, ray.length + 1));
+                    assertEquals(ray.length > 0 ? ray[0] : -1,
+                                 variant.neighbor()[4 * i + d]);
+                    assertEquals(ray.length > 1 ? ray[1] : -1,
+                                 variant.beyond()[4 * i + d]);
+                }
+                assertEquals(board.get(s), variant.initial(i));
+                boolean corner = s.isEdge() && s.col() % (n - 1) == 0
+                    && s.row() % (n - 1) == 0;
+                assertEquals(variant.cornerEscape() ? corner : s.isEdge(),
+                             board.isEscape(s));
+            }
+            assertEquals(board.toFen(), Board.fromFen(board.toFen()).toFen());
+        }
+        assertEquals(4, Variant.TABLUT.kingGuards()[40].length);
+        assertEquals(2, Variant.HNEFATAFL.words());
+        assertEquals(3, Variant.TAFL13.words());
+
+        Variant large = Variant.TAFL13;
+        RolloutEngine engine = new RolloutEngine(large, 200, 400, 5);
+        engine.run();
+        for (int g = 0; g < engine.games(); g += 1) {
+            assertTrue(engine.finished(g));
+            if (engine.winner(g) == Piece.WHITE
+                && !engine.repeatedPosition(g)) {
+                int king = -1;
+                for (int i = 0; i < large.squares(); i += 1) {
+                    if (engine.get(g, i) == Piece.KING) {
+                        king = i;
+                    }
+                }
+                assertTrue(king < 0 || large.isEscape(king)
+                           || engine.plies(g) >= 400);
+            }
+        }
+
+        assertSame(Variant.HNEFATAFL, Variant.forName("hnefatafl"));
+        Variant unarmed = Variant.forName("hnefatafl", false, false);
+        assertEquals("hnefatafl unarmed", unarmed.toString());
+        long[] counts = RolloutEngine.playRandom(unarmed, 1500, 300, 7);
+        assertEquals(1500, counts[0] + counts[1] + counts[2]);
+        assertTrue(counts[0] > 0 && counts[1] > 0);
+    }
+
+    /** Check that a larger variant can be played through the Controller,
+     *  recorded and replayed, searched by AI, and analyzed. */
+    @Test
+    public void variantPlayTest() throws IOException {
+        Path file = Files.createTempFile("tablut", ".rec");
+        InputStream stdin = System.in;
+        PrintStream stdout = System.out;
+        try {
+            System.setIn(new ByteArrayInputStream(
+                             ("variant hnefatafl\nmanual white\nd1-3\ne5-b\n"
+                              + "variant tablut\nd1-2\nnew\nquit\n")
+                             .getBytes()));
+            System.setOut(new PrintStream(new ByteArrayOutputStream()));
+            Controller controller =
+                new Controller(new NullView(), null, new TextReporter(),
+                               new TextPlayer(), new AI(), false);
+            controller.setRecord(new GameRecord.Writer(file,
+                                                       Variant.HNEFATAFL));
+            controller.play();
+            assertEquals(Variant.TABLUT, controller.board().variant());
+        } finally {
+            System.setIn(stdin);
+            System.setOut(stdout);
+        }
+        try (GameRecord.Reader in = new GameRecord.Reader(file)) {
+            assertEquals(Variant.HNEFATAFL, in.variant());
+            GameRecord game = in.next();
+            assertNull(in.next());
+            Board board = new Board(in.variant());
+            assertEquals(2, game.size());
+            assertEquals("d1-3", board.move(game.moveCode(0)).toString());
+            assertTrue(Replay.isValid(game, board));
+            assertEquals(Piece.WHITE, board.get(Square.sq("b5", 11)));
+            assertEquals(1, Replay.validate(file, 2)[0]);
+        } finally {
+            Files.delete(file);
+        }
+
+        Board board = new Board(Variant.HNEFATAFL);
+        board.makeMove(board.move("e1-3"));
+        Board copy = Board.fromFen(board.toFen());
+        assertEquals(11, copy.size());
+        assertEquals(board.hash(), copy.hash());
+        assertEquals(board.encodedBoard(),
+                     Board.fromBase64(board.toBase64()).encodedBoard());
+        AI ai = new AI();
+        Move move = ai.analyze(board, 1, 2).get(0).move();
+        assertTrue(board.isLegal(move));
+        String fen = board.toFen();
+        String line = Analyzer.analyze(fen, Variant.HNEFATAFL, ai,
+                                       new Board(), 1, 0);
+        assertTrue(line.startsWith(fen + " "));
+        assertTrue(board.isLegal(board.move(line.split(" ")[2])));
+    }
+
+    /** Check that games played by RolloutEngine follow exactly the same
+     *  course as the same moves made on Boards, for each standard variant
+     *  and for one with an unarmed king and edge escape. */
+    @Test
+    public void rolloutEngineTest() {
+        checkRollouts(Variant.TABLUT, new RolloutEngine(64, 300, 61));
+        checkRollouts(Variant.HNEFATAFL,
+                      new RolloutEngine(Variant.HNEFATAFL, 32, 300, 62));
+        checkRollouts(Variant.TAFL13,
+                      new RolloutEngine(Variant.TAFL13, 16, 300, 63));
+        Variant unarmed = Variant.forName("hnefatafl", false, false);
+        checkRollouts(unarmed, new RolloutEngine(unarmed, 32, 300, 64));
+    }
+
+    /** Run ENGINE, whose games are of VARIANT, to the end, checking each
+     *  of its moves against a Board. */
+    private void checkRollouts(Variant variant, RolloutEngine engine) {
+        int games = engine.games();
+        Board[] boards = new Board[games];
+        for (int g = 0; g < games; g += 1) {
+            boards[g] = new Board(variant);
+        }
+        boolean running;
+        do {
+            running = engine.step();
+            for (int g = 0; g < games; g += 1) {
+                Board board = boards[g];
+                if (board.winner() != null
+                    || board.moveCount() == engine.plies(g)) {
+                    continue;
+                }
+                Move move = board.move(engine.lastMove(g));
+                assertTrue(board.isLegal(move));
+                board.makeMove(move);
+                assertEquals(board.hash(), engine.hash(g));
+                assertEquals(board.winner(), engine.winner(g));
+                assertEquals(board.repeatedPosition(),
+                             engine.repeatedPosition(g));
+                assertEquals(board.turn(), engine.turn(g));
+            }
+        } while (running);
+        for (int g = 0; g < games; g += 1) {
+            assertTrue(engine.finished(g));
+            for (Square s : Square.squares(variant.size())) {
+                assertEquals(boards[g].get(s), engine.get(g, s.index()));
+            }
+        }
+    }
+}
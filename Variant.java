@@ -0,0 +1,434 @@
+package tablut;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static tablut.Piece.*;
+
+/** A variant of the game: the board size, the initial position, and the
+ *  rule options, together with the precomputed geometry tables for its
+ *  board size used by Board and by fast engines such as RolloutEngine.
+ *  Squares are numbered row by row from the lower left, as for
+ *  Square.index, and directions are numbered as for Square.rookMove.
+ *
+ *  All variants share the rules of Tablut, except that
+ *   o with corner escape, the king wins by reaching a corner rather than
+ *     any edge square, and only the king may stop on a corner, which is
+ *     hostile to both sides like the empty throne;
+ *   o with an unarmed king, the king neither captures nor helps to
+ *     capture.
+ *  Variants are equal if they have the same name and rule options.
+ *  @author neal sharma
+ */
+final class Variant {
+
+    /** Column and row steps for directions 0-3, as for Square.rookMove. */
+    private static final int[] DCOL = { 0, 1, 0, -1 }, DROW = { 1, 0, -1, 0 };
+
+    /** The Pieces, indexed by ordinal. */
+    private static final Piece[] PIECES = Piece.values();
+
+    /** Seed of the Zobrist keys of TABLUT.  Those of the other variants
+     *  add their number of squares and rule options. */
+    private static final long ZOBRIST_SEED = 0x7461626c7574L;
+
+    /** 9x9 Tablut, the default variant of Board: edge escape and an armed
+     *  king. */
+    static final Variant TABLUT =
+        new Variant("tablut", "3BBB3/4B4/4W4/B3W3B/BBWWKWWBB/B3W3B/4W4/"
+                    + "4B4/3BBB3 b", false, true);
+
+    /** 11x11 Hnefatafl: corner escape and an armed king. */
+    static final Variant HNEFATAFL =
+        new Variant("hnefatafl", "3BBBBB3/5B5/11/B4W4B/B3WWW3B/"
+                    + "BB1WWKWW1BB/B3WWW3B/B4W4B/11/5B5/3BBBBB3 b",
+                    true, true);
+
+    /** 13x13 Tafl: corner escape and an armed king. */
+    static final Variant TAFL13 =
+        new Variant("tafl13", "4BBBBB4/6B6/13/B5W5B/B5W5B/BB3WWW3BB/"
+                    + "BBWWWWKWWWWBB/BB3WWW3BB/B5W5B/B5W5B/13/6B6/"
+                    + "4BBBBB4 b", true, true);
+
+    /** The standard variants. */
+    private static final Variant[] STANDARD = { TABLUT, HNEFATAFL, TAFL13 };
+
+    /** A variant called NAME whose initial position is SETUP, in the
+     *  FEN-like form of Board.toFen (with any number of rows), with corner
+     *  escape iff CORNERESCAPE and an armed king iff ARMEDKING. */
+    Variant(String name, String setup, boolean cornerEscape,
+            boolean armedKing) {
+        _name = name;
+        _setupString = setup;
+        _cornerEscape = cornerEscape;
+        _armedKing = armedKing;
+        String[] rows = setup.split("[/ ]");
+        _size = rows.length - 1;
+        if (_size < Square.MIN_SIZE || _size > Square.MAX_SIZE
+            || _size % 2 == 0
+            || !rows[_size].matches("[wb]")) {
+            throw Utils.error("bad variant setup: %s", setup);
+        }
+        _setup = new Piece[_size * _size];
+        for (int r = 0; r < _size; r += 1) {
+            parseRow(rows[_size - 1 - r], r);
+        }
+        _firstTurn = rows[_size].equals("w") ? WHITE : BLACK;
+        _throne = (_size / 2) * (_size + 1);
+        if (_setup[_throne] != KING) {
+            throw Utils.error("king must start on the throne: %s", setup);
+        }
+        _words = (_size * _size + 63) / 64;
+
+        int n = _size * _size;
+        _rays = new int[4 * n][];
+        _neighbor = new int[4 * n];
+        _beyond = new int[4 * n];
+        _kingGuards = new int[n][];
+        _escape = new boolean[n];
+        _kingOnly = new boolean[n];
+        _hostile = new boolean[n];
+        for (int i = 0; i < n; i += 1) {
+            int col = i % _size, row = i / _size;
+            for (int d = 0; d < 4; d += 1) {
+                int len = 0;
+                while (exists(col + (len + 1) * DCOL[d],
+                              row + (len + 1) * DROW[d])) {
+                    len += 1;
+                }
+                _rays[4 * i + d] = new int[len];
+                for (int k = 0; k < len; k += 1) {
+                    _rays[4 * i + d][k] = index(col + (k + 1) * DCOL[d],
+                                                row + (k + 1) * DROW[d]);
+                }
+                _neighbor[4 * i + d] = len >= 1 ? _rays[4 * i + d][0] : -1;
+                _beyond[4 * i + d] = len >= 2 ? _rays[4 * i + d][1] : -1;
+            }
+            boolean edge = col == 0 || row == 0
+                || col == _size - 1 || row == _size - 1;
+            boolean corner = (col == 0 || col == _size - 1)
+                && (row == 0 || row == _size - 1);
+            _escape[i] = cornerEscape ? corner : edge;
+            _kingOnly[i] = i == _throne || cornerEscape && corner;
+            _hostile[i] = cornerEscape && corner;
+        }
+        _pawnRays = new int[4 * n][];
+        _escapeRays = new long[3 * 4 * n];
+        for (int k = 0; k < 4 * n; k += 1) {
+            int[] ray = _rays[k];
+            int len = ray.length;
+            if (len > 0 && _hostile[ray[len - 1]]) {
+                len -= 1;
+            }
+            _pawnRays[k] = len == ray.length ? ray : Arrays.copyOf(ray, len);
+            if (ray.length > 0 && _escape[ray[ray.length - 1]]) {
+                for (int j : ray) {
+                    _escapeRays[3 * k + (j >> 6)] |= 1L << j;
+                }
+            }
+        }
+        for (int d = -1; d < 4; d += 1) {
+            int s = d < 0 ? _throne : _neighbor[4 * _throne + d];
+            int[] guards = new int[s == _throne ? 4 : 3];
+            int k = 0;
+            for (int e = 0; e < 4; e += 1) {
+                if (_neighbor[4 * s + e] != _throne) {
+                    guards[k] = _neighbor[4 * s + e];
+                    k += 1;
+                }
+            }
+            _kingGuards[s] = guards;
+        }
+
+        long seed = ZOBRIST_SEED;
+        if (_size != Square.BOARD_SIZE || cornerEscape || !armedKing) {
+            seed += n + (cornerEscape ? 1 << 10 : 0)
+                + (armedKing ? 0 : 1 << 11);
+        }
+        SplittableRandom keys = new SplittableRandom(seed);
+        _zobrist = new long[PIECES.length][n];
+        for (Piece p : PIECES) {
+            for (int i = 0; p != EMPTY && i < n; i += 1) {
+                _zobrist[p.ordinal()][i] = keys.nextLong();
+            }
+        }
+        _whiteToMove = keys.nextLong();
+    }
+
+    /** Return the standard variant named NAME. */
+    static Variant forName(String name) {
+        for (Variant v : STANDARD) {
+            if (v._name.equals(name)) {
+                return v;
+            }
+        }
+        throw Utils.error("unknown variant: %s", name);
+    }
+
+    /** Return the standard variant with SIZE rows and columns, or null if
+     *  there is none. */
+    static Variant forSize(int size) {
+        for (Variant v : STANDARD) {
+            if (v._size == size) {
+                return v;
+            }
+        }
+        return null;
+    }
+
+    /** Return the standard variant named NAME, with corner escape iff
+     *  CORNERESCAPE and an armed king iff ARMEDKING. */
+    static Variant forName(String name, boolean cornerEscape,
+                           boolean armedKing) {
+        for (Variant v : STANDARD) {
+            if (v._name.equals(name)) {
+                if (v._cornerEscape == cornerEscape
+                    && v._armedKing == armedKing) {
+                    return v;
+                }
+                return new Variant(name, v._setupString, cornerEscape,
+                                   armedKing);
+            }
+        }
+        throw Utils.error("unknown variant: %s", name);
+    }
+
+    /** Return the standard variant named NAME, with the escape rule ESCAPE
+     *  ("edge" or "corner"), or its standard rule if ESCAPE is null, and
+     *  with an unarmed king if UNARMED or the standard king is unarmed. */
+    static Variant forOptions(String name, String escape, boolean unarmed) {
+        Variant standard = forName(name);
+        boolean corners = standard._cornerEscape;
+        if (escape != null) {
+            switch (escape) {
+            case "edge":
+                corners = false;
+                break;
+            case "corner":
+                corners = true;
+                break;
+            default:
+                throw Utils.error("bad escape rule: %s", escape);
+            }
+        }
+        return forName(name, corners, standard._armedKing && !unarmed);
+    }
+
+    /** Return my name. */
+    String name() {
+        return _name;
+    }
+
+    /** Return the number of rows (and columns) on my board. */
+    int size() {
+        return _size;
+    }
+
+    /** Return the number of squares on my board. */
+    int squares() {
+        return _size * _size;
+    }
+
+    /** Return the number of longs in a bit mask of my squares. */
+    int words() {
+        return _words;
+    }
+
+    /** Return the index of the throne. */
+    int throne() {
+        return _throne;
+    }
+
+    /** Return true iff the king escapes only to the corners. */
+    boolean cornerEscape() {
+        return _cornerEscape;
+    }
+
+    /** Return true iff the king captures and helps to capture. */
+    boolean armedKing() {
+        return _armedKing;
+    }
+
+    /** Return the contents of square I in the initial position. */
+    Piece initial(int i) {
+        return _setup[i];
+    }
+
+    /** Return the side that moves first. */
+    Piece firstTurn() {
+        return _firstTurn;
+    }
+
+    /** Return true iff the king wins by reaching square I. */
+    boolean isEscape(int i) {
+        return _escape[i];
+    }
+
+    /** Return true iff only the king may stop on square I. */
+    boolean isKingOnly(int i) {
+        return _kingOnly[i];
+    }
+
+    /** Return true iff square I, other than the throne, is hostile to
+     *  both sides: a corner, under corner escape. */
+    boolean isHostile(int i) {
+        return _hostile[i];
+    }
+
+    /** Return the table whose entry 4 * i + d lists the squares reached
+     *  from square i in direction d, in order of increasing distance.  The
+     *  result must not be modified. */
+    int[][] rays() {
+        return _rays;
+    }
+
+    /** Return the table of rays, as for rays(), for pieces other than the
+     *  king, which omit the squares other than the throne on which only
+     *  the king may stop.  Those are always corners, at the ends of rays.
+     *  The result must not be modified. */
+    int[][] pawnRays() {
+        return _pawnRays;
+    }
+
+    /** Return the table whose entries 3 * (4 * i + d) + w, for w = 0, 1
+     *  and 2, are the three longs of the mask (as for SquareSet) of the
+     *  squares reached from square i in direction d, if the last of them
+     *  is an escape square, and otherwise 0.  The king can escape along
+     *  such a ray in one move if none of its squares is occupied.  The
+     *  result must not be modified. */
+    long[] escapeRays() {
+        return _escapeRays;
+    }
+
+    /** Return the table whose entry 4 * i + d is the square next to square
+     *  i in direction d, or -1.  The result must not be modified. */
+    int[] neighbor() {
+        return _neighbor;
+    }
+
+    /** Return the table whose entry 4 * i + d is the square two steps from
+     *  square i in direction d, or -1.  The result must not be
+     *  modified. */
+    int[] beyond() {
+        return _beyond;
+    }
+
+    /** Return the table whose entry i lists the squares that must all hold
+     *  black pieces to capture the king on square i, when the king is on
+     *  or next to the throne.  It is null on other squares, where the king
+     *  is captured between two black pieces like any other piece.  The
+     *  result must not be modified. */
+    int[][] kingGuards() {
+        return _kingGuards;
+    }
+
+    /** Return the Zobrist keys for my board, indexed by Piece ordinal and
+     *  square (0 for EMPTY).  They are generated from a fixed seed that
+     *  depends on the board size and rules, so that hashes are the same in
+     *  every run, but differ between variants.  The result must not be
+     *  modified. */
+    long[][] zobrist() {
+        return _zobrist;
+    }
+
+    /** Return the hash key added when it is white's move. */
+    long whiteToMove() {
+        return _whiteToMove;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Variant)) {
+            return false;
+        }
+        Variant other = (Variant) obj;
+        return _name.equals(other._name)
+            && _setupString.equals(other._setupString)
+            && _cornerEscape == other._cornerEscape
+            && _armedKing == other._armedKing;
+    }
+
+    @Override
+    public int hashCode() {
+        return _setupString.hashCode() * 4 + (_cornerEscape ? 2 : 0)
+            + (_armedKing ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s%s%s", _name,
+                             _cornerEscape ? " corners" : "",
+                             _armedKing ? "" : " unarmed");
+    }
+
+    /** Fill row R of _setup from its description ROW. */
+    private void parseRow(String row, int r) {
+        int c = 0;
+        for (int k = 0; k < row.length(); k += 1) {
+            char ch = row.charAt(k);
+            if (Character.isDigit(ch)) {
+                int n = ch - '0';
+                if (k + 1 < row.length()
+                    && Character.isDigit(row.charAt(k + 1))) {
+                    k += 1;
+                    n = 10 * n + row.charAt(k) - '0';
+                }
+                for (; n > 0 && c < _size; n -= 1, c += 1) {
+                    _setup[r * _size + c] = EMPTY;
+                }
+                if (n > 0) {
+                    c = _size + 1;
+                }
+            } else if ((ch == 'W' || ch == 'B' || ch == 'K') && c < _size) {
+                _setup[r * _size + c] =
+                    ch == 'W' ? WHITE : ch == 'B' ? BLACK : KING;
+                c += 1;
+            } else {
+                c = _size + 1;
+                break;
+            }
+        }
+        if (c != _size) {
+            throw Utils.error("bad variant setup: %s", _setupString);
+        }
+    }
+
+    /** Return true iff COL, ROW is on my board. */
+    private boolean exists(int col, int row) {
+        return col >= 0 && row >= 0 && col < _size && row < _size;
+    }
+
+    /** Return the index of square COL, ROW. */
+    private int index(int col, int row) {
+        return row * _size + col;
+    }
+
+    /** My name. */
+    private final String _name;
+    /** My initial position as given to the constructor. */
+    private final String _setupString;
+    /** Rule options. */
+    private final boolean _cornerEscape, _armedKing;
+    /** Board size, number of mask words, and throne index. */
+    private final int _size, _words, _throne;
+    /** Initial contents of each square. */
+    private final Piece[] _setup;
+    /** Side moving first. */
+    private final Piece _firstTurn;
+    /** See rays(). */
+    private final int[][] _rays;
+    /** See neighbor() and beyond(). */
+    private final int[] _neighbor, _beyond;
+    /** See kingGuards(). */
+    private final int[][] _kingGuards;
+    /** See isEscape(), isKingOnly() and isHostile(). */
+    private final boolean[] _escape, _kingOnly, _hostile;
+    /** See pawnRays(). */
+    private final int[][] _pawnRays;
+    /** See escapeRays(). */
+    private final long[] _escapeRays;
+    /** See zobrist(). */
+    private final long[][] _zobrist;
+    /** See whiteToMove(). */
+    private final long _whiteToMove;
+}